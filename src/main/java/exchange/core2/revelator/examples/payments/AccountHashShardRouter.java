@@ -0,0 +1,35 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.collections.Hashing;
+
+/**
+ * Routes by hash of the whole account id, supports any number of shards.
+ */
+public final class AccountHashShardRouter implements IShardRouter {
+
+    private final int shardsNum;
+
+    public AccountHashShardRouter(final int shardsNum) {
+        if (shardsNum < 1) {
+            throw new IllegalArgumentException("Shards number must be positive");
+        }
+        this.shardsNum = shardsNum;
+    }
+
+    @Override
+    public int shardOf(final long account) {
+        return AccountsProcessor.isAccountHandle(account)
+                ? AccountsProcessor.extractHandleShard(account)
+                : IShardRouter.reduce(Hashing.hash(account), shardsNum);
+    }
+
+    @Override
+    public int getShardsNum() {
+        return shardsNum;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountHashShardRouter{shardsNum=" + shardsNum + '}';
+    }
+}
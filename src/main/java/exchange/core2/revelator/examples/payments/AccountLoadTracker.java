@@ -0,0 +1,90 @@
+package exchange.core2.revelator.examples.payments;
+
+import java.util.Arrays;
+
+/**
+ * Approximate per-account load of a shard (space-saving heavy hitters over sampled operations).
+ * <p>
+ * Updated by shard thread only, costs one counter increment for most operations.
+ * Top accounts are published periodically and can be read from any thread, counters decay after publishing.
+ */
+public final class AccountLoadTracker {
+
+    // track 1 of 64 operations
+    private static final int SAMPLE_MASK = 63;
+
+    // publish and decay every 1M operations
+    private static final int PUBLISH_MASK = (1 << 20) - 1;
+
+    private static final int TRACKED_ACCOUNTS = 16;
+
+    private final long[] accounts = new long[TRACKED_ACCOUNTS];
+    private final long[] counters = new long[TRACKED_ACCOUNTS];
+
+    private int operations = 0;
+
+    // pairs of (account, estimated operations), ordered by load
+    private volatile long[] hotAccounts = new long[0];
+
+    public void record(final long account) {
+
+        final int ops = ++operations;
+
+        if ((ops & SAMPLE_MASK) != 0) {
+            return;
+        }
+
+        int minIdx = 0;
+        boolean found = false;
+        for (int i = 0; i < TRACKED_ACCOUNTS; i++) {
+            if (accounts[i] == account) {
+                counters[i]++;
+                found = true;
+                break;
+            }
+            if (counters[i] < counters[minIdx]) {
+                minIdx = i;
+            }
+        }
+
+        if (!found) {
+            // replace least loaded account, inheriting its counter (space-saving)
+            accounts[minIdx] = account;
+            counters[minIdx]++;
+        }
+
+        if ((ops & PUBLISH_MASK) == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * @return pairs of (account, estimated operations per publishing period), most loaded first
+     */
+    public long[] getHotAccounts() {
+        return hotAccounts;
+    }
+
+    private void publish() {
+
+        final Integer[] order = new Integer[TRACKED_ACCOUNTS];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> Long.compare(counters[b], counters[a]));
+
+        final long[] result = new long[TRACKED_ACCOUNTS * 2];
+        int n = 0;
+        for (final int i : order) {
+            if (counters[i] != 0) {
+                result[n++] = accounts[i];
+                result[n++] = counters[i] * (SAMPLE_MASK + 1);
+            }
+        }
+
+        hotAccounts = Arrays.copyOf(result, n);
+
+        // decay, so recent load dominates
+        for (int i = 0; i < TRACKED_ACCOUNTS; i++) {
+            counters[i] >>= 1;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+/**
+ * Pending cross-shard transfers of the shard accounts (replaces per-account locks).
+ * <p>
+ * Stage 1 withdraws source amount immediately and registers pending debit (can be refunded by stage 2),
+ * destination registers pending credit (amount is known only after stage 2 reads other shard result).
+ * Refunds and credits can only increase the balance, so stage 1 checks withdrawals against conservative balance:
+ * if withdrawal fits, it succeeds regardless of pending transfers results, otherwise the message is parked
+ * until all preceding transfers of the account are settled. Settled amounts are applied immediately.
+ * <p>
+ * Accessed by Stage1 and Stage2 of the same shard (same thread).
+ */
+public final class AccountReservations {
+
+    private final AccountsProcessor accountsProcessor;
+
+    // account -> number of transfers waiting for stage 2
+    private final LongIntHashMap pendingDebits = new LongIntHashMap();
+    private final LongIntHashMap pendingCredits = new LongIntHashMap();
+
+    public AccountReservations(final AccountsProcessor accountsProcessor) {
+        this.accountsProcessor = accountsProcessor;
+    }
+
+    public void addPendingDebit(final long account) {
+        pendingDebits.addToValue(account, 1);
+    }
+
+    public void addPendingCredit(final long account) {
+        pendingCredits.addToValue(account, 1);
+    }
+
+    public boolean hasPending(final long account) {
+        return !isEmpty() && (pendingDebits.containsKey(account) || pendingCredits.containsKey(account));
+    }
+
+    /**
+     * @param refund amount to return to the account if transfer was rolled back, otherwise 0
+     */
+    public void settleDebit(final long account, final long refund) {
+        decrement(pendingDebits, account);
+        apply(account, refund);
+    }
+
+    /**
+     * @param credit amount to deposit, 0 if transfer failed
+     */
+    public void settleCredit(final long account, final long credit) {
+        decrement(pendingCredits, account);
+        apply(account, credit);
+    }
+
+    public boolean isEmpty() {
+        return pendingDebits.isEmpty() && pendingCredits.isEmpty();
+    }
+
+    public int getPendingDebitsNum() {
+        return pendingDebits.size();
+    }
+
+    public int getPendingCreditsNum() {
+        return pendingCredits.size();
+    }
+
+    private void apply(final long account, final long amount) {
+        if (amount != 0L) {
+            // account can not be closed or moved while it has pending transfers
+            accountsProcessor.depositAt(accountsProcessor.findAccount(account), amount);
+        }
+    }
+
+    private static void decrement(final LongIntHashMap counters, final long account) {
+        if (counters.addToValue(account, -1) == 0) {
+            counters.remove(account);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AccountReservations{debits=" + pendingDebits.size() + ", credits=" + pendingCredits.size() + '}';
+    }
+}
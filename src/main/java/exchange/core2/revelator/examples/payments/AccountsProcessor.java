@@ -1,17 +1,34 @@
 package exchange.core2.revelator.examples.payments;
 
 import org.agrona.collections.Hashing;
-import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class AccountsProcessor {
 
-    private final LongLongHashMap balances = new LongLongHashMap();
-    private final LongLongHashMap secrets = new LongLongHashMap();
-
     private static final Logger log = LoggerFactory.getLogger(AccountsProcessor.class);
 
+    /*
+     * Account handle - alternative account address issued by dense stores:
+     * [63] marker | [47..62] currency | [16..46] slot | [8..15] shard | [4..7] reserved | [0..3] check digit
+     * Check digit and currency are copied from account id, so handle is routed the same way.
+     */
+    private static final long HANDLE_MARKER = 1L << 63;
+    private static final int HANDLE_CURRENCY_SHIFT = 47;
+    private static final int HANDLE_SLOT_SHIFT = 16;
+    private static final int HANDLE_SHARD_SHIFT = 8;
+    private static final long CHECK_DIGIT_MASK = 0xFL;
+
+    private final IAccountsStore store;
+
+    public AccountsProcessor() {
+        this(new HeapAccountsStore());
+    }
+
+    public AccountsProcessor(final IAccountsStore store) {
+        this.store = store;
+    }
+
     @Deprecated
     public boolean transfer(final long accountFrom,
                             final long accountTo,
@@ -20,7 +37,7 @@ public final class AccountsProcessor {
             // TODO currency rate and fees
 
             // find first account and check NSF
-            final long availableFrom = balances.get(accountFrom);
+            final long availableFrom = getEncodedBalance(accountFrom);
             final long fromNewBalance = Math.subtractExact(availableFrom, amount);
 
 //                log.debug("TRANSFER {} available={} amountSubstract={}", accountFrom, availableFrom, amount);
@@ -31,12 +48,12 @@ public final class AccountsProcessor {
             }
 
             // find second account
-            final long balanceTo = balances.get(accountTo);
+            final long balanceTo = getEncodedBalance(accountTo);
             final long toNewBalance = Math.addExact(balanceTo, amount);
 
             // updated both accounts balances
-            balances.put(accountFrom, fromNewBalance);
-            balances.put(accountTo, toNewBalance); // TODO check if exists
+            putEncodedBalance(accountFrom, fromNewBalance);
+            putEncodedBalance(accountTo, toNewBalance); // TODO check if exists
 
             return true;
 
@@ -50,7 +67,7 @@ public final class AccountsProcessor {
     public boolean adjustBalance(final long account, final long amount) {
 
         try {
-            final long available = balances.get(account);
+            final long available = getEncodedBalance(account);
 //            long available = balances2.get(account);
 //            if (available == balances2.missingValue()) {
 //                available = 0;
@@ -62,7 +79,7 @@ public final class AccountsProcessor {
                     : Math.addExact(available, amount);
 
 //            balances.put(account, newBalance);
-            balances.put(account, newBalance);
+            putEncodedBalance(account, newBalance);
 
             return true;
 
@@ -75,19 +92,31 @@ public final class AccountsProcessor {
     // unsafe
     public boolean withdrawal(final long account, final long amount) {
 
-//            long b = -1 - balances.get(account);
-//            log.debug("WITHDRAWAL {} raw={} bal={} amount={}", account, balances.get(account), b, amount);
+        final int slot = findAccount(account);
+        if (slot == IAccountsStore.NOT_FOUND) {
+            log.debug("withdrawal (WO) failed - unknown account {}", account);
+            return false;
+        }
+
+        return withdrawalAt(slot, amount);
+    }
+
+    // unsafe
+    public boolean withdrawalAt(final int slot, final long amount) {
+
+//            long b = -1 - store.getBalance(slot);
+//            log.debug("WITHDRAWAL {} raw={} bal={} amount={}", store.getAccount(slot), store.getBalance(slot), b, amount);
 
         // decrement
-        final long newBalance = balances.addToValue(account, amount);
+        final long newBalance = store.addToBalance(slot, amount);
 
         // should stay negative (-1 = 0)
         if (newBalance >= 0) {
 
-            log.debug("withdrawal (WO) failed - NSF account={} amount={} resultingBalance={}", account, amount, -1 - balances.get(account));
+            log.debug("withdrawal (WO) failed - NSF account={} amount={} resultingBalance={}", store.getAccount(slot), amount, -1 - store.getBalance(slot));
 
             // revert
-            balances.addToValue(account, -amount);
+            store.addToBalance(slot, -amount);
             return false;
 
         } else {
@@ -99,43 +128,47 @@ public final class AccountsProcessor {
     // unsafe
     public boolean deposit(final long account, final long amount) {
 
-//            long b = -1 - balances.get(account);
-//            log.debug("DEPOSIT {} raw={} bal={} amount={}", account, balances.get(account), b, amount);
-
-        final long newEncodedBalance = balances.addToValue(account, -amount);
+        final int slot = findAccount(account);
+        if (slot == IAccountsStore.NOT_FOUND) {
+            log.debug("deposit (DO) failed - unknown account {}", account);
+            return false;
+        }
 
-        if (isNegativeOrRemoved(newEncodedBalance)) {
+        depositAt(slot, amount);
+        return true;
+    }
 
-            long b = -1 - balances.get(account);
-            final String errMsg = String.format("Unsafe operation: DEPOSIT (DO) account=%d  amount=%d encodedBalance=%d balance=%d", account, amount, balances.get(account), b);
-            throw new IllegalArgumentException(errMsg);
-        }
+    // unsafe - account must exist
+    public void depositAt(final int slot, final long amount) {
 
-        // if previous value was 0 - account did not exist
-        if (newEncodedBalance == -amount) {
+//            long b = -1 - store.getBalance(slot);
+//            log.debug("DEPOSIT {} raw={} bal={} amount={}", store.getAccount(slot), store.getBalance(slot), b, amount);
 
-            log.debug("deposit (DO) failed - unknown account {}", account);
+        final long newEncodedBalance = store.addToBalance(slot, -amount);
 
-            // revert change
-            balances.remove(account);
-            return false;
+        if (isNegativeOrRemoved(newEncodedBalance)) {
 
-        } else {
-            return true;
+            long b = -1 - newEncodedBalance;
+            final String errMsg = String.format("Unsafe operation: DEPOSIT (DO) account=%d  amount=%d encodedBalance=%d balance=%d", store.getAccount(slot), amount, newEncodedBalance, b);
+            throw new IllegalArgumentException(errMsg);
         }
     }
 
 
     public void balanceCorrection(final long account, final long amount) {
+        balanceCorrectionAt(store.findOrCreateSlot(account), amount);
+    }
 
-//            long b = -1 - balances.get(account);
-//            log.debug("CORRECTION {} raw={} bal={} amount={}", account, balances.get(account), b, amount);
+    public void balanceCorrectionAt(final int slot, final long amount) {
 
-        final long after = balances.addToValue(account, -amount);
+//            long b = -1 - store.getBalance(slot);
+//            log.debug("CORRECTION {} raw={} bal={} amount={}", store.getAccount(slot), store.getBalance(slot), b, amount);
+
+        final long after = store.addToBalance(slot, -amount);
 
         if (isNegativeOrRemoved(after)) {
             long b = -1 - after;
-            final String errMsg = String.format("Unsafe operation: CORR account=%d  amount=%d encodedBalance=%d balance=%d", account, amount, after, b);
+            final String errMsg = String.format("Unsafe operation: CORR account=%d  amount=%d encodedBalance=%d balance=%d", store.getAccount(slot), amount, after, b);
             throw new IllegalArgumentException(errMsg);
         }
     }
@@ -153,25 +186,25 @@ public final class AccountsProcessor {
 //                    accountSrc, accountDst, balances.get(accountSrc), balances.get(accountDst), b, b1, amountSrc, amountDst);
 
         // decrement source account balance
-        final long newBalanceSrc = balances.addToValue(accountSrc, amountSrc);
+        final long newBalanceSrc = addToEncodedBalance(accountSrc, amountSrc);
 
         // should stay negative (-1 value = 0 balance)
         if (newBalanceSrc >= 0) {
 
-            log.debug("withdrawal (TL) failed - NSF account={} amount={} resultingBalance={}", accountSrc, amountSrc, -1 - balances.get(accountSrc));
+            log.debug("withdrawal (TL) failed - NSF account={} amount={} resultingBalance={}", accountSrc, amountSrc, -1 - getEncodedBalance(accountSrc));
 
             // revert
-            balances.addToValue(accountSrc, -amountSrc);
+            addToEncodedBalance(accountSrc, -amountSrc);
             return false;
         }
 
-        final long newEncodedBalanceDst = balances.addToValue(accountDst, -amountDst);
+        final long newEncodedBalanceDst = addToEncodedBalance(accountDst, -amountDst);
 
         if (isNegativeOrRemoved(newEncodedBalanceDst)) {
 
-            long b = -1 - balances.get(accountDst);
+            long b = -1 - getEncodedBalance(accountDst);
             final String errMsg = String.format("Unsafe operation: DEPOSIT (DO) account=%d  amount=%d encodedBalance=%d balance=%d",
-                    accountDst, amountDst, balances.get(accountDst), b);
+                    accountDst, amountDst, getEncodedBalance(accountDst), b);
 
             throw new IllegalArgumentException(errMsg);
         }
@@ -183,36 +216,133 @@ public final class AccountsProcessor {
             log.debug("deposit (TL) failed - unknown account {}", accountDst);
 
             // revert balance change
-            balances.remove(accountDst);
+            closeAccount(accountDst);
 
             // revert source balance change
-            balances.addToValue(accountSrc, -amountSrc);
+            addToEncodedBalance(accountSrc, -amountSrc);
             return false;
         }
 
         return true;
     }
 
-    public void openNewAccount(final long account, final long secret) {
-        balances.put(account, -1);
-        secrets.put(account, secret);
+    /**
+     * @return slot of the new account
+     */
+    public int openNewAccount(final long account, final long secret) {
+        final int slot = store.findOrCreateSlot(account);
+        store.setBalance(slot, -1);
+        store.setSecret(slot, secret);
+        // slot of closed account can be reused
+        store.setNonce(slot, 0L);
+        return slot;
+    }
+
+    /**
+     * Restore account record from snapshot (closed accounts are restored too, keeping dense slots numbering).
+     */
+    public void restoreAccount(final long account, final long encodedBalance, final long secret, final long nonce) {
+        final int slot = store.findOrCreateSlot(account);
+        store.setBalance(slot, encodedBalance);
+        store.setSecret(slot, secret);
+        store.setNonce(slot, nonce);
+    }
+
+    /**
+     * Iterate open accounts (encoded balance, secret and nonce as stored). Store must not be modified by consumer.
+     */
+    public void forEachAccount(final IAccountsStore.AccountConsumer consumer) {
+        store.forEachAccount(consumer);
+    }
+
+    public boolean isDenseSlots() {
+        return store.isDense();
+    }
+
+    /**
+     * Find slot of existing account. Slot can be reused for further operations with the same account
+     * until layout version is changed.
+     *
+     * Account handle is resolved directly into dense slot (no hashing), check digit and currency are validated.
+     *
+     * @return slot, or NOT_FOUND if account does not exist or closed
+     */
+    public int findAccount(final long account) {
+
+        final int slot = isAccountHandle(account)
+                ? resolveHandle(account)
+                : store.findSlot(account);
+
+        return (slot == IAccountsStore.NOT_FOUND || store.getBalance(slot) == 0) ? IAccountsStore.NOT_FOUND : slot;
+    }
+
+    /**
+     * @return account id of the slot (account can be requested by handle)
+     */
+    public long getAccountAt(final int slot) {
+        return store.getAccount(slot);
+    }
+
+    private int resolveHandle(final long handle) {
+
+        if (!store.isDense()) {
+            return IAccountsStore.NOT_FOUND;
+        }
+
+        final int slot = (int) ((handle >>> HANDLE_SLOT_SHIFT) & Integer.MAX_VALUE);
+        if (slot >= store.size()) {
+            return IAccountsStore.NOT_FOUND;
+        }
+
+        final long account = store.getAccount(slot);
+        if ((account & CHECK_DIGIT_MASK) != (handle & CHECK_DIGIT_MASK) || extractCurrency(account) != extractCurrency(handle)) {
+            log.debug("Handle {} does not match account {} in slot {}", handle, account, slot);
+            return IAccountsStore.NOT_FOUND;
+        }
+
+        return slot;
+    }
+
+    public int getLayoutVersion() {
+        return store.getLayoutVersion();
     }
 
     public long getSecret(final long account){
         // assume 0L is valid secret - just don't let clients using it
-        return secrets.get(account);
+        final int slot = store.findSlot(account);
+        return slot == IAccountsStore.NOT_FOUND ? 0L : store.getSecret(slot);
+    }
+
+    public long getEncodedBalanceAt(final int slot) {
+        return store.getBalance(slot);
+    }
+
+    public long getSecretAt(final int slot) {
+        return store.getSecret(slot);
+    }
+
+    public long getNonceAt(final int slot) {
+        return store.getNonce(slot);
+    }
+
+    public void setNonceAt(final int slot, final long nonce) {
+        store.setNonce(slot, nonce);
     }
 
     public boolean accountExists(final long account) {
-        return balances.get(account) != 0;
+        return getEncodedBalance(account) != 0;
     }
 
     public boolean accountNotExists(final long account) {
-        return balances.get(account) == 0;
+        return getEncodedBalance(account) == 0;
     }
 
     public boolean accountHasZeroBalance(final long account) {
-        return balances.get(account) == -1;
+        return getEncodedBalance(account) == -1;
+    }
+
+    public boolean accountHasZeroBalanceAt(final int slot) {
+        return store.getBalance(slot) == -1;
     }
 
     public boolean isNegativeOrRemoved(final long encodedAmount) {
@@ -220,13 +350,36 @@ public final class AccountsProcessor {
     }
 
     public void closeAccount(final long account) {
-        balances.remove(account);
+        final int slot = store.findSlot(account);
+        if (slot != IAccountsStore.NOT_FOUND) {
+            closeAccountAt(slot);
+        }
+    }
+
+    /**
+     * Closing account can trigger maintenance step of the store, so slot is not valid after this call.
+     */
+    public void closeAccountAt(final int slot) {
+        store.setBalance(slot, 0L);
+        store.housekeeping();
+    }
+
+    /**
+     * Bounded store maintenance (see {@link IAccountsStore#housekeeping()}), must be called between messages,
+     * when no found slots are in use.
+     */
+    public void housekeeping() {
+        store.housekeeping();
+    }
+
+    public IAccountsStore getStore() {
+        return store;
     }
 
     public long getBalance(final long account) {
 
         // not balance yet
-        final long value = balances.get(account);
+        final long value = getEncodedBalance(account);
         if (value == 0) {
             throw new RuntimeException("Account does not exist");
         }
@@ -234,6 +387,19 @@ public final class AccountsProcessor {
         return -1 - value;
     }
 
+    private long getEncodedBalance(final long account) {
+        final int slot = store.findSlot(account);
+        return slot == IAccountsStore.NOT_FOUND ? 0L : store.getBalance(slot);
+    }
+
+    private long addToEncodedBalance(final long account, final long delta) {
+        return store.addToBalance(store.findOrCreateSlot(account), delta);
+    }
+
+    private void putEncodedBalance(final long account, final long encodedBalance) {
+        store.setBalance(store.findOrCreateSlot(account), encodedBalance);
+    }
+
 
     public static long mapToAccount(long clientId, int currencyId, int accountNum) {
 
@@ -255,9 +421,48 @@ public final class AccountsProcessor {
         return accountRaw | checkDigit;
     }
 
+    public static long toAccountHandle(final long account, final int slot, final int shardIndex) {
+
+        return HANDLE_MARKER
+                | (((long) extractCurrency(account) & 0xFFFF) << HANDLE_CURRENCY_SHIFT)
+                | ((long) slot << HANDLE_SLOT_SHIFT)
+                | ((long) (shardIndex & 0xFF) << HANDLE_SHARD_SHIFT)
+                | (account & CHECK_DIGIT_MASK);
+    }
+
+    public static boolean isAccountHandle(final long account) {
+        return account < 0;
+    }
+
+    /**
+     * Successful open account result: low byte - result code (1), upper bits - dense slot + 1 (0 if store is not dense).
+     * Error results are negative codes.
+     */
+    public static long encodeOpenAccountSuccess(final int denseSlot) {
+        return ((long) (denseSlot + 1) << 8) | 1L;
+    }
+
+    public static int extractOpenAccountSlot(final long openAccountResult) {
+        return (openAccountResult > 0) ? (int) (openAccountResult >>> 8) - 1 : -1;
+    }
+
+    public static byte extractOpenAccountResultCode(final long openAccountResult) {
+        return (byte) openAccountResult;
+    }
+
+    public static int extractHandleShard(final long handle) {
+        return (int) (handle >>> HANDLE_SHARD_SHIFT) & 0xFF;
+    }
+
+    public static long extractClientId(final long accountId) {
+        return accountId >>> 28;
+    }
+
     public static short extractCurrency(long accountId) {
 
-        return (short) (accountId >> 12);
+        return isAccountHandle(accountId)
+                ? (short) (accountId >>> HANDLE_CURRENCY_SHIFT)
+                : (short) (accountId >> 12);
 
     }
 
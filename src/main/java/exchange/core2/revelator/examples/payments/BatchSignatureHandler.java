@@ -0,0 +1,145 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * Multi-lane SHA-256 of transfer signing messages, same digest as {@link SignatureHandler}.
+ * <p>
+ * Signed message is 5 longs (40 bytes), so it always fits single SHA-256 block.
+ * Up to {@link #LANES} messages are hashed interleaved: every round is applied to all lanes in a loop over int arrays,
+ * independent dependency chains keep execution units busy and the loops can be vectorized by JIT.
+ * Words are read straight from long values (no byte buffers).
+ * <p>
+ * Not thread safe !
+ */
+public final class BatchSignatureHandler {
+
+    public static final int LANES = 8;
+
+    // 40 bytes of message, followed by padding bit
+    private static final int MESSAGE_BITS = 40 * 8;
+
+    // message schedule, [round * LANES + lane]
+    private final int[] w = new int[64 * LANES];
+
+    // working variables, then digest, [variable * LANES + lane]
+    private final int[] state = new int[8 * LANES];
+
+    /**
+     * Put message into lane, digest is calculated by {@link #digest()}.
+     */
+    public void setMessage(final int lane,
+                           final long sourceAccount,
+                           final long destinationAccount,
+                           final long amount,
+                           final short currency,
+                           final TransferType transferType,
+                           final long secret) {
+
+        setMessage(lane, sourceAccount, destinationAccount, amount, ITransferAuthScheme.currencyAndType(currency, transferType), secret);
+    }
+
+    /**
+     * Hash all lanes (unused lanes are hashed too, it costs the same as skipping them).
+     */
+    public void digest() {
+
+        for (int t = 16; t < 64; t++) {
+            final int base = t * LANES;
+            for (int l = 0; l < LANES; l++) {
+                final int w2 = w[base - 2 * LANES + l];
+                final int w15 = w[base - 15 * LANES + l];
+                final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+                final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+                w[base + l] = s1 + w[base - 7 * LANES + l] + s0 + w[base - 16 * LANES + l];
+            }
+        }
+
+        final int[] st = state;
+
+        for (int v = 0; v < 8; v++) {
+            for (int l = 0; l < LANES; l++) {
+                st[v * LANES + l] = Sha256Block.H0[v];
+            }
+        }
+
+        for (int t = 0; t < 64; t++) {
+            final int k = Sha256Block.K[t];
+            final int base = t * LANES;
+            for (int l = 0; l < LANES; l++) {
+                final int a = st[l];
+                final int b = st[LANES + l];
+                final int c = st[2 * LANES + l];
+                final int d = st[3 * LANES + l];
+                final int e = st[4 * LANES + l];
+                final int f = st[5 * LANES + l];
+                final int g = st[6 * LANES + l];
+                final int h = st[7 * LANES + l];
+
+                final int t1 = h
+                        + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                        + ((e & f) ^ (~e & g))
+                        + k
+                        + w[base + l];
+
+                final int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                        + ((a & b) ^ (a & c) ^ (b & c));
+
+                st[7 * LANES + l] = g;
+                st[6 * LANES + l] = f;
+                st[5 * LANES + l] = e;
+                st[4 * LANES + l] = d + t1;
+                st[3 * LANES + l] = c;
+                st[2 * LANES + l] = b;
+                st[LANES + l] = a;
+                st[l] = t1 + t2;
+            }
+        }
+
+        for (int v = 0; v < 8; v++) {
+            for (int l = 0; l < LANES; l++) {
+                st[v * LANES + l] += Sha256Block.H0[v];
+            }
+        }
+    }
+
+    /**
+     * @return word of digest (0..3) in the same format as {@link SignatureHandler#signTransfer}
+     */
+    public long getHashWord(final int lane, final int word) {
+        return ((long) state[(word * 2) * LANES + lane] << 32) | (state[(word * 2 + 1) * LANES + lane] & 0xFFFF_FFFFL);
+    }
+
+    public void getHash(final int lane, final long[] target, final int offset) {
+        for (int i = 0; i < 4; i++) {
+            target[offset + i] = getHashWord(lane, i);
+        }
+    }
+
+    /**
+     * Put message into lane, currency and type are encoded as in transfer message.
+     */
+    public void setMessage(final int lane,
+                           final long sourceAccount,
+                           final long destinationAccount,
+                           final long amount,
+                           final long currencyAndType,
+                           final long secret) {
+
+        // big-endian words, same as ByteBuffer in SignatureHandler
+        w[lane] = (int) (sourceAccount >>> 32);
+        w[LANES + lane] = (int) sourceAccount;
+        w[2 * LANES + lane] = (int) (destinationAccount >>> 32);
+        w[3 * LANES + lane] = (int) destinationAccount;
+        w[4 * LANES + lane] = (int) (amount >>> 32);
+        w[5 * LANES + lane] = (int) amount;
+        w[6 * LANES + lane] = (int) (currencyAndType >>> 32);
+        w[7 * LANES + lane] = (int) currencyAndType;
+        w[8 * LANES + lane] = (int) (secret >>> 32);
+        w[9 * LANES + lane] = (int) secret;
+        w[10 * LANES + lane] = Sha256Block.PADDING_WORD;
+        w[11 * LANES + lane] = 0;
+        w[12 * LANES + lane] = 0;
+        w[13 * LANES + lane] = 0;
+        w[14 * LANES + lane] = 0;
+        w[15 * LANES + lane] = MESSAGE_BITS;
+    }
+}
@@ -0,0 +1,115 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.fences.IFence;
+
+/**
+ * Progress of several processors (usually Stage1 of all shards) as seen by a single consumer thread.
+ * <p>
+ * Last observed value of every fence is cached, fence itself is only read when cached value is behind requested offset,
+ * so in steady state most checks do not touch cache lines written by other threads.
+ * Cached values are padded to separate cache lines. Not thread safe - every consumer needs own instance.
+ */
+public final class CachingFencesArray {
+
+    // one cache line per cached value
+    private static final int STRIDE_BITS = 3;
+
+    private final IFence[] fences;
+    private final long[] cache;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long spins = 0;
+
+    /**
+     * @param fences fences array, can be filled after this object is created (array is not copied)
+     */
+    public CachingFencesArray(final IFence[] fences) {
+        this.fences = fences;
+        this.cache = new long[(fences.length + 2) << STRIDE_BITS];
+        for (int i = 0; i < fences.length; i++) {
+            cache[slot(i)] = -1L;
+        }
+    }
+
+    /**
+     * Non-blocking check, fence is read only if cached value is behind.
+     *
+     * @return true if processor has reached given offset
+     */
+    public boolean isReached(final int fenceIndex, final long offset) {
+
+        final int slot = slot(fenceIndex);
+        if (cache[slot] >= offset) {
+            hits++;
+            return true;
+        }
+
+        misses++;
+        final long available = fences[fenceIndex].getAcquire(cache[slot]);
+        cache[slot] = available;
+        return available >= offset;
+    }
+
+    /**
+     * Wait until processor reaches given offset.
+     */
+    public void await(final int fenceIndex, final long offset) {
+
+        final int slot = slot(fenceIndex);
+        if (cache[slot] >= offset) {
+            hits++;
+            return;
+        }
+
+        misses++;
+        final IFence fence = fences[fenceIndex];
+        long available;
+        while ((available = fence.getAcquire(cache[slot])) < offset) {
+            Thread.onSpinWait();
+            spins++;
+        }
+        cache[slot] = available;
+    }
+
+    public int size() {
+        return fences.length;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getSpins() {
+        return spins;
+    }
+
+    /**
+     * Forget cached values (fences were reset).
+     */
+    public void reset() {
+        for (int i = 0; i < fences.length; i++) {
+            cache[slot(i)] = -1L;
+        }
+    }
+
+    public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        spins = 0;
+    }
+
+    private static int slot(final int fenceIndex) {
+        // first line is left empty to keep values away from array header
+        return (fenceIndex + 1) << STRIDE_BITS;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingFencesArray{size=" + fences.length + ", hits=" + hits + ", misses=" + misses + ", spins=" + spins + '}';
+    }
+}
@@ -0,0 +1,43 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.BitUtil;
+
+/**
+ * Routes by low bits of account id - check digit produced by {@link AccountsProcessor#mapToAccount}.
+ * Only power of two number of shards, up to 16 (check digit has 4 bits).
+ */
+public final class CheckDigitShardRouter implements IShardRouter {
+
+    private static final int MAX_SHARDS = 16;
+
+    private final int shardsNum;
+    private final long mask;
+
+    public CheckDigitShardRouter(final int shardsNum) {
+        if (!isSupported(shardsNum)) {
+            throw new IllegalArgumentException("Check digit routing requires power of 2 shards number up to " + MAX_SHARDS);
+        }
+        this.shardsNum = shardsNum;
+        this.mask = shardsNum - 1;
+    }
+
+    public static boolean isSupported(final int shardsNum) {
+        return shardsNum <= MAX_SHARDS && BitUtil.isPowerOfTwo(shardsNum);
+    }
+
+    @Override
+    public int shardOf(final long account) {
+        // handle has the same check digit as account id, so it is routed the same way
+        return (int) (account & mask);
+    }
+
+    @Override
+    public int getShardsNum() {
+        return shardsNum;
+    }
+
+    @Override
+    public String toString() {
+        return "CheckDigitShardRouter{shardsNum=" + shardsNum + '}';
+    }
+}
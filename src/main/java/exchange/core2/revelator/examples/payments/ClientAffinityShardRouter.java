@@ -0,0 +1,36 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.collections.Hashing;
+
+/**
+ * Routes by client id, so all currency accounts of the same client are handled by the same shard
+ * and transfers between them (FX conversions) never go cross-shard. Supports any number of shards.
+ */
+public final class ClientAffinityShardRouter implements IShardRouter {
+
+    private final int shardsNum;
+
+    public ClientAffinityShardRouter(final int shardsNum) {
+        if (shardsNum < 1) {
+            throw new IllegalArgumentException("Shards number must be positive");
+        }
+        this.shardsNum = shardsNum;
+    }
+
+    @Override
+    public int shardOf(final long account) {
+        return AccountsProcessor.isAccountHandle(account)
+                ? AccountsProcessor.extractHandleShard(account)
+                : IShardRouter.reduce(Hashing.hash(AccountsProcessor.extractClientId(account)), shardsNum);
+    }
+
+    @Override
+    public int getShardsNum() {
+        return shardsNum;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientAffinityShardRouter{shardsNum=" + shardsNum + '}';
+    }
+}
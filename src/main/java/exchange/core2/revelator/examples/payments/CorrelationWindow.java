@@ -0,0 +1,279 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.BitUtil;
+import org.agrona.collections.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * Results of recent transfers of the shard source accounts, keyed by (correlationId, source account),
+ * so retried transfer returns original result code instead of being executed again.
+ * <p>
+ * Set-associative table in a single long[] array: every set has {@link #WAYS} entries, new entry replaces
+ * the oldest one of its set, so window is bounded and neither lookup nor insert allocates.
+ * Age is an insert sequence (not ring offset, which starts from 0 after restart), it is kept in snapshots.
+ * Entry is reserved as {@link #PENDING} when Stage1 first sees the transfer (in offset order, also if the transfer
+ * is parked), and completed when its result is known - after execution, or after Stage2 settles cross-shard transfer.
+ * Pending state never affects which entry is replaced, so contents only depend on order of reservations.
+ * <p>
+ * Retry found in the window waits for the original result, entry can be replaced meanwhile -
+ * then it is kept detached until all waiting retries read it. Detached list only grows if more retries
+ * wait for replaced entries at the same time than it ever had before.
+ * <p>
+ * Accessed by Stage1 and Stage2 of the same shard (same thread).
+ */
+public final class CorrelationWindow {
+
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+    public static final long PENDING = Long.MIN_VALUE + 1;
+
+    /**
+     * Reserved by transfer that was rejected before execution (authentication, missing account) - retry is executed.
+     */
+    public static final long VOID = Long.MIN_VALUE + 2;
+
+    /**
+     * Transfer result of the retry when original transfer succeeded (nothing is credited again).
+     */
+    public static final long REPEATED_SUCCESS = -2L;
+
+    public static final int WAYS = 4;
+
+    // (correlationId, account, insert sequence, result) per entry, sequence -1 - empty
+    private static final int ENTRY_WORDS = 4;
+    private static final int SET_WORDS = WAYS * ENTRY_WORDS;
+
+    private static final int E_CORRELATION_ID = 0;
+    private static final int E_ACCOUNT = 1;
+    private static final int E_SEQ = 2;
+    private static final int E_RESULT = 3;
+
+    private final long[] entries;
+    private final int setsMask;
+
+    // number of retries waiting for the entry result
+    private final int[] waiters;
+
+    // replaced entries with waiting retries
+    private long[] detached = new long[16 * ENTRY_WORDS];
+    private int[] detachedWaiters = new int[16];
+    private int detachedNum = 0;
+
+    private long insertSeq = 0L;
+
+    /**
+     * @param capacity number of remembered transfers (rounded up to power of two)
+     */
+    public CorrelationWindow(final int capacity) {
+        final int sets = BitUtil.findNextPositivePowerOfTwo(Math.max(capacity / WAYS, 1));
+        this.setsMask = sets - 1;
+        this.entries = new long[sets * SET_WORDS];
+        this.waiters = new int[sets * WAYS];
+        clear();
+    }
+
+    /**
+     * @return result of the transfer, PENDING if it is not known yet, VOID, or NOT_FOUND
+     */
+    public long find(final long correlationId, final long account) {
+        final int entry = findEntry(correlationId, account);
+        return entry == -1 ? NOT_FOUND : entries[entry + E_RESULT];
+    }
+
+    /**
+     * Reserve PENDING entry for new transfer, replacing the oldest entry of the set.
+     * VOID entry of the same transfer is reused (keeps its age).
+     *
+     * @return entry sequence
+     */
+    public long reserve(final long correlationId, final long account) {
+        final int entry = findEntry(correlationId, account);
+        if (entry != -1) {
+            entries[entry + E_RESULT] = PENDING;
+            return entries[entry + E_SEQ];
+        }
+        final long seq = insertSeq;
+        restore(correlationId, account, seq, PENDING);
+        return seq;
+    }
+
+    /**
+     * Register retry waiting for result of the entry, it must be released by {@link #removeWaiter}.
+     *
+     * @return entry sequence
+     */
+    public long addWaiter(final long correlationId, final long account) {
+        final int entry = findEntry(correlationId, account);
+        waiters[entry / ENTRY_WORDS]++;
+        return entries[entry + E_SEQ];
+    }
+
+    /**
+     * @return result of the entry with waiting retry (also if entry was replaced)
+     */
+    public long resolve(final long correlationId, final long account, final long seq) {
+        final int entry = findEntry(correlationId, account, seq);
+        if (entry != -1) {
+            return entries[entry + E_RESULT];
+        }
+        final int d = findDetached(correlationId, account, seq);
+        return d == -1 ? NOT_FOUND : detached[d + E_RESULT];
+    }
+
+    public void removeWaiter(final long correlationId, final long account, final long seq) {
+        final int entry = findEntry(correlationId, account, seq);
+        if (entry != -1) {
+            waiters[entry / ENTRY_WORDS]--;
+            return;
+        }
+        final int d = findDetached(correlationId, account, seq);
+        if (d != -1 && --detachedWaiters[d / ENTRY_WORDS] == 0) {
+            // keep detached entries packed
+            detachedNum--;
+            final int last = detachedNum * ENTRY_WORDS;
+            System.arraycopy(detached, last, detached, d, ENTRY_WORDS);
+            detachedWaiters[d / ENTRY_WORDS] = detachedWaiters[detachedNum];
+        }
+    }
+
+    /**
+     * Put entry copied by {@link #copyEntries} (keeps its age).
+     */
+    public void restore(final long correlationId, final long account, final long seq, final long result) {
+
+        final int set = setOf(correlationId, account);
+
+        int victim = set;
+        for (int e = set; e < set + SET_WORDS; e += ENTRY_WORDS) {
+            if (entries[e + E_SEQ] < entries[victim + E_SEQ]) {
+                victim = e;
+            }
+        }
+
+        if (waiters[victim / ENTRY_WORDS] != 0) {
+            detach(victim);
+        }
+
+        entries[victim + E_CORRELATION_ID] = correlationId;
+        entries[victim + E_ACCOUNT] = account;
+        entries[victim + E_SEQ] = seq;
+        entries[victim + E_RESULT] = result;
+
+        insertSeq = Math.max(insertSeq, seq + 1);
+    }
+
+    /**
+     * Set result of reserved entry (ignored if entry was already replaced and no retry waits for it).
+     */
+    public void complete(final long correlationId, final long account, final long seq, final long result) {
+        final int entry = findEntry(correlationId, account, seq);
+        if (entry != -1) {
+            entries[entry + E_RESULT] = result;
+            return;
+        }
+        final int d = findDetached(correlationId, account, seq);
+        if (d != -1) {
+            detached[d + E_RESULT] = result;
+        }
+    }
+
+    /**
+     * @return number of words required by {@link #copyEntries}
+     */
+    public int dataSize() {
+        return entries.length;
+    }
+
+    /**
+     * Copy used entries (correlationId, account, sequence, result) - used for taking snapshots.
+     *
+     * @return number of entries copied
+     */
+    public int copyEntries(final long[] target) {
+        int num = 0;
+        for (int e = 0; e < entries.length; e += ENTRY_WORDS) {
+            if (entries[e + E_SEQ] != -1L) {
+                System.arraycopy(entries, e, target, num * ENTRY_WORDS, ENTRY_WORDS);
+                num++;
+            }
+        }
+        return num;
+    }
+
+    /**
+     * Remove settled entries of the account (migrated to another shard) and pass them to consumer.
+     * Full scan - only used by migration, which is rare.
+     */
+    public void moveEntries(final long account, final EntryConsumer consumer) {
+        for (int e = 0; e < entries.length; e += ENTRY_WORDS) {
+            if (entries[e + E_ACCOUNT] == account && entries[e + E_SEQ] != -1L && entries[e + E_RESULT] != PENDING) {
+                consumer.accept(entries[e + E_CORRELATION_ID], account, entries[e + E_SEQ], entries[e + E_RESULT]);
+                Arrays.fill(entries, e, e + ENTRY_WORDS, 0L);
+                entries[e + E_SEQ] = -1L;
+            }
+        }
+    }
+
+    public void clear() {
+        for (int e = 0; e < entries.length; e += ENTRY_WORDS) {
+            Arrays.fill(entries, e, e + ENTRY_WORDS, 0L);
+            entries[e + E_SEQ] = -1L;
+        }
+        Arrays.fill(waiters, 0);
+        detachedNum = 0;
+        insertSeq = 0L;
+    }
+
+    private void detach(final int entry) {
+        if (detachedNum == detachedWaiters.length) {
+            detached = Arrays.copyOf(detached, detached.length * 2);
+            detachedWaiters = Arrays.copyOf(detachedWaiters, detachedWaiters.length * 2);
+        }
+        System.arraycopy(entries, entry, detached, detachedNum * ENTRY_WORDS, ENTRY_WORDS);
+        detachedWaiters[detachedNum] = waiters[entry / ENTRY_WORDS];
+        detachedNum++;
+        waiters[entry / ENTRY_WORDS] = 0;
+    }
+
+    private int findDetached(final long correlationId, final long account, final long seq) {
+        for (int d = 0; d < detachedNum * ENTRY_WORDS; d += ENTRY_WORDS) {
+            if (detached[d + E_CORRELATION_ID] == correlationId
+                    && detached[d + E_ACCOUNT] == account
+                    && detached[d + E_SEQ] == seq) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    private int findEntry(final long correlationId, final long account, final long seq) {
+        final int entry = findEntry(correlationId, account);
+        return entry != -1 && entries[entry + E_SEQ] == seq ? entry : -1;
+    }
+
+    private int findEntry(final long correlationId, final long account) {
+        final int set = setOf(correlationId, account);
+        for (int e = set; e < set + SET_WORDS; e += ENTRY_WORDS) {
+            if (entries[e + E_CORRELATION_ID] == correlationId
+                    && entries[e + E_ACCOUNT] == account
+                    && entries[e + E_SEQ] != -1L) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private int setOf(final long correlationId, final long account) {
+        return Hashing.hash(correlationId * 31 + account, setsMask) * SET_WORDS;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long correlationId, long account, long seq, long result);
+    }
+
+    @Override
+    public String toString() {
+        return "CorrelationWindow{capacity=" + (entries.length / ENTRY_WORDS) + '}';
+    }
+}
@@ -57,6 +57,10 @@ public final class CurrencyRateProcessor {
         return (currencyFrom << 16) + currencyTo;
     }
 
+    public int getRatesNum() {
+        return currencyRates.size();
+    }
+
     public void exportAllRates(RatesConsumer consumer) {
         currencyRates.forEachKeyValue((k, rate) -> consumer.accept((short) (k >> 16), (short) (k & 0x7FFF), rate));
     }
@@ -0,0 +1,312 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.collections.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * On-heap accounts store with dense slot numbering.
+ * <p>
+ * Slots are assigned sequentially when account is created and never change, so clients can
+ * address accounts by slot (see {@link AccountsProcessor#toAccountHandle}) and skip hashing completely.
+ * <p>
+ * Records are kept in dense long[] array (4 words per slot: account, encoded balance, secret, flags).
+ * Hash index (int[] of slot+1) is only used for lookups by account id.
+ * Index grows incrementally: entries are moved into the new index in small steps during following inserts.
+ */
+public final class DenseAccountsStore implements IAccountsStore {
+
+    private static final int SLOT_WORDS_BITS = 2;
+    private static final int SLOT_ACCOUNT = 0;
+    private static final int SLOT_BALANCE = 1;
+    private static final int SLOT_SECRET = 2;
+    private static final int SLOT_FLAGS = 3;
+
+    private static final int MIGRATION_STEP_ENTRIES = 64;
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] records;
+    private int size;
+
+    private int[] index;
+    private int indexMask;
+    private int indexResizeThreshold;
+    private int indexUsed;
+
+    // not null while index migration is in progress, entries below cursor are already migrated
+    private int[] oldIndex;
+    private int oldIndexMask;
+    private int migrationCursor;
+
+    private final DirtyPagesTracker dirtyPages;
+
+    public DenseAccountsStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity expected number of accounts, pre-sizing avoids records array copying
+     */
+    public DenseAccountsStore(final int initialCapacity) {
+        this.records = new long[Math.max(initialCapacity, 16) << SLOT_WORDS_BITS];
+        this.dirtyPages = new DirtyPagesTracker(Math.max(initialCapacity, 16));
+        allocateIndex(Integer.highestOneBit(Math.max(initialCapacity, 16)) << 2);
+    }
+
+    public static IAccountsStoreFactory factory(final int expectedAccountsPerShard) {
+        return new IAccountsStoreFactory() {
+            @Override
+            public IAccountsStore create(final int shardIndex) {
+                return new DenseAccountsStore(expectedAccountsPerShard);
+            }
+
+            @Override
+            public boolean issuesHandles() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public int findSlot(final long account) {
+
+        final int slot = findInIndex(index, indexMask, 0, account);
+
+        return (slot == NOT_FOUND && oldIndex != null) ? findInIndex(oldIndex, oldIndexMask, migrationCursor, account) : slot;
+    }
+
+    @Override
+    public int findOrCreateSlot(final long account) {
+
+        housekeeping();
+
+        final int found = findSlot(account);
+        if (found != NOT_FOUND) {
+            return found;
+        }
+
+        if (indexUsed == indexResizeThreshold) {
+            // can only happen if migration was started with almost full new index
+            completeMigration();
+            startMigration();
+        }
+
+        final int slot = size++;
+        final int base = slot << SLOT_WORDS_BITS;
+        if (base == records.length) {
+            // pre-size store to avoid copying records
+            records = Arrays.copyOf(records, records.length << 1);
+            dirtyPages.ensureCapacity(records.length >> SLOT_WORDS_BITS);
+        }
+
+        records[base + SLOT_ACCOUNT] = account;
+        records[base + SLOT_FLAGS] = FLAG_OCCUPIED;
+        insertIntoIndex(slot);
+        dirtyPages.mark(slot);
+        return slot;
+    }
+
+    /**
+     * Index is migrated incrementally, records are never relocated (layout version does not change).
+     */
+    @Override
+    public void housekeeping() {
+
+        if (oldIndex != null) {
+            migrateStep(MIGRATION_STEP_ENTRIES);
+        } else if (indexUsed >= indexResizeThreshold) {
+            startMigration();
+        }
+    }
+
+    @Override
+    public long getAccount(final int slot) {
+        return records[(slot << SLOT_WORDS_BITS) + SLOT_ACCOUNT];
+    }
+
+    @Override
+    public long getBalance(final int slot) {
+        return records[(slot << SLOT_WORDS_BITS) + SLOT_BALANCE];
+    }
+
+    @Override
+    public long addToBalance(final int slot, final long delta) {
+        dirtyPages.mark(slot);
+        return records[(slot << SLOT_WORDS_BITS) + SLOT_BALANCE] += delta;
+    }
+
+    @Override
+    public void setBalance(final int slot, final long encodedBalance) {
+        dirtyPages.mark(slot);
+        records[(slot << SLOT_WORDS_BITS) + SLOT_BALANCE] = encodedBalance;
+    }
+
+    @Override
+    public long getSecret(final int slot) {
+        return records[(slot << SLOT_WORDS_BITS) + SLOT_SECRET];
+    }
+
+    @Override
+    public void setSecret(final int slot, final long secret) {
+        dirtyPages.mark(slot);
+        records[(slot << SLOT_WORDS_BITS) + SLOT_SECRET] = secret;
+    }
+
+    @Override
+    public long getNonce(final int slot) {
+        return IAccountsStore.extractNonce(records[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS]);
+    }
+
+    @Override
+    public void setNonce(final int slot, final long nonce) {
+        dirtyPages.mark(slot);
+        records[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS] = IAccountsStore.encodeFlags(nonce);
+    }
+
+    @Override
+    public int getLayoutVersion() {
+        // records are never relocated
+        return 0;
+    }
+
+    @Override
+    public boolean isDense() {
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(records, 0, size << SLOT_WORDS_BITS, 0L);
+        size = 0;
+        oldIndex = null;
+        migrationCursor = 0;
+        allocateIndex(indexMask + 1);
+        dirtyPages.clear();
+    }
+
+    @Override
+    public int slotsDataSize() {
+        return size << SLOT_WORDS_BITS;
+    }
+
+    @Override
+    public int copySlots(final long[] target) {
+        final int words = size << SLOT_WORDS_BITS;
+        System.arraycopy(records, 0, target, 0, words);
+        dirtyPages.clear();
+        return words;
+    }
+
+    @Override
+    public int copyDirtySlots(final long[] target) {
+
+        final int limit = size << SLOT_WORDS_BITS;
+        int words = 0;
+
+        for (int page = dirtyPages.nextDirtyPage(0); page != -1; page = dirtyPages.nextDirtyPage(page + 1)) {
+            final int from = page << (DirtyPagesTracker.PAGE_SLOTS_BITS + SLOT_WORDS_BITS);
+            if (from >= limit) {
+                break;
+            }
+            final int len = Math.min(DirtyPagesTracker.PAGE_SLOTS << SLOT_WORDS_BITS, limit - from);
+            System.arraycopy(records, from, target, words, len);
+            words += len;
+        }
+
+        dirtyPages.clear();
+        return words;
+    }
+
+    @Override
+    public void forEachAccount(final AccountConsumer consumer) {
+        final int limit = size << SLOT_WORDS_BITS;
+        for (int base = 0; base < limit; base += 1 << SLOT_WORDS_BITS) {
+            if (records[base + SLOT_BALANCE] != 0L) {
+                consumer.accept(records[base + SLOT_ACCOUNT], records[base + SLOT_BALANCE], records[base + SLOT_SECRET],
+                        IAccountsStore.extractNonce(records[base + SLOT_FLAGS]));
+            }
+        }
+    }
+
+    private int findInIndex(final int[] idxTable, final int mask, final int cursor, final long account) {
+
+        // migrated entries are not cleared, so probing chains stay intact
+        int idx = Hashing.hash(account, mask);
+
+        while (true) {
+            final int entry = idxTable[idx];
+
+            if (entry == 0) {
+                return NOT_FOUND;
+            }
+
+            final int slot = entry - 1;
+            if (records[slot << SLOT_WORDS_BITS] == account) {
+                return idx >= cursor ? slot : NOT_FOUND;
+            }
+
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    private void insertIntoIndex(final int slot) {
+
+        int idx = Hashing.hash(records[slot << SLOT_WORDS_BITS], indexMask);
+        while (index[idx] != 0) {
+            idx = (idx + 1) & indexMask;
+        }
+
+        index[idx] = slot + 1;
+        indexUsed++;
+    }
+
+    private void allocateIndex(final int capacity) {
+        this.index = new int[capacity];
+        this.indexMask = capacity - 1;
+        this.indexResizeThreshold = capacity >> 1;
+        this.indexUsed = 0;
+    }
+
+    private void startMigration() {
+        oldIndex = index;
+        oldIndexMask = indexMask;
+        migrationCursor = 0;
+        allocateIndex((indexMask + 1) << 1);
+    }
+
+    private void migrateStep(final int maxEntries) {
+
+        final int oldCapacity = oldIndexMask + 1;
+        final int end = (int) Math.min((long) migrationCursor + maxEntries, oldCapacity);
+
+        for (int idx = migrationCursor; idx < end; idx++) {
+            final int entry = oldIndex[idx];
+            if (entry != 0) {
+                insertIntoIndex(entry - 1);
+            }
+        }
+
+        migrationCursor = end;
+
+        if (end == oldCapacity) {
+            oldIndex = null;
+        }
+    }
+
+    private void completeMigration() {
+        while (oldIndex != null) {
+            migrateStep(Integer.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DenseAccountsStore{size=" + size + ", indexCapacity=" + (indexMask + 1) + ", migrating=" + (oldIndex != null) + '}';
+    }
+}
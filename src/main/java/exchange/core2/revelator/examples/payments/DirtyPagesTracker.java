@@ -0,0 +1,76 @@
+package exchange.core2.revelator.examples.payments;
+
+import java.util.Arrays;
+
+/**
+ * Tracks pages of slots modified since last snapshot (one bit per page of 64 slots),
+ * so delta snapshot only needs to copy pages that were actually changed.
+ */
+public final class DirtyPagesTracker {
+
+    public static final int PAGE_SLOTS_BITS = 6;
+    public static final int PAGE_SLOTS = 1 << PAGE_SLOTS_BITS;
+
+    private long[] bitmap;
+
+    public DirtyPagesTracker(final int slotsCapacity) {
+        this.bitmap = new long[bitmapSize(slotsCapacity)];
+    }
+
+    public void mark(final int slot) {
+        final int page = slot >>> PAGE_SLOTS_BITS;
+        bitmap[page >>> 6] |= 1L << page;
+    }
+
+    public boolean isDirty(final int slot) {
+        final int page = slot >>> PAGE_SLOTS_BITS;
+        return (bitmap[page >>> 6] & (1L << page)) != 0;
+    }
+
+    /**
+     * Reset tracking for new capacity, all slots are considered dirty (used when slots are relocated).
+     */
+    public void resetAllDirty(final int slotsCapacity) {
+        bitmap = new long[bitmapSize(slotsCapacity)];
+        Arrays.fill(bitmap, -1L);
+    }
+
+    public void ensureCapacity(final int slotsCapacity) {
+        final int size = bitmapSize(slotsCapacity);
+        if (size > bitmap.length) {
+            bitmap = Arrays.copyOf(bitmap, size);
+        }
+    }
+
+    /**
+     * @return first dirty page starting from fromPage (inclusive), or -1 if none
+     */
+    public int nextDirtyPage(final int fromPage) {
+
+        int wordIdx = fromPage >>> 6;
+        if (wordIdx >= bitmap.length) {
+            return -1;
+        }
+
+        long word = bitmap[wordIdx] & (-1L << fromPage);
+
+        while (true) {
+            if (word != 0) {
+                return (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIdx == bitmap.length) {
+                return -1;
+            }
+            word = bitmap[wordIdx];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(bitmap, 0L);
+    }
+
+    private static int bitmapSize(final int slotsCapacity) {
+        final int pages = (slotsCapacity + PAGE_SLOTS - 1) >>> PAGE_SLOTS_BITS;
+        return (pages + 63) >>> 6;
+    }
+}
@@ -0,0 +1,137 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.Revelator;
+import exchange.core2.revelator.fences.IFence;
+import exchange.core2.revelator.fences.SingleWriterFence;
+import exchange.core2.revelator.processors.IFlowProcessor;
+import exchange.core2.revelator.processors.pipelined.PipelinedFlowSession;
+import exchange.core2.revelator.processors.pipelined.PipelinedStageHandler;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Pipelined processor that runs stage handlers only for messages from its shard queue (see {@link MessagesDispatcher}).
+ * <p>
+ * Same contract as PipelinedFlowProcessor: messages pass stages in order, stage returning false is retried later,
+ * next stage can only process messages completed by previous stage.
+ * Releasing fence covers foreign messages too: when pipeline is empty, everything routed by dispatcher is released.
+ * <p>
+ * Stages are interleaved by work: in every pass a stage processes up to {@link #PASS_WORK_BUDGET} / weight messages,
+ * weight is re-read every pass, so handlers reporting measured cost (see {@link StageCostMeter}) keep the pipeline balanced.
+ */
+public final class DispatchedFlowProcessor<S extends PipelinedFlowSession> implements IFlowProcessor {
+
+    private static final int PIPELINE_DEPTH = 64;
+
+    // work of one stage per pass (whole pipeline for stage with weight 10)
+    private static final int PASS_WORK_BUDGET = PIPELINE_DEPTH * 10;
+
+    private final PipelinedStageHandler<S>[] stages;
+    private final S[] sessions;
+    private final int sessionsMask;
+
+    private final ShardMessagesQueue queue;
+    private final IFence dispatcherFence;
+
+    private final SingleWriterFence releasingFence = new SingleWriterFence();
+
+    @SuppressWarnings("unchecked")
+    public DispatchedFlowProcessor(final List<? extends PipelinedStageHandler<S>> stageHandlers,
+                                   final Supplier<S> sessionFactory,
+                                   final ShardMessagesQueue queue,
+                                   final IFence dispatcherFence) {
+
+        this.stages = stageHandlers.toArray(new PipelinedStageHandler[0]);
+        this.sessions = (S[]) new PipelinedFlowSession[PIPELINE_DEPTH];
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            sessions[i] = sessionFactory.get();
+        }
+        this.sessionsMask = PIPELINE_DEPTH - 1;
+        this.queue = queue;
+        this.dispatcherFence = dispatcherFence;
+    }
+
+    public IFence getReleasingFence() {
+        return releasingFence;
+    }
+
+    @Override
+    public void run() {
+
+        final int lastStage = stages.length - 1;
+
+        // next queue sequence to be processed by every stage
+        final long[] cursors = new long[stages.length];
+
+        long fetched = 0L;
+        long published = 0L;
+        long dispatched = -1L;
+        long released = -1L;
+
+        while (true) {
+
+            // dispatcher publishes queue entries before its fence, so reading fence first gives consistent view
+            dispatched = dispatcherFence.getAcquire(dispatched);
+            published = queue.getPublished(published);
+
+            final long fetchLimit = Math.min(published, cursors[lastStage] + PIPELINE_DEPTH);
+            while (fetched < fetchLimit) {
+                final S session = sessions[(int) fetched & sessionsMask];
+                queue.read(fetched, session);
+                session.wordsLeftInBatch = (int) (fetchLimit - fetched - 1);
+                fetched++;
+            }
+
+            boolean progress = false;
+
+            for (int stage = 0; stage <= lastStage; stage++) {
+
+                final PipelinedStageHandler<S> handler = stages[stage];
+                final long available = stage == 0 ? fetched : cursors[stage - 1];
+                final long limit = Math.min(available, cursors[stage] + Math.max(1, PASS_WORK_BUDGET / Math.max(1, handler.getHitWorkWeight())));
+
+                long cursor = cursors[stage];
+                while (cursor < limit && handler.process(sessions[(int) cursor & sessionsMask])) {
+                    cursor++;
+                }
+
+                progress |= cursor != cursors[stage];
+                cursors[stage] = cursor;
+            }
+
+            final long completed = cursors[lastStage];
+
+            if (completed > 0 && sessions[(int) (completed - 1) & sessionsMask].messageType == Revelator.MSG_TYPE_POISON_PILL) {
+                releasingFence.setRelease(sessions[(int) (completed - 1) & sessionsMask].globalOffset);
+                return;
+            }
+
+            final long release;
+            if (completed < fetched) {
+                // everything before oldest message in the pipeline
+                release = sessions[(int) completed & sessionsMask].globalOffset - 1;
+            } else if (fetched == published) {
+                // pipeline is empty - all dispatched messages are either processed or not relevant
+                release = dispatched;
+            } else {
+                // next entries are not fetched yet
+                release = released;
+            }
+
+            if (release > released) {
+                releasingFence.setRelease(release);
+                released = release;
+            }
+
+            if (!progress) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchedFlowProcessor{stages=" + stages.length + '}';
+    }
+}
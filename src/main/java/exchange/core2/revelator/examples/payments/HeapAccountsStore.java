@@ -0,0 +1,451 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.BitUtil;
+import org.agrona.collections.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * On-heap accounts store.
+ * <p>
+ * Open addressing hash table with linear probing in a single long[] array.
+ * Each slot takes 4 words (32 bytes): account, encoded balance, secret, flags.
+ * <p>
+ * Table is never rehashed in one go: when it gets full (or too many closed accounts accumulated)
+ * new table is allocated and entries are migrated in small steps during housekeeping (inserts, closures and
+ * periodic calls by handlers, so read-only workloads complete migration too).
+ * While migrating, lookups check new table first, then not yet migrated part of the old table.
+ * Entry found in the old table is moved into new table right away, so returned slots always point into new table
+ * and stay valid until next migration starts - layout version changes once per migration.
+ * Closed accounts (tombstones) are not copied into new table, so they are reclaimed.
+ */
+public final class HeapAccountsStore implements IAccountsStore {
+
+    private static final int SLOT_WORDS_BITS = 2;
+    private static final int SLOT_ACCOUNT = 0;
+    private static final int SLOT_BALANCE = 1;
+    private static final int SLOT_SECRET = 2;
+    private static final int SLOT_FLAGS = 3;
+
+    // old table is fully migrated long before new table reaches its resize threshold
+    private static final int MIGRATION_STEP_SLOTS = 64;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] table;
+    private int mask;
+    private int resizeThreshold;
+    private int tableUsed;
+    private DirtyPagesTracker dirtyPages;
+
+    // not null while migration is in progress, slots below cursor are already migrated or reclaimed
+    private long[] oldTable;
+    private int oldMask;
+    private int migrationCursor;
+    private DirtyPagesTracker oldDirtyPages;
+
+    // old slots above cursor that were moved by lookup, [oldSlot >> 6] bitmap
+    private long[] movedEarly;
+
+    // reclaimed accounts that were closed after last snapshot (delta snapshot must still include them)
+    private long[] reclaimedDirty = new long[16];
+    private int reclaimedDirtyNum;
+
+    // occupied slots in both tables, including closed accounts
+    private int size;
+
+    // occupied slots with zero encoded balance
+    private int tombstones;
+
+    private int layoutVersion;
+
+    public HeapAccountsStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity expected number of accounts, pre-sizing avoids migrations
+     */
+    public HeapAccountsStore(final int initialCapacity) {
+        allocate(BitUtil.findNextPositivePowerOfTwo(Math.max(initialCapacity * 2, 16)));
+    }
+
+    public static IAccountsStoreFactory factory(final int expectedAccountsPerShard) {
+        return shardIndex -> new HeapAccountsStore(expectedAccountsPerShard);
+    }
+
+    @Override
+    public int findSlot(final long account) {
+
+        final int slot = findInTable(account);
+        if (slot != NOT_FOUND || oldTable == null) {
+            return slot;
+        }
+
+        final int oldSlot = findInOldTable(account);
+        return oldSlot == NOT_FOUND ? NOT_FOUND : moveEarly(oldSlot);
+    }
+
+    /**
+     * Move entry of not yet migrated part of old table into new table (slots of old table are never returned).
+     */
+    private int moveEarly(final int oldSlot) {
+        movedEarly[oldSlot >> 6] |= 1L << oldSlot;
+        return relocate(oldSlot);
+    }
+
+    @Override
+    public int findOrCreateSlot(final long account) {
+
+        // step before lookup, so returned slot stays valid for the caller
+        housekeeping();
+
+        final int found = findSlot(account);
+        if (found != NOT_FOUND) {
+            return found;
+        }
+
+        if (tableUsed >= resizeThreshold) {
+            // can only happen if migration started with almost full new table (lots of restored tombstones)
+            completeMigration();
+            startMigration();
+        }
+
+        int slot = Hashing.hash(account, mask);
+        while (table[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS] != 0L) {
+            slot = (slot + 1) & mask;
+        }
+
+        final int base = slot << SLOT_WORDS_BITS;
+        table[base + SLOT_ACCOUNT] = account;
+        table[base + SLOT_FLAGS] = FLAG_OCCUPIED;
+        tableUsed++;
+        size++;
+        tombstones++;
+        dirtyPages.mark(slot);
+        return slot;
+    }
+
+    @Override
+    public long getAccount(final int slot) {
+        return table[(slot << SLOT_WORDS_BITS) + SLOT_ACCOUNT];
+    }
+
+    @Override
+    public long getBalance(final int slot) {
+        return table[(slot << SLOT_WORDS_BITS) + SLOT_BALANCE];
+    }
+
+    @Override
+    public long addToBalance(final int slot, final long delta) {
+        dirtyPages.mark(slot);
+
+        final int idx = (slot << SLOT_WORDS_BITS) + SLOT_BALANCE;
+        final long encodedBalance = table[idx] + delta;
+        updateTombstones(table[idx], encodedBalance);
+
+        return table[idx] = encodedBalance;
+    }
+
+    @Override
+    public void setBalance(final int slot, final long encodedBalance) {
+        dirtyPages.mark(slot);
+
+        final int idx = (slot << SLOT_WORDS_BITS) + SLOT_BALANCE;
+        updateTombstones(table[idx], encodedBalance);
+
+        table[idx] = encodedBalance;
+    }
+
+    private void updateTombstones(final long before, final long after) {
+        if (before == 0L && after != 0L) {
+            tombstones--;
+        } else if (before != 0L && after == 0L) {
+            tombstones++;
+        }
+    }
+
+    @Override
+    public long getSecret(final int slot) {
+        return table[(slot << SLOT_WORDS_BITS) + SLOT_SECRET];
+    }
+
+    @Override
+    public void setSecret(final int slot, final long secret) {
+        dirtyPages.mark(slot);
+        table[(slot << SLOT_WORDS_BITS) + SLOT_SECRET] = secret;
+    }
+
+    @Override
+    public long getNonce(final int slot) {
+        return IAccountsStore.extractNonce(table[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS]);
+    }
+
+    @Override
+    public void setNonce(final int slot, final long nonce) {
+        dirtyPages.mark(slot);
+        table[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS] = IAccountsStore.encodeFlags(nonce);
+    }
+
+    @Override
+    public int getLayoutVersion() {
+        return layoutVersion;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        oldTable = null;
+        oldDirtyPages = null;
+        movedEarly = null;
+        migrationCursor = 0;
+        reclaimedDirtyNum = 0;
+        size = 0;
+        tombstones = 0;
+        allocate(mask + 1);
+        layoutVersion++;
+    }
+
+    @Override
+    public void housekeeping() {
+
+        if (oldTable != null) {
+            migrateStep(MIGRATION_STEP_SLOTS);
+        } else if (tableUsed >= resizeThreshold || tombstones > ((mask + 1) >> 3)) {
+            startMigration();
+        }
+    }
+
+    @Override
+    public int slotsDataSize() {
+        return table.length
+                + (oldTable != null ? oldTable.length : 0)
+                + (reclaimedDirtyNum << SLOT_WORDS_BITS);
+    }
+
+    @Override
+    public int copySlots(final long[] target) {
+
+        // moved entries are copied from old table too, new table goes last and overrides them on restore
+        int words = 0;
+        if (oldTable != null) {
+            final int from = migrationCursor << SLOT_WORDS_BITS;
+            System.arraycopy(oldTable, from, target, 0, oldTable.length - from);
+            words = oldTable.length - from;
+            oldDirtyPages.clear();
+        }
+
+        System.arraycopy(table, 0, target, words, table.length);
+        dirtyPages.clear();
+        reclaimedDirtyNum = 0;
+        return words + table.length;
+    }
+
+    @Override
+    public int copyDirtySlots(final long[] target) {
+
+        int words = 0;
+
+        // closed accounts go first, so reopened ones (new table) override them on restore
+        for (int i = 0; i < reclaimedDirtyNum; i++) {
+            target[words + SLOT_ACCOUNT] = reclaimedDirty[i];
+            target[words + SLOT_BALANCE] = 0L;
+            target[words + SLOT_SECRET] = 0L;
+            target[words + SLOT_FLAGS] = FLAG_OCCUPIED;
+            words += 1 << SLOT_WORDS_BITS;
+        }
+        reclaimedDirtyNum = 0;
+
+        if (oldTable != null) {
+            words = copyDirtyPages(oldTable, migrationCursor << SLOT_WORDS_BITS, oldDirtyPages, target, words);
+        }
+
+        return copyDirtyPages(table, 0, dirtyPages, target, words);
+    }
+
+    @Override
+    public void forEachAccount(final AccountConsumer consumer) {
+        if (oldTable != null) {
+            for (int oldSlot = migrationCursor; oldSlot <= oldMask; oldSlot++) {
+                if (!isMovedEarly(oldSlot)) {
+                    acceptSlot(oldTable, oldSlot << SLOT_WORDS_BITS, consumer);
+                }
+            }
+        }
+        for (int base = 0; base < table.length; base += 1 << SLOT_WORDS_BITS) {
+            acceptSlot(table, base, consumer);
+        }
+    }
+
+    private static void acceptSlot(final long[] t, final int base, final AccountConsumer consumer) {
+        if (t[base + SLOT_FLAGS] != 0L && t[base + SLOT_BALANCE] != 0L) {
+            consumer.accept(t[base + SLOT_ACCOUNT], t[base + SLOT_BALANCE], t[base + SLOT_SECRET], IAccountsStore.extractNonce(t[base + SLOT_FLAGS]));
+        }
+    }
+
+    private static int copyDirtyPages(final long[] source,
+                                      final int fromWord,
+                                      final DirtyPagesTracker tracker,
+                                      final long[] target,
+                                      int words) {
+
+        final int limit = source.length;
+
+        for (int page = tracker.nextDirtyPage(0); page != -1; page = tracker.nextDirtyPage(page + 1)) {
+            final int from = Math.max(page << (DirtyPagesTracker.PAGE_SLOTS_BITS + SLOT_WORDS_BITS), fromWord);
+            if (from >= limit) {
+                break;
+            }
+            final int to = Math.min((page + 1) << (DirtyPagesTracker.PAGE_SLOTS_BITS + SLOT_WORDS_BITS), limit);
+            if (from < to) {
+                System.arraycopy(source, from, target, words, to - from);
+                words += to - from;
+            }
+        }
+
+        tracker.clear();
+        return words;
+    }
+
+    private int findInTable(final long account) {
+
+        int slot = Hashing.hash(account, mask);
+
+        while (true) {
+            final int base = slot << SLOT_WORDS_BITS;
+
+            if (table[base + SLOT_FLAGS] == 0L) {
+                return NOT_FOUND;
+            }
+
+            if (table[base + SLOT_ACCOUNT] == account) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int findInOldTable(final long account) {
+
+        // migrated entries are not cleared, so probing chains stay intact
+        int slot = Hashing.hash(account, oldMask);
+
+        while (true) {
+            final int base = slot << SLOT_WORDS_BITS;
+
+            if (oldTable[base + SLOT_FLAGS] == 0L) {
+                return NOT_FOUND;
+            }
+
+            if (oldTable[base + SLOT_ACCOUNT] == account) {
+                // already migrated (or moved) entry would be found in new table, so this one was reclaimed
+                return (slot >= migrationCursor && !isMovedEarly(slot)) ? slot : NOT_FOUND;
+            }
+
+            slot = (slot + 1) & oldMask;
+        }
+    }
+
+    private void startMigration() {
+
+        final int capacity = mask + 1;
+
+        oldTable = table;
+        oldMask = mask;
+        oldDirtyPages = dirtyPages;
+        migrationCursor = 0;
+        movedEarly = new long[Math.max(capacity >> 6, 1)];
+
+        // grow only if live accounts need it, otherwise just compact tombstones
+        final int live = size - tombstones;
+        allocate(live > (capacity >> 2) ? capacity << 1 : capacity);
+
+        // all found slots pointed into the table that became old
+        layoutVersion++;
+    }
+
+    private void migrateStep(final int maxSlots) {
+
+        final int oldCapacity = oldMask + 1;
+        final int end = (int) Math.min((long) migrationCursor + maxSlots, oldCapacity);
+
+        for (int oldSlot = migrationCursor; oldSlot < end; oldSlot++) {
+
+            final int oldBase = oldSlot << SLOT_WORDS_BITS;
+            if (oldTable[oldBase + SLOT_FLAGS] == 0L || isMovedEarly(oldSlot)) {
+                continue;
+            }
+
+            if (oldTable[oldBase + SLOT_BALANCE] == 0L) {
+                // closed account - reclaim
+                if (oldDirtyPages.isDirty(oldSlot)) {
+                    addReclaimedDirty(oldTable[oldBase + SLOT_ACCOUNT]);
+                }
+                size--;
+                tombstones--;
+                continue;
+            }
+
+            relocate(oldSlot);
+        }
+
+        migrationCursor = end;
+
+        if (end == oldCapacity) {
+            // no slot of old table was ever returned, so layout version stays the same
+            oldTable = null;
+            oldDirtyPages = null;
+            movedEarly = null;
+        }
+    }
+
+    private int relocate(final int oldSlot) {
+
+        final int oldBase = oldSlot << SLOT_WORDS_BITS;
+
+        int slot = Hashing.hash(oldTable[oldBase + SLOT_ACCOUNT], mask);
+        while (table[(slot << SLOT_WORDS_BITS) + SLOT_FLAGS] != 0L) {
+            slot = (slot + 1) & mask;
+        }
+
+        System.arraycopy(oldTable, oldBase, table, slot << SLOT_WORDS_BITS, 1 << SLOT_WORDS_BITS);
+        tableUsed++;
+        dirtyPages.mark(slot);
+        return slot;
+    }
+
+    private boolean isMovedEarly(final int oldSlot) {
+        return (movedEarly[oldSlot >> 6] & (1L << oldSlot)) != 0L;
+    }
+
+    private void completeMigration() {
+        while (oldTable != null) {
+            migrateStep(Integer.MAX_VALUE);
+        }
+    }
+
+    private void addReclaimedDirty(final long account) {
+        if (reclaimedDirtyNum == reclaimedDirty.length) {
+            reclaimedDirty = Arrays.copyOf(reclaimedDirty, reclaimedDirtyNum << 1);
+        }
+        reclaimedDirty[reclaimedDirtyNum++] = account;
+    }
+
+    private void allocate(final int capacity) {
+        this.table = new long[capacity << SLOT_WORDS_BITS];
+        this.mask = capacity - 1;
+        this.resizeThreshold = capacity >> 1;
+        this.tableUsed = 0;
+        this.dirtyPages = new DirtyPagesTracker(capacity);
+    }
+
+    @Override
+    public String toString() {
+        return "HeapAccountsStore{size=" + size + ", capacity=" + (mask + 1) + ", migrating=" + (oldTable != null) + '}';
+    }
+}
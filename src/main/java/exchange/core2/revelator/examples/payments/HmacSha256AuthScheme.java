@@ -0,0 +1,106 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * HMAC-SHA256 transfer authentication, key is 8 bytes of secret (big-endian),
+ * message is source, destination, amount, (currency << 8 | type) (32 bytes).
+ * <p>
+ * Key pads of the last secret are cached, so consecutive transfers from the same account take 2 compressions instead of 4.
+ * Not thread safe !
+ */
+public final class HmacSha256AuthScheme implements ITransferAuthScheme {
+
+    private static final int IPAD = 0x36363636;
+    private static final int OPAD = 0x5c5c5c5c;
+
+    // key block + 32 bytes
+    private static final int HASHED_BITS = (64 + 32) * 8;
+
+    private final int[] w = new int[64];
+    private final int[] state = new int[8];
+
+    // hash states after key blocks
+    private final int[] innerKeyState = new int[8];
+    private final int[] outerKeyState = new int[8];
+    private long cachedSecret = 0L;
+    private boolean cached = false;
+
+    @Override
+    public int signatureWords() {
+        return 4;
+    }
+
+    @Override
+    public void signTransfer(final long sourceAccount,
+                             final long destinationAccount,
+                             final long amount,
+                             final long currencyAndType,
+                             final long secret,
+                             final long[] target,
+                             final int offset) {
+
+        mac(sourceAccount, destinationAccount, amount, currencyAndType, secret);
+
+        for (int i = 0; i < 4; i++) {
+            target[offset + i] = Sha256Block.getLong(state, i);
+        }
+    }
+
+    @Override
+    public boolean verifyTransfer(final long[] buffer, final int addr, final long secret) {
+
+        mac(buffer[addr], buffer[addr + 1], buffer[addr + 2], buffer[addr + 3], secret);
+
+        final int sig = addr + TRANSFER_FIELDS;
+        return Sha256Block.getLong(state, 0) == buffer[sig]
+                && Sha256Block.getLong(state, 1) == buffer[sig + 1]
+                && Sha256Block.getLong(state, 2) == buffer[sig + 2]
+                && Sha256Block.getLong(state, 3) == buffer[sig + 3];
+    }
+
+    private void mac(final long sourceAccount,
+                     final long destinationAccount,
+                     final long amount,
+                     final long currencyAndType,
+                     final long secret) {
+
+        if (!cached || secret != cachedSecret) {
+            keyState(innerKeyState, secret, IPAD);
+            keyState(outerKeyState, secret, OPAD);
+            cachedSecret = secret;
+            cached = true;
+        }
+
+        // inner: H((K ^ ipad) || message)
+        System.arraycopy(innerKeyState, 0, state, 0, 8);
+        Sha256Block.putLong(w, 0, sourceAccount);
+        Sha256Block.putLong(w, 2, destinationAccount);
+        Sha256Block.putLong(w, 4, amount);
+        Sha256Block.putLong(w, 6, currencyAndType);
+        finalBlock();
+        Sha256Block.compress(state, w);
+
+        // outer: H((K ^ opad) || inner)
+        System.arraycopy(state, 0, w, 0, 8);
+        System.arraycopy(outerKeyState, 0, state, 0, 8);
+        finalBlock();
+        Sha256Block.compress(state, w);
+    }
+
+    private void finalBlock() {
+        w[8] = Sha256Block.PADDING_WORD;
+        for (int i = 9; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = HASHED_BITS;
+    }
+
+    private void keyState(final int[] target, final long secret, final int pad) {
+        w[0] = (int) (secret >>> 32) ^ pad;
+        w[1] = (int) secret ^ pad;
+        for (int i = 2; i < 16; i++) {
+            w[i] = pad;
+        }
+        Sha256Block.init(target);
+        Sha256Block.compress(target, w);
+    }
+}
@@ -0,0 +1,142 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * Storage backend for accounts state of a single shard.
+ * <p>
+ * Account id, balance, secret and flags are co-located in a single slot,
+ * so one hash probe gives access to the whole account record.
+ * Slot stays valid until layout version is changed (table resize or compaction).
+ * <p>
+ * Balances are kept in encoded form: 0 means account does not exist (or closed),
+ * otherwise encoded value is (-1 - balance), so -1 is an existing account with zero balance.
+ * <p>
+ * Implementations are not thread safe and must not allocate on balance update operations.
+ */
+public interface IAccountsStore extends AutoCloseable {
+
+    int NOT_FOUND = -1;
+
+    /**
+     * Every slot is represented by 4 words in exported data: account, encoded balance, secret, flags.
+     * Slot with zero flags is empty. Flags: bit 0 - occupied, bits 1..63 - last accepted transfer nonce.
+     */
+    int SLOT_WORDS = 4;
+
+    long FLAG_OCCUPIED = 1L;
+
+    /**
+     * Lookup can move the entry inside the store (incremental migration), but never changes layout version.
+     *
+     * @return slot of the account, or NOT_FOUND if account was never stored
+     */
+    int findSlot(long account);
+
+    /**
+     * Find slot or create empty one (zero encoded balance and secret).
+     * Creating a slot can change layout version.
+     */
+    int findOrCreateSlot(long account);
+
+    long getAccount(int slot);
+
+    /**
+     * @return encoded balance
+     */
+    long getBalance(int slot);
+
+    /**
+     * @return new encoded balance
+     */
+    long addToBalance(int slot, long delta);
+
+    void setBalance(int slot, long encodedBalance);
+
+    long getSecret(int slot);
+
+    void setSecret(int slot, long secret);
+
+    /**
+     * @return last accepted transfer nonce (0 - nonce was never used)
+     */
+    long getNonce(int slot);
+
+    void setNonce(int slot, long nonce);
+
+    /**
+     * Perform bounded amount of deferred maintenance work (incremental rehash, closed accounts reclamation).
+     * Can change layout version, so must not be called while found slots are still in use.
+     * Called on inserts and closures, and periodically by message handlers between messages.
+     */
+    default void housekeeping() {
+    }
+
+    /**
+     * Incremented every time when slots are relocated, so previously found slots can not be used anymore.
+     */
+    int getLayoutVersion();
+
+    /**
+     * Dense stores assign sequential slot numbers [0..size) that never change,
+     * so slots can be handed out to clients.
+     */
+    default boolean isDense() {
+        return false;
+    }
+
+    /**
+     * @return number of created slots
+     */
+    int size();
+
+    /**
+     * Remove all slots, capacity is kept. Changes layout version.
+     * Used by recovery, because persistent store can keep state of the previous run that is newer than the snapshot.
+     */
+    void clear();
+
+    /**
+     * @return number of words target must fit for {@link #copySlots(long[])} and {@link #copyDirtySlots(long[])}
+     */
+    int slotsDataSize();
+
+    /**
+     * Copy raw slots data (SLOT_WORDS per slot, in slot order) - used for taking full snapshots.
+     * Resets dirty pages tracking. Target must fit slotsDataSize() words.
+     *
+     * @return number of words copied (can be less than slotsDataSize())
+     */
+    int copySlots(long[] target);
+
+    /**
+     * Copy raw data of slot pages modified since previous copy (SLOT_WORDS per slot, ascending slot order) - used for delta snapshots.
+     * Resets dirty pages tracking. Target must fit slotsDataSize() words.
+     *
+     * @return number of words copied
+     */
+    int copyDirtySlots(long[] target);
+
+    /**
+     * Visit all existing (not closed) accounts. Store must not be modified by consumer.
+     */
+    void forEachAccount(AccountConsumer consumer);
+
+    @FunctionalInterface
+    interface AccountConsumer {
+        void accept(long account, long encodedBalance, long secret, long nonce);
+    }
+
+    static long encodeFlags(final long nonce) {
+        return (nonce << 1) | FLAG_OCCUPIED;
+    }
+
+    static long extractNonce(final long flags) {
+        return flags >>> 1;
+    }
+
+    /**
+     * Release resources (unmap files etc). Store can not be used after closing.
+     */
+    @Override
+    default void close() {
+    }
+}
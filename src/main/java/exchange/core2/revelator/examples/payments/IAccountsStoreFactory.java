@@ -0,0 +1,18 @@
+package exchange.core2.revelator.examples.payments;
+
+@FunctionalInterface
+public interface IAccountsStoreFactory {
+
+    IAccountsStore create(int shardIndex);
+
+    /**
+     * Stores assign dense slots, so open account responses return account handles (addressing slot of particular shard).
+     */
+    default boolean issuesHandles() {
+        return false;
+    }
+
+    IAccountsStoreFactory HEAP = shardIndex -> new HeapAccountsStore();
+
+    IAccountsStoreFactory DENSE = DenseAccountsStore.factory(DenseAccountsStore.DEFAULT_CAPACITY);
+}
@@ -51,6 +51,11 @@ public interface IPaymentsResponseHandler {
 
         long getAccount();
 
+        /**
+         * @return handle addressing account by dense slot (can be used instead of account id), or 0 if not supported
+         */
+        long getAccountHandle();
+
     }
 
     interface ICloseAccountAccessor extends IRequestAccessor {
@@ -60,6 +65,26 @@ public interface IPaymentsResponseHandler {
     }
 
 
+    interface ISnapshotAccessor extends IRequestAccessor {
+
+        long getSnapshotId();
+
+    }
+
+    interface IMigrateAccountAccessor extends IRequestAccessor {
+
+        long getAccount();
+
+        int getTargetShard();
+
+    }
+
+    interface IReshardAccessor extends IRequestAccessor {
+
+        int getShardsNum();
+
+    }
+
     interface IUnsupportedAccessor extends IPaymentsResponseHandler.IRequestAccessor {
 
     }
@@ -0,0 +1,21 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * Maps account to the shard (handler thread) owning its state.
+ * <p>
+ * Account handles carry shard index assigned when account was opened, so handles are routed by that index
+ * regardless of strategy. Routing must not change between runs when snapshots or journal are recovered.
+ */
+public interface IShardRouter {
+
+    int shardOf(long account);
+
+    int getShardsNum();
+
+    /**
+     * Map 32 bits hash into [0..shardsNum) without division.
+     */
+    static int reduce(final int hash, final int shardsNum) {
+        return (int) (((hash & 0xFFFF_FFFFL) * shardsNum) >>> 32);
+    }
+}
@@ -0,0 +1,20 @@
+package exchange.core2.revelator.examples.payments;
+
+@FunctionalInterface
+public interface IShardRouterFactory {
+
+    IShardRouter create(int shardsNum);
+
+    IShardRouterFactory CHECK_DIGIT = CheckDigitShardRouter::new;
+
+    IShardRouterFactory ACCOUNT_HASH = AccountHashShardRouter::new;
+
+    IShardRouterFactory CLIENT_AFFINITY = ClientAffinityShardRouter::new;
+
+    /**
+     * Check digit routing (compatible with existing snapshots and journals) when possible, account hash otherwise.
+     */
+    IShardRouterFactory DEFAULT = shardsNum -> CheckDigitShardRouter.isSupported(shardsNum)
+            ? new CheckDigitShardRouter(shardsNum)
+            : new AccountHashShardRouter(shardsNum);
+}
@@ -0,0 +1,96 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * Authentication of transfer messages by source account secret.
+ * <p>
+ * Transfer message: source, destination, amount, (nonce << 24 | currency << 8 | type),
+ * followed by {@link #signatureWords()} words of signature. Nonce is optional (0 - not used), it is signed as part of the word.
+ * Fields are read directly from ring buffer. Implementations are not thread safe - every processor needs own instance.
+ */
+public interface ITransferAuthScheme {
+
+    int TRANSFER_FIELDS = 4;
+
+    long MAX_NONCE = (1L << 40) - 1;
+
+    /**
+     * @return number of signature words following transfer fields
+     */
+    int signatureWords();
+
+    void signTransfer(long sourceAccount,
+                      long destinationAccount,
+                      long amount,
+                      long currencyAndType,
+                      long secret,
+                      long[] target,
+                      int offset);
+
+    /**
+     * Verify signature, message size must be checked by caller (see {@link #checkTransfer}).
+     */
+    boolean verifyTransfer(long[] buffer, int addr, long secret);
+
+    default boolean checkTransfer(final long[] buffer, final int addr, final int msgSize, final long secret) {
+        return msgSize == TRANSFER_FIELDS + signatureWords() && verifyTransfer(buffer, addr, secret);
+    }
+
+    default long[] signTransfer(final long sourceAccount,
+                                final long destinationAccount,
+                                final long amount,
+                                final short currency,
+                                final TransferType transferType,
+                                final long secret) {
+
+        final long[] signature = new long[signatureWords()];
+        signTransfer(sourceAccount, destinationAccount, amount, currencyAndType(currency, transferType), secret, signature, 0);
+        return signature;
+    }
+
+    /**
+     * Sign several transfers at once, schemes can override it with multi-lane implementation.
+     *
+     * @param fields     transfer fields, {@link #TRANSFER_FIELDS} words per transfer
+     * @param secrets    source accounts secrets
+     * @param count      number of transfers
+     * @param signatures target, {@link #signatureWords()} words per transfer
+     */
+    default void signTransfers(final long[] fields, final long[] secrets, final int count, final long[] signatures) {
+        final int sigWords = signatureWords();
+        for (int i = 0; i < count; i++) {
+            final int f = i * TRANSFER_FIELDS;
+            signTransfer(fields[f], fields[f + 1], fields[f + 2], fields[f + 3], secrets[i], signatures, i * sigWords);
+        }
+    }
+
+    /**
+     * Verify several transfers at once, schemes can override it with multi-lane implementation.
+     * Message sizes must be checked by caller.
+     *
+     * @param addrs   transfer messages addresses in buffer
+     * @param secrets source accounts secrets
+     * @param count   number of transfers
+     * @param valid   target, verification result per transfer
+     */
+    default void verifyTransfers(final long[] buffer, final int[] addrs, final long[] secrets, final int count, final boolean[] valid) {
+        for (int i = 0; i < count; i++) {
+            valid[i] = verifyTransfer(buffer, addrs[i], secrets[i]);
+        }
+    }
+
+    static long currencyAndType(final short currency, final TransferType transferType) {
+        // currency is masked, otherwise negative (short) currency would fill nonce bits with ones
+        return ((long) (currency & 0xFFFF) << 8) | transferType.getCode();
+    }
+
+    static long currencyAndType(final short currency, final TransferType transferType, final long nonce) {
+        if (nonce < 0 || nonce > MAX_NONCE) {
+            throw new IllegalArgumentException("Nonce " + nonce + " is out of range");
+        }
+        return (nonce << 24) | ((long) (currency & 0xFFFF) << 8) | transferType.getCode();
+    }
+
+    static long extractNonce(final long currencyAndType) {
+        return currencyAndType >>> 24;
+    }
+}
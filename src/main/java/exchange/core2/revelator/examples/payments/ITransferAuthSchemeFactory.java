@@ -0,0 +1,24 @@
+package exchange.core2.revelator.examples.payments;
+
+@FunctionalInterface
+public interface ITransferAuthSchemeFactory {
+
+    ITransferAuthScheme create();
+
+    /**
+     * SHA-256 of transfer fields and secret, 4 words (compatible with existing journals).
+     */
+    ITransferAuthSchemeFactory SHA256 = SignatureHandler::new;
+
+    /**
+     * HMAC-SHA256 keyed by secret, 4 words.
+     */
+    ITransferAuthSchemeFactory HMAC_SHA256 = HmacSha256AuthScheme::new;
+
+    /**
+     * SipHash-2-4 with 128-bit output keyed by secret, 2 words (transfer message is 6 words).
+     */
+    ITransferAuthSchemeFactory SIPHASH_128 = SipHash128AuthScheme::new;
+
+    ITransferAuthSchemeFactory DEFAULT = SHA256;
+}
@@ -0,0 +1,376 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.Revelator;
+import exchange.core2.revelator.fences.IFence;
+import exchange.core2.revelator.fences.SingleWriterFence;
+import exchange.core2.revelator.processors.simple.SimpleMessageHandler;
+import org.agrona.IoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of all commands published into the ring.
+ * <p>
+ * Handler thread appends records into memory-mapped segment files (no system calls on the hot path).
+ * Flusher thread forces appended data to disk in groups and publishes journaled offset through {@link #getJournaledFence()},
+ * so responses can be held back until command is durable.
+ * <p>
+ * Record format (little endian, 8 bytes aligned):
+ * globalOffset, timestamp, correlationId, (int: msgSize << 8 | msgType), (int: crc32c), payload words.
+ * Checksum covers everything except checksum field itself. Zero msgType marks end of data in segment.
+ */
+public final class JournalWriter implements SimpleMessageHandler, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalWriter.class);
+
+    static final int RECORD_HEADER_SIZE = 32;
+    static final int RECORD_CHECKSUM_POSITION = 28;
+
+    private final Path journalPath;
+    private final int segmentSize;
+    private final int indexMask;
+
+    private final SingleWriterFence journaledFence = new SingleWriterFence();
+
+    // segments filled by handler, waiting for final force by flusher
+    private final Queue<Segment> retiredSegments = new ConcurrentLinkedQueue<>();
+
+    private final CRC32C crc32c = new CRC32C();
+
+    private final Thread flusherThread;
+
+    private volatile Segment currentSegment;
+    private volatile Segment nextSegment;
+    private int nextSegmentIndex;
+
+    // last offset appended by handler (not durable yet)
+    private volatile long appendedOffset = -1L;
+
+    private volatile boolean running = true;
+
+    public JournalWriter(final Path journalPath,
+                         final int segmentSize,
+                         final int indexMask) {
+
+        if (segmentSize < maxRecordSize(indexMask + 1)) {
+            throw new IllegalArgumentException("Journal segment size " + segmentSize + " can not fit message of ring size " + (indexMask + 1));
+        }
+
+        this.journalPath = journalPath;
+        this.segmentSize = segmentSize;
+        this.indexMask = indexMask;
+
+        IoUtil.ensureDirectoryExists(journalPath.toFile(), "journal");
+
+        // never overwrite existing segments
+        this.nextSegmentIndex = findLastSegmentIndex(journalPath) + 1;
+        this.currentSegment = allocateSegment();
+
+        this.flusherThread = new Thread(this::flusherLoop, "journal-flusher");
+        this.flusherThread.setDaemon(true);
+        this.flusherThread.start();
+    }
+
+    /**
+     * @return size of the largest record (message can not be larger than the ring), every segment must fit it
+     */
+    public static long maxRecordSize(final int ringSize) {
+        return RECORD_HEADER_SIZE + ((long) ringSize << 3);
+    }
+
+    /**
+     * Offset of the last command forced to disk.
+     */
+    public IFence getJournaledFence() {
+        return journaledFence;
+    }
+
+    @Override
+    public void handleMessage(final long[] buffer,
+                              final int index,
+                              final int msgSize,
+                              final long timestamp,
+                              final long globalOffset,
+                              final long correlationId,
+                              final byte msgType) {
+
+        // test control messages are not part of the state
+        if (msgType != Revelator.MSG_TYPE_TEST_CONTROL && msgType != Revelator.MSG_TYPE_POISON_PILL) {
+            appendRecord(buffer, index, msgSize, timestamp, globalOffset, correlationId, msgType);
+        }
+
+        appendedOffset = globalOffset;
+    }
+
+    private void appendRecord(final long[] buffer,
+                              final int index,
+                              final int msgSize,
+                              final long timestamp,
+                              final long globalOffset,
+                              final long correlationId,
+                              final byte msgType) {
+
+        final int recordSize = RECORD_HEADER_SIZE + (msgSize << 3);
+
+        Segment segment = currentSegment;
+        if (segmentSize - segment.position < recordSize) {
+            segment = switchSegment();
+        }
+
+        final int pos = segment.position;
+        writeRecord(segment.buffer, segment.crcView, crc32c, pos, buffer, index, indexMask, msgSize, timestamp, globalOffset, correlationId, msgType);
+        segment.position = pos + recordSize;
+    }
+
+    static void writeRecord(final ByteBuffer buf,
+                            final ByteBuffer crcView,
+                            final CRC32C crc32c,
+                            final int pos,
+                            final long[] buffer,
+                            final int index,
+                            final int indexMask,
+                            final int msgSize,
+                            final long timestamp,
+                            final long globalOffset,
+                            final long correlationId,
+                            final byte msgType) {
+
+        buf.putLong(pos, globalOffset);
+        buf.putLong(pos + 8, timestamp);
+        buf.putLong(pos + 16, correlationId);
+        buf.putInt(pos + 24, (msgSize << 8) | (msgType & 0xFF));
+
+        for (int i = 0; i < msgSize; i++) {
+            buf.putLong(pos + RECORD_HEADER_SIZE + (i << 3), buffer[(index + i) & indexMask]);
+        }
+
+        buf.putInt(pos + RECORD_CHECKSUM_POSITION, calculateChecksum(crc32c, crcView, pos, RECORD_HEADER_SIZE + (msgSize << 3)));
+    }
+
+    /**
+     * Read records of a segment (little endian buffer) until end of data, or until torn record
+     * (not fitting the segment, or failing checksum) - commands after this point were never acknowledged.
+     *
+     * @return true if end of data was reached, false if torn record was found
+     */
+    static boolean readSegment(final ByteBuffer buffer, final CRC32C crc32c, final RecordConsumer consumer) {
+
+        final ByteBuffer crcView = buffer.duplicate();
+        final int capacity = buffer.capacity();
+
+        int pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= capacity) {
+
+            final int sizeAndType = buffer.getInt(pos + 24);
+            if (sizeAndType == 0) {
+                // end of segment
+                return true;
+            }
+
+            final int msgSize = sizeAndType >>> 8;
+            final long recordSize = RECORD_HEADER_SIZE + ((long) msgSize << 3);
+
+            if (pos + recordSize > capacity
+                    || buffer.getInt(pos + RECORD_CHECKSUM_POSITION) != calculateChecksum(crc32c, crcView, pos, (int) recordSize)) {
+                consumer.torn(pos);
+                return false;
+            }
+
+            consumer.accept(pos + RECORD_HEADER_SIZE, msgSize, buffer.getLong(pos), buffer.getLong(pos + 8), buffer.getLong(pos + 16), (byte) sizeAndType);
+
+            pos += (int) recordSize;
+        }
+
+        return true;
+    }
+
+    static int calculateChecksum(final CRC32C crc32c, final ByteBuffer view, final int pos, final int recordSize) {
+        crc32c.reset();
+        view.limit(pos + RECORD_CHECKSUM_POSITION).position(pos);
+        crc32c.update(view);
+        view.limit(pos + recordSize).position(pos + RECORD_HEADER_SIZE);
+        crc32c.update(view);
+        return (int) crc32c.getValue();
+    }
+
+    private Segment switchSegment() {
+
+        Segment segment;
+        while ((segment = nextSegment) == null) {
+            // flusher is preparing next segment
+            Thread.onSpinWait();
+        }
+        nextSegment = null;
+
+        retiredSegments.add(currentSegment);
+        currentSegment = segment;
+        return segment;
+    }
+
+    private void flusherLoop() {
+
+        long flushedOffset = -1L;
+
+        while (running) {
+
+            if (nextSegment == null) {
+                nextSegment = allocateSegment();
+            }
+
+            final long offset = appendedOffset;
+            if (offset == flushedOffset) {
+                Thread.yield();
+                continue;
+            }
+
+            flushUpTo(offset);
+            flushedOffset = offset;
+        }
+
+        // final flush
+        flushUpTo(appendedOffset);
+    }
+
+    private void flushUpTo(final long offset) {
+
+        // read current segment before draining retired ones - it can not be missed if handler switches segment meanwhile
+        final Segment current = currentSegment;
+
+        Segment retired;
+        while ((retired = retiredSegments.poll()) != null) {
+            retired.force();
+            IoUtil.unmap(retired.buffer);
+        }
+
+        current.force();
+        journaledFence.setRelease(offset);
+    }
+
+    private Segment allocateSegment() {
+        final File file = segmentFile(journalPath, nextSegmentIndex++).toFile();
+        // sparse file - zero filling would stall the flusher
+        final MappedByteBuffer buffer = IoUtil.mapNewFile(file, segmentSize, false);
+        return new Segment(buffer);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+
+        running = false;
+        flusherThread.join();
+
+        IoUtil.unmap(currentSegment.buffer);
+
+        final Segment unused = nextSegment;
+        if (unused != null) {
+            IoUtil.unmap(unused.buffer);
+            IoUtil.delete(segmentFile(journalPath, nextSegmentIndex - 1).toFile(), true);
+        }
+
+        log.info("Journal closed, last journaled offset: {}", appendedOffset);
+    }
+
+    /**
+     * Every start of the core writes journal into new epoch directory, because offsets are restarting from 0.
+     */
+    public static Path epochPath(final Path journalPath, final int epoch) {
+        return journalPath.resolve(String.format("epoch-%06d", epoch));
+    }
+
+    /**
+     * @return sorted list of existing epochs
+     */
+    public static int[] listEpochs(final Path journalPath) {
+        if (!Files.isDirectory(journalPath)) {
+            return new int[0];
+        }
+        try (final Stream<Path> files = Files.list(journalPath)) {
+            return files
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith("epoch-"))
+                    .mapToInt(name -> Integer.parseInt(name.substring(6)))
+                    .sorted()
+                    .toArray();
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Can not list journal directory " + journalPath, ex);
+        }
+    }
+
+    /**
+     * @return sorted list of existing segment indexes
+     */
+    public static int[] listSegments(final Path epochPath) {
+        try (final Stream<Path> files = Files.list(epochPath)) {
+            return files
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith("journal-") && name.endsWith(".seg"))
+                    .mapToInt(name -> Integer.parseInt(name.substring(8, name.length() - 4)))
+                    .sorted()
+                    .toArray();
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Can not list journal directory " + epochPath, ex);
+        }
+    }
+
+    public static Path segmentFile(final Path journalPath, final int segmentIndex) {
+        return journalPath.resolve(String.format("journal-%08d.seg", segmentIndex));
+    }
+
+    static int findLastSegmentIndex(final Path journalPath) {
+        final int[] segments = listSegments(journalPath);
+        return segments.length == 0 ? -1 : segments[segments.length - 1];
+    }
+
+    interface RecordConsumer {
+
+        /**
+         * @param payloadPos position of the first payload word in segment buffer
+         */
+        void accept(int payloadPos, int msgSize, long globalOffset, long timestamp, long correlationId, byte msgType);
+
+        void torn(int pos);
+    }
+
+    private static final class Segment {
+
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer crcView;
+
+        // written by handler thread only
+        private volatile int position = 0;
+
+        // accessed by flusher thread only
+        private int forcedPosition = 0;
+
+        private Segment(final MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.crcView = buffer.duplicate();
+        }
+
+        private void force() {
+            final int pos = position;
+            if (pos > forcedPosition) {
+                buffer.force(forcedPosition, pos - forcedPosition);
+                forcedPosition = pos;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JournalWriter{path=" + journalPath + '}';
+    }
+}
@@ -0,0 +1,292 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.agrona.BitUtil;
+import org.agrona.IoUtil;
+import org.agrona.collections.Hashing;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Off-heap accounts store backed by memory-mapped file.
+ * <p>
+ * Open addressing hash table with linear probing, fixed capacity (defined when file is created).
+ * Each slot keeps account, encoded balance, secret and flags together (32 bytes).
+ * <p>
+ * Closed accounts are not deleted from the table - their balance is set to 0 (not exists),
+ * so slot is reused only if the same account is opened again. Capacity limits the number of distinct accounts
+ * ever opened (not only open ones): under account churn store fills up and new accounts are rejected,
+ * so capacity must be sized for all account ids expected during the life of the file.
+ * <p>
+ * File survives process restart (OS flushes mapped pages), call close() for explicit flush.
+ */
+public final class MappedAccountsStore implements IAccountsStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedAccountsStore.class);
+
+    private static final long MAGIC = 0x52_45_56_41_43_43_53_31L; // REVACCS1
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SIZE_COUNTER = 16;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_ACCOUNT = 0;
+    private static final int SLOT_BALANCE = 8;
+    private static final int SLOT_SECRET = 16;
+    private static final int SLOT_FLAGS = 24;
+
+    // UnsafeBuffer is limited by int addressing
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final MappedByteBuffer mappedBuffer;
+    private final UnsafeBuffer buffer;
+
+    private final int mask;
+    private final int maxSize;
+    private int size;
+
+    private final DirtyPagesTracker dirtyPages;
+
+    public MappedAccountsStore(final File file, final int expectedAccounts) {
+
+        final int capacity = BitUtil.findNextPositivePowerOfTwo((int) (expectedAccounts / MAX_LOAD_FACTOR) + 1);
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Too many accounts requested: " + expectedAccounts);
+        }
+
+        if (file.exists()) {
+            this.mappedBuffer = IoUtil.mapExistingFile(file, "accounts");
+            this.buffer = new UnsafeBuffer(mappedBuffer);
+
+            if (buffer.getLong(HEADER_MAGIC) != MAGIC) {
+                throw new IllegalStateException("Unexpected accounts file format: " + file);
+            }
+
+            final int existingCapacity = (int) buffer.getLong(HEADER_CAPACITY);
+            if (existingCapacity != capacity) {
+                log.warn("Accounts file {} capacity {} is different from requested {}, using existing", file, existingCapacity, capacity);
+            }
+
+            this.mask = existingCapacity - 1;
+            this.size = (int) buffer.getLong(HEADER_SIZE_COUNTER);
+            log.info("Loaded {} accounts from {}", size, file);
+
+        } else {
+            this.mappedBuffer = IoUtil.mapNewFile(file, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            this.buffer = new UnsafeBuffer(mappedBuffer);
+
+            buffer.putLong(HEADER_CAPACITY, capacity);
+            buffer.putLong(HEADER_SIZE_COUNTER, 0L);
+            buffer.putLong(HEADER_MAGIC, MAGIC);
+
+            this.mask = capacity - 1;
+            this.size = 0;
+        }
+
+        this.maxSize = (int) ((mask + 1) * MAX_LOAD_FACTOR);
+
+        // existing file content is not in any snapshot yet
+        this.dirtyPages = new DirtyPagesTracker(0);
+        this.dirtyPages.resetAllDirty(mask + 1);
+    }
+
+    public static IAccountsStoreFactory factory(final Path directory, final int expectedAccountsPerShard) {
+
+        IoUtil.ensureDirectoryExists(directory.toFile(), "accounts");
+
+        return shardIndex -> new MappedAccountsStore(
+                directory.resolve("accounts-" + shardIndex + ".dat").toFile(),
+                expectedAccountsPerShard);
+    }
+
+    @Override
+    public int findSlot(final long account) {
+
+        int slot = Hashing.hash(account, mask);
+
+        while (true) {
+            final int offset = offset(slot);
+
+            if (buffer.getLong(offset + SLOT_FLAGS) == 0L) {
+                return NOT_FOUND;
+            }
+
+            if (buffer.getLong(offset + SLOT_ACCOUNT) == account) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public int findOrCreateSlot(final long account) {
+
+        int slot = Hashing.hash(account, mask);
+
+        while (true) {
+            final int offset = offset(slot);
+
+            if (buffer.getLong(offset + SLOT_FLAGS) == 0L) {
+
+                if (size == maxSize) {
+                    throw new IllegalStateException("Accounts store is full, size=" + size);
+                }
+
+                buffer.putLong(offset + SLOT_ACCOUNT, account);
+                buffer.putLong(offset + SLOT_BALANCE, 0L);
+                buffer.putLong(offset + SLOT_SECRET, 0L);
+                buffer.putLong(offset + SLOT_FLAGS, FLAG_OCCUPIED);
+
+                size++;
+                buffer.putLong(HEADER_SIZE_COUNTER, size);
+                dirtyPages.mark(slot);
+                return slot;
+            }
+
+            if (buffer.getLong(offset + SLOT_ACCOUNT) == account) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public long getAccount(final int slot) {
+        return buffer.getLong(offset(slot) + SLOT_ACCOUNT);
+    }
+
+    @Override
+    public long getBalance(final int slot) {
+        return buffer.getLong(offset(slot) + SLOT_BALANCE);
+    }
+
+    @Override
+    public long addToBalance(final int slot, final long delta) {
+        dirtyPages.mark(slot);
+        final int offset = offset(slot) + SLOT_BALANCE;
+        final long newValue = buffer.getLong(offset) + delta;
+        buffer.putLong(offset, newValue);
+        return newValue;
+    }
+
+    @Override
+    public void setBalance(final int slot, final long encodedBalance) {
+        dirtyPages.mark(slot);
+        buffer.putLong(offset(slot) + SLOT_BALANCE, encodedBalance);
+    }
+
+    @Override
+    public long getSecret(final int slot) {
+        return buffer.getLong(offset(slot) + SLOT_SECRET);
+    }
+
+    @Override
+    public void setSecret(final int slot, final long secret) {
+        dirtyPages.mark(slot);
+        buffer.putLong(offset(slot) + SLOT_SECRET, secret);
+    }
+
+    @Override
+    public long getNonce(final int slot) {
+        return IAccountsStore.extractNonce(buffer.getLong(offset(slot) + SLOT_FLAGS));
+    }
+
+    @Override
+    public void setNonce(final int slot, final long nonce) {
+        dirtyPages.mark(slot);
+        buffer.putLong(offset(slot) + SLOT_FLAGS, IAccountsStore.encodeFlags(nonce));
+    }
+
+    @Override
+    public int getLayoutVersion() {
+        // capacity is fixed - slots are never relocated
+        return 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        buffer.setMemory(HEADER_SIZE, (mask + 1) * SLOT_SIZE, (byte) 0);
+        size = 0;
+        buffer.putLong(HEADER_SIZE_COUNTER, 0L);
+        dirtyPages.clear();
+    }
+
+    @Override
+    public int slotsDataSize() {
+        return (mask + 1) * SLOT_WORDS;
+    }
+
+    @Override
+    public int copySlots(final long[] target) {
+        final int words = (mask + 1) * SLOT_WORDS;
+        for (int i = 0; i < words; i++) {
+            target[i] = buffer.getLong(HEADER_SIZE + (i << 3));
+        }
+        dirtyPages.clear();
+        return words;
+    }
+
+    @Override
+    public int copyDirtySlots(final long[] target) {
+
+        final int pageWords = DirtyPagesTracker.PAGE_SLOTS * SLOT_WORDS;
+        final int totalWords = (mask + 1) * SLOT_WORDS;
+        int words = 0;
+
+        for (int page = dirtyPages.nextDirtyPage(0); page != -1; page = dirtyPages.nextDirtyPage(page + 1)) {
+            final int fromWord = page * pageWords;
+            final int len = Math.min(pageWords, totalWords - fromWord);
+            for (int i = 0; i < len; i++) {
+                target[words++] = buffer.getLong(HEADER_SIZE + ((fromWord + i) << 3));
+            }
+        }
+
+        dirtyPages.clear();
+        return words;
+    }
+
+    @Override
+    public void forEachAccount(final AccountConsumer consumer) {
+        for (int slot = 0; slot <= mask; slot++) {
+            final int offset = offset(slot);
+            if (buffer.getLong(offset + SLOT_FLAGS) != 0L && buffer.getLong(offset + SLOT_BALANCE) != 0L) {
+                consumer.accept(
+                        buffer.getLong(offset + SLOT_ACCOUNT),
+                        buffer.getLong(offset + SLOT_BALANCE),
+                        buffer.getLong(offset + SLOT_SECRET),
+                        IAccountsStore.extractNonce(buffer.getLong(offset + SLOT_FLAGS)));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        buffer.putLong(HEADER_SIZE_COUNTER, size);
+        mappedBuffer.force();
+        IoUtil.unmap(mappedBuffer);
+    }
+
+    private static int offset(final int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedAccountsStore{size=" + size + ", capacity=" + (mask + 1) + '}';
+    }
+}
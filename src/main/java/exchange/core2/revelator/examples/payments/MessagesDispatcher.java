@@ -0,0 +1,86 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.processors.simple.SimpleMessageHandler;
+
+/**
+ * Pre-routing stage: reads every message once and appends its position into queues of the shards it is relevant to,
+ * so shard processors do not have to read and skip foreign messages.
+ * <p>
+ * Routing is the same as in shard handlers: account commands go to the shard of the account,
+ * transfers go to source and destination shards, control messages go to all shards (including idle ones).
+ */
+public final class MessagesDispatcher implements SimpleMessageHandler {
+
+    private final ShardMessagesQueue[] queues;
+    private final long[] queueSeq;
+    private final ShardRoutingTable shardRouter;
+
+    public MessagesDispatcher(final ShardMessagesQueue[] queues,
+                              final ShardRoutingTable shardRouter) {
+
+        this.queues = queues;
+        this.queueSeq = new long[queues.length];
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public void handleMessage(final long[] buffer,
+                              final int index,
+                              final int msgSize,
+                              final long timestamp,
+                              final long globalOffset,
+                              final long correlationId,
+                              final byte msgType) {
+
+        switch (msgType) {
+
+            case PaymentsApi.CMD_TRANSFER -> {
+                final int shardSrc = shardRouter.shardOf(buffer[index]);
+                final int shardDst = shardRouter.shardOf(buffer[index + 1]);
+                append(shardSrc, index, msgSize, timestamp, globalOffset, correlationId, msgType);
+                if (shardDst != shardSrc) {
+                    append(shardDst, index, msgSize, timestamp, globalOffset, correlationId, msgType);
+                }
+            }
+
+            case PaymentsApi.CMD_OPEN_ACCOUNT, PaymentsApi.CMD_CLOSE_ACCOUNT, PaymentsApi.CMD_ADJUST_BALANCE ->
+                    append(shardRouter.shardOf(buffer[index]), index, msgSize, timestamp, globalOffset, correlationId, msgType);
+
+            default -> {
+                for (int i = 0; i < queues.length; i++) {
+                    append(i, index, msgSize, timestamp, globalOffset, correlationId, msgType);
+                }
+
+                if (msgType == PaymentsApi.CMD_MIGRATE_ACCOUNT) {
+                    // following messages of the account go to the new shard
+                    final long account = buffer[index];
+                    final int targetShard = (int) buffer[index + 1];
+                    if (shardRouter.canMigrate(account, targetShard)) {
+                        shardRouter.migrate(account, targetShard);
+                    }
+                } else if (msgType == PaymentsApi.CMD_CTRL_RESHARD) {
+                    final IShardRouter router = shardRouter.prepareReshard((int) buffer[index]);
+                    if (router != null) {
+                        shardRouter.reshard(router);
+                    }
+                }
+            }
+        }
+    }
+
+    private void append(final int shard,
+                        final int index,
+                        final int msgSize,
+                        final long timestamp,
+                        final long globalOffset,
+                        final long correlationId,
+                        final byte msgType) {
+
+        final long seq = queueSeq[shard];
+        final ShardMessagesQueue queue = queues[shard];
+        queue.write(seq, globalOffset, index, msgSize, msgType, timestamp, correlationId);
+        queueSeq[shard] = seq + 1;
+        // publishing every entry - shard should not wait for the rest of the batch
+        queue.publish(seq + 1);
+    }
+}
@@ -0,0 +1,123 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+/**
+ * Messages that Stage1 could not complete yet (pending transfers of the account can change the result).
+ * <p>
+ * Parked message stays in its pipeline session, Stage2 re-drives it when it reaches this session,
+ * because by then all preceding transfers of the account are settled. Parking and re-driving both happen in offset order,
+ * so entries form a FIFO. Following messages of parked accounts are parked too, keeping per-account ordering.
+ * <p>
+ * Accessed by Stage1 and Stage2 of the same shard (same thread).
+ */
+public final class ParkedMessages {
+
+    private static final int ENTRY_WORDS = 4;
+
+    // (offset, account1, account2, closing flag) per entry
+    private long[] entries = new long[64 * ENTRY_WORDS];
+    private int head;
+    private int size;
+
+    // account -> number of parked messages
+    private final LongIntHashMap parkedAccounts = new LongIntHashMap();
+
+    // account -> number of parked close messages (credits can not pass them)
+    private final LongIntHashMap closingAccounts = new LongIntHashMap();
+
+    /**
+     * @param account2 second account of local transfer, or same as account1
+     */
+    public void park(final long offset, final long account1, final long account2, final boolean closing) {
+
+        if (size == capacity()) {
+            grow();
+        }
+
+        final int pos = ((head + size) % capacity()) * ENTRY_WORDS;
+        entries[pos] = offset;
+        entries[pos + 1] = account1;
+        entries[pos + 2] = account2;
+        entries[pos + 3] = closing ? 1L : 0L;
+        size++;
+
+        parkedAccounts.addToValue(account1, 1);
+        if (account2 != account1) {
+            parkedAccounts.addToValue(account2, 1);
+        }
+        if (closing) {
+            closingAccounts.addToValue(account1, 1);
+        }
+    }
+
+    /**
+     * Remove oldest parked message, it must be the one being re-driven.
+     */
+    public void unpark(final long offset) {
+
+        final int pos = head * ENTRY_WORDS;
+        if (size == 0 || entries[pos] != offset) {
+            throw new IllegalStateException("Message at offset " + offset + " is not the oldest parked one");
+        }
+
+        release(parkedAccounts, entries[pos + 1]);
+        if (entries[pos + 2] != entries[pos + 1]) {
+            release(parkedAccounts, entries[pos + 2]);
+        }
+        if (entries[pos + 3] != 0L) {
+            release(closingAccounts, entries[pos + 1]);
+        }
+
+        head = (head + 1) % capacity();
+        size--;
+    }
+
+    public boolean isParked(final long account) {
+        return size != 0 && parkedAccounts.containsKey(account);
+    }
+
+    public boolean isClosing(final long account) {
+        return size != 0 && !closingAccounts.isEmpty() && closingAccounts.containsKey(account);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return offset of the oldest parked message (Stage1 results are complete up to the previous offset)
+     */
+    public long oldestOffset() {
+        return entries[head * ENTRY_WORDS];
+    }
+
+    private int capacity() {
+        return entries.length / ENTRY_WORDS;
+    }
+
+    private static void release(final LongIntHashMap counters, final long account) {
+        if (counters.addToValue(account, -1) == 0) {
+            counters.remove(account);
+        }
+    }
+
+    private void grow() {
+        final int capacity = capacity();
+        final long[] newEntries = new long[entries.length << 1];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(entries, ((head + i) % capacity) * ENTRY_WORDS, newEntries, i * ENTRY_WORDS, ENTRY_WORDS);
+        }
+        entries = newEntries;
+        head = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ParkedMessages{size=" + size + ", accounts=" + parkedAccounts.size() + '}';
+    }
+}
@@ -16,6 +16,9 @@ public final class PaymentsApi {
     public static final byte CMD_CTRL_CUR_RATE = (byte) 13;
     public static final byte CMD_CTRL_FEES = (byte) 14;
     public static final byte CMD_CTRL_TREASURE = (byte) 15;
+    public static final byte CMD_CTRL_SNAPSHOT = (byte) 16;
+    public static final byte CMD_MIGRATE_ACCOUNT = (byte) 18;
+    public static final byte CMD_CTRL_RESHARD = (byte) 19;
 
     // TODO add reports
 
@@ -39,9 +42,40 @@ public final class PaymentsApi {
                          final long amount,
                          final short currency,
                          final TransferType transferType,
-                         final long[] sha256) {
+                         final long[] signature) {
 
-        final int msgSize = 8;
+        transfer(timestamp, correlationId, accountSrc, accountDst, amount,
+                ITransferAuthScheme.currencyAndType(currency, transferType), signature);
+    }
+
+    /**
+     * Transfer with replay protection: nonce must be greater than the last accepted nonce of the source account.
+     * Nonce is signed together with currency and type (see {@link ITransferAuthScheme#currencyAndType(short, TransferType, long)}).
+     */
+    public void transfer(final long timestamp,
+                         final long correlationId,
+                         final long accountSrc,
+                         final long accountDst,
+                         final long amount,
+                         final short currency,
+                         final TransferType transferType,
+                         final long nonce,
+                         final long[] signature) {
+
+        transfer(timestamp, correlationId, accountSrc, accountDst, amount,
+                ITransferAuthScheme.currencyAndType(currency, transferType, nonce), signature);
+    }
+
+    private void transfer(final long timestamp,
+                          final long correlationId,
+                          final long accountSrc,
+                          final long accountDst,
+                          final long amount,
+                          final long currencyAndType,
+                          final long[] signature) {
+
+        // signature length depends on authentication scheme of the core
+        final int msgSize = ITransferAuthScheme.TRANSFER_FIELDS + signature.length;
         final long claimSeq = revelator.claimSingleMessage(msgSize, timestamp, correlationId, CMD_TRANSFER);
 
         final int index = (int) (claimSeq & indexMask);
@@ -49,12 +83,11 @@ public final class PaymentsApi {
         revelator.writeLongDataUnsafe(index, accountSrc);
         revelator.writeLongDataUnsafe(index + 1, accountDst);
         revelator.writeLongDataUnsafe(index + 2, amount);
-        revelator.writeLongDataUnsafe(index + 3, ((long) currency << 8) | transferType.getCode());
+        revelator.writeLongDataUnsafe(index + 3, currencyAndType);
 
-        revelator.writeLongDataUnsafe(index + 4, sha256[0]);
-        revelator.writeLongDataUnsafe(index + 5, sha256[1]);
-        revelator.writeLongDataUnsafe(index + 6, sha256[2]);
-        revelator.writeLongDataUnsafe(index + 7, sha256[3]);
+        for (int i = 0; i < signature.length; i++) {
+            revelator.writeLongDataUnsafe(index + ITransferAuthScheme.TRANSFER_FIELDS + i, signature[i]);
+        }
 
         revelator.publish(claimSeq + msgSize);
     }
@@ -162,6 +195,65 @@ public final class PaymentsApi {
 //        log.debug("published={}", claimSeq + msgSize);
     }
 
+    /**
+     * Snapshot is taken by every shard when it reaches this message, so all shard files are consistent at the same offset.
+     */
+    public void makeSnapshot(final long timestamp,
+                             final long correlationId,
+                             final long snapshotId) {
+
+        final int msgSize = 1;
+        final long claimSeq = revelator.claimSingleMessage(msgSize, timestamp, correlationId, CMD_CTRL_SNAPSHOT);
+
+        final int index = (int) (claimSeq & indexMask);
+
+        revelator.writeLongDataUnsafe(index, snapshotId);
+
+        revelator.publish(claimSeq + msgSize);
+    }
+
+    /**
+     * Move account state to another shard (pipelined core). Routing of the account changes at this message offset.
+     * Rejected if accounts store issues account handles (handle addresses slot of the issuing shard).
+     */
+    public void migrateAccount(final long timestamp,
+                               final long correlationId,
+                               final long account,
+                               final int targetShard) {
+
+        // third and fourth words are reserved - source shard exports balance, secret and nonce through results buffer at message indexes
+        final int msgSize = 4;
+        final long claimSeq = revelator.claimSingleMessage(msgSize, timestamp, correlationId, CMD_MIGRATE_ACCOUNT);
+
+        final int index = (int) (claimSeq & indexMask);
+
+        revelator.writeLongDataUnsafe(index, account);
+        revelator.writeLongDataUnsafe(index + 1, targetShard);
+        revelator.writeLongDataUnsafe(index + 2, 0L);
+        revelator.writeLongDataUnsafe(index + 3, 0L);
+
+        revelator.publish(claimSeq + msgSize);
+    }
+
+    /**
+     * Change number of active shards (pipelined core, up to pre-provisioned maximum).
+     * All accounts, treasures and routing switch at this message offset, so it works as a barrier for all shards.
+     * Account handles and migrations issued before resharding are not valid anymore.
+     */
+    public void reshard(final long timestamp,
+                        final long correlationId,
+                        final int shardsNum) {
+
+        final int msgSize = 1;
+        final long claimSeq = revelator.claimSingleMessage(msgSize, timestamp, correlationId, CMD_CTRL_RESHARD);
+
+        final int index = (int) (claimSeq & indexMask);
+
+        revelator.writeLongDataUnsafe(index, shardsNum);
+
+        revelator.publish(claimSeq + msgSize);
+    }
+
     public static final record FeeConfig(long minFee, long maxFee) {
     }
 
@@ -10,15 +10,19 @@ import exchange.core2.revelator.processors.IFlowProcessor;
 import exchange.core2.revelator.processors.IFlowProcessorsFactory;
 import exchange.core2.revelator.processors.ProcessorsFactories;
 import exchange.core2.revelator.processors.pipelined.PipelinedFlowProcessor;
+import exchange.core2.revelator.processors.pipelined.PipelinedFlowSession;
 import exchange.core2.revelator.processors.simple.SimpleFlowProcessor;
-import org.agrona.BitUtil;
-import org.agrona.collections.LongHashSet;
+import org.agrona.IoUtil;
+import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public final class PaymentsCore {
 
@@ -26,18 +30,61 @@ public final class PaymentsCore {
 
     public final static int BUFFER_SIZE = 1024 * 1024;
 
+    // account handles keep shard index in 8 bits
+    public final static int MAX_SHARDS = 256;
+
+    // entries per shard queue when dispatcher is enabled
+    public final static int SHARD_QUEUE_SIZE = 64 * 1024;
+
+    // entries of all settlement mailboxes (shared by all pairs of shards) and minimal size of one mailbox
+    public final static int SETTLEMENT_MAILBOXES_SIZE = 1024 * 1024;
+    public final static int MIN_SETTLEMENT_MAILBOX_SIZE = 64;
+
     private final Revelator revelator;
     private final PaymentsApi paymentsApi;
+    // closed in order after revelator is stopped
+    private final List<AutoCloseable> resources;
+
+    // per shard, null if snapshots are not enabled
+    private final ShardSnapshotWriter[] snapshotWriters;
 
+    // null if recovery is not enabled
+    private final PaymentsRecovery recovery;
+
+    // per shard, null if core is not pipelined
+    private final AccountLoadTracker[] loadTrackers;
+    private final ShardState[] shards;
+
+    // empty if signatures are checked by shards
+    private final List<SignatureVerifier> signatureVerifiers;
 
     public static PaymentsCore createSimple(IPaymentsResponseHandler responseHandler,
                                             ThreadFactory threadFactory) {
 
+        return createSimple(responseHandler, threadFactory, PaymentsCoreConfig.DEFAULT);
+    }
+
+    public static PaymentsCore createSimple(IPaymentsResponseHandler responseHandler,
+                                            ThreadFactory threadFactory,
+                                            PaymentsCoreConfig coreConfig) {
+
+        if (coreConfig.isSnapshotsEnabled() || coreConfig.isJournalingEnabled() || coreConfig.isRecoveryEnabled() || coreConfig.isDispatcherEnabled() || coreConfig.getMaxShardsNum() != 0
+                || coreConfig.getSignatureVerifiersNum() != 0 || coreConfig.getCorrelationWindowSize() != 0) {
+            throw new IllegalArgumentException("Snapshots, journaling, recovery, dispatcher, resharding, signature verifiers and correlation window are supported by pipelined core only");
+        }
+
         final LocalResultsByteBuffer resultsBuffer = LocalResultsByteBuffer.create(BUFFER_SIZE);
 
-        final AccountsProcessor accountsProcessor = new AccountsProcessor();
+        final IAccountsStore accountsStore = coreConfig.getAccountsStoreFactory().create(0);
+        final AccountsProcessor accountsProcessor = new AccountsProcessor(accountsStore);
 
-        final SimplePaymentsHandler paymentsHandler = new SimplePaymentsHandler(accountsProcessor, resultsBuffer);
+        final TransferFeesProcessor transferFeesProcessor = new TransferFeesProcessor(new CurrencyRateProcessor(), accountsProcessor);
+
+        final SimplePaymentsHandler paymentsHandler = new SimplePaymentsHandler(
+                accountsProcessor,
+                transferFeesProcessor,
+                coreConfig.getAuthSchemeFactory().create(),
+                resultsBuffer);
 
         final ResponsesAggregator responsesAggregator = new ResponsesAggregator(resultsBuffer, responseHandler);
 
@@ -51,37 +98,72 @@ public final class PaymentsCore {
 
         final PaymentsApi paymentsApi = new PaymentsApi(revelator, revelator.getIndexMask());
 
-        return new PaymentsCore(revelator, paymentsApi);
+        return new PaymentsCore(revelator, paymentsApi, List.of(accountsStore), null, null, null, null, List.of());
     }
 
     public static PaymentsCore createParallel(IPaymentsResponseHandler responseHandler,
                                               ThreadFactory threadFactory,
                                               int threadsNum) {
-        if (!BitUtil.isPowerOfTwo(threadsNum)) {
-            throw new IllegalArgumentException("Number of threads must be power of 2");
+
+        return createParallel(responseHandler, threadFactory, threadsNum, PaymentsCoreConfig.DEFAULT);
+    }
+
+    public static PaymentsCore createParallel(IPaymentsResponseHandler responseHandler,
+                                              ThreadFactory threadFactory,
+                                              int threadsNum,
+                                              PaymentsCoreConfig coreConfig) {
+        if (threadsNum < 1 || threadsNum > MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of threads must be in range 1.." + MAX_SHARDS);
         }
 
-        final long handlersMask = threadsNum - 1;
+        if (coreConfig.isSnapshotsEnabled() || coreConfig.isJournalingEnabled() || coreConfig.isRecoveryEnabled() || coreConfig.isDispatcherEnabled() || coreConfig.getMaxShardsNum() != 0
+                || coreConfig.getSignatureVerifiersNum() != 0 || coreConfig.getCorrelationWindowSize() != 0) {
+            throw new IllegalArgumentException("Snapshots, journaling, recovery, dispatcher, resharding, signature verifiers and correlation window are supported by pipelined core only");
+        }
+
+        final IShardRouter shardRouter = coreConfig.getShardRouterFactory().create(threadsNum);
+        log.info("Shard routing: {}", shardRouter);
 
         final LocalResultsLongBuffer[] resultsBuffers = new LocalResultsLongBuffer[threadsNum];
         final IFence[] transferFences = new IFence[threadsNum];
+        final IFence[] fencesSt1 = new IFence[threadsNum];
+        final List<AutoCloseable> resources = new ArrayList<>();
 
         final IFlowProcessorsFactory processorsFactory = (inboundFence, config) -> {
 
             final List<IFlowProcessor> processors = new ArrayList<>();
 
+            // ring space can only be reused after all shards settled their transfers
+            final List<IFence> outboundFences = new ArrayList<>();
+
             for (int i = 0; i < threadsNum; i++) {
 
                 final LocalResultsLongBuffer resultsBuffer = LocalResultsLongBuffer.create(BUFFER_SIZE);
                 resultsBuffers[i] = resultsBuffer;
 
-                final AccountsProcessor accountsProcessor = new AccountsProcessor();
+                final SingleWriterFence fenceSt1 = new SingleWriterFence();
+                fencesSt1[i] = fenceSt1;
+
+                final SingleWriterFence settledFence = new SingleWriterFence();
+                outboundFences.add(settledFence);
+
+                final IAccountsStore accountsStore = coreConfig.getAccountsStoreFactory().create(i);
+                resources.add(accountsStore);
+                final AccountsProcessor accountsProcessor = new AccountsProcessor(accountsStore);
+                final TransferFeesProcessor transferFeesProcessor = new TransferFeesProcessor(new CurrencyRateProcessor(), accountsProcessor);
 
                 final PaymentsHandlerParallel paymentsHandler = new PaymentsHandlerParallel(
                         accountsProcessor,
+                        transferFeesProcessor,
+                        coreConfig.getAuthSchemeFactory().create(),
+                        new AccountReservations(accountsProcessor),
                         resultsBuffer,
+                        fenceSt1,
+                        settledFence,
+                        resultsBuffers,
+                        fencesSt1,
                         i,
-                        handlersMask);
+                        shardRouter);
 
                 final SimpleFlowProcessor paymentsProcessor = new SimpleFlowProcessor(
                         paymentsHandler,
@@ -96,7 +178,8 @@ public final class PaymentsCore {
             final ResponsesSmartAggregator responsesAggregator = new ResponsesSmartAggregator(
                     resultsBuffers,
                     transferFences,
-                    handlersMask,
+                    null,
+                    new ShardRoutingTable(coreConfig.getShardRouterFactory(), threadsNum, threadsNum, coreConfig.getAccountsStoreFactory().issuesHandles()),
                     responseHandler,
                     config.getBuffer());
 
@@ -106,10 +189,11 @@ public final class PaymentsCore {
                     config);
 
             processors.add(resultsProcessor);
+            outboundFences.add(resultsProcessor.getReleasingFence());
 
             return new IFlowProcessorsFactory.ProcessorsChain(
                     processors,
-                    resultsProcessor.getReleasingFence());
+                    new AggregatingMinFence(outboundFences));
         };
 
         final Revelator revelator = Revelator.create(
@@ -119,21 +203,70 @@ public final class PaymentsCore {
 
         final PaymentsApi paymentsApi = new PaymentsApi(revelator, revelator.getIndexMask());
 
-        return new PaymentsCore(revelator, paymentsApi);
+        return new PaymentsCore(revelator, paymentsApi, resources, null, null, null, null, List.of());
     }
 
     public static PaymentsCore createPipelined(IPaymentsResponseHandler responseHandler,
                                                ThreadFactory threadFactory,
                                                int threadsNum) {
 
-        if (!BitUtil.isPowerOfTwo(threadsNum)) {
-            throw new IllegalArgumentException("Number of threads must be power of 2");
+        return createPipelined(responseHandler, threadFactory, threadsNum, PaymentsCoreConfig.DEFAULT);
+    }
+
+    public static PaymentsCore createPipelined(IPaymentsResponseHandler responseHandler,
+                                               ThreadFactory threadFactory,
+                                               int threadsNum,
+                                               PaymentsCoreConfig coreConfig) {
+
+        if (threadsNum < 1 || threadsNum > MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of threads must be in range 1.." + MAX_SHARDS);
         }
 
-        final long handlersMask = threadsNum - 1;
+        // processing threads are fixed when revelator is created - extra shards are started idle and can be activated by resharding
+        final int maxShardsNum = Math.max(threadsNum, coreConfig.getMaxShardsNum());
+        if (maxShardsNum > MAX_SHARDS) {
+            throw new IllegalArgumentException("Max number of shards must be in range 1.." + MAX_SHARDS);
+        }
 
-        final LocalResultsLongBuffer[] resultsBuffers = new LocalResultsLongBuffer[threadsNum];
-        final IFence[] fencesSt1 = new IFence[threadsNum];
+        final IShardRouter shardRouter = coreConfig.getShardRouterFactory().create(threadsNum);
+        log.info("Shard routing: {} (max shards: {})", shardRouter, maxShardsNum);
+
+        final LocalResultsLongBuffer[] resultsBuffers = new LocalResultsLongBuffer[maxShardsNum];
+        final IFence[] fencesSt1 = new IFence[maxShardsNum];
+        final AccountLoadTracker[] loadTrackers = new AccountLoadTracker[maxShardsNum];
+        final ShardState[] shards = new ShardState[maxShardsNum];
+        final List<AutoCloseable> resources = new ArrayList<>();
+        final ShardSnapshotWriter[] snapshotWriters = coreConfig.isSnapshotsEnabled() ? new ShardSnapshotWriter[maxShardsNum] : null;
+
+        final int epoch = PaymentsRecovery.nextEpoch(coreConfig, maxShardsNum);
+        log.info("Starting epoch {}", epoch);
+
+        final PaymentsRecovery recovery = coreConfig.isRecoveryEnabled()
+                ? new PaymentsRecovery(coreConfig, epoch, maxShardsNum)
+                : null;
+
+        final ReshardExchange reshardExchange = new ReshardExchange(maxShardsNum);
+        final SettlementMailbox[][] mailboxes = createMailboxes(maxShardsNum);
+        final List<SignatureVerifier> signatureVerifiers = new ArrayList<>();
+
+        final ExecutorService snapshotsExecutor;
+        if (coreConfig.isSnapshotsEnabled()) {
+            IoUtil.ensureDirectoryExists(coreConfig.getSnapshotsPath().toFile(), "snapshots");
+            // snapshot files are written outside of processing threads
+            snapshotsExecutor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "snapshots-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            resources.add(() -> {
+                snapshotsExecutor.shutdown();
+                if (!snapshotsExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                    log.warn("Snapshots writer did not finish in time");
+                }
+            });
+        } else {
+            snapshotsExecutor = null;
+        }
 
         final IFlowProcessorsFactory processorsFactory = (inboundFence, config) -> {
 
@@ -141,7 +274,83 @@ public final class PaymentsCore {
 
             final List<IFence> outboundFences = new ArrayList<>();
 
-            for (int i = 0; i < threadsNum; i++) {
+            if (recovery != null) {
+                recovery.setRequestsBuffer(config.getBuffer());
+            }
+
+            final IFence journalFence;
+            if (coreConfig.isJournalingEnabled()) {
+                final JournalWriter journalWriter = new JournalWriter(
+                        JournalWriter.epochPath(coreConfig.getJournalPath(), epoch),
+                        coreConfig.getJournalSegmentSize(),
+                        config.getIndexMask());
+                resources.add(journalWriter);
+
+                final SimpleFlowProcessor journalProcessor = new SimpleFlowProcessor(
+                        journalWriter,
+                        inboundFence,
+                        config);
+
+                processors.add(journalProcessor);
+                outboundFences.add(journalProcessor.getReleasingFence());
+                journalFence = journalWriter.getJournaledFence();
+            } else {
+                journalFence = null;
+            }
+
+            // shards (or dispatcher) consume messages after signatures are verified
+            final LocalResultsLongBuffer signatureVerdicts;
+            final IFence shardsInboundFence;
+            if (coreConfig.getSignatureVerifiersNum() != 0) {
+                signatureVerdicts = LocalResultsLongBuffer.create(BUFFER_SIZE);
+                final List<IFence> verifierFences = new ArrayList<>();
+                for (int i = 0; i < coreConfig.getSignatureVerifiersNum(); i++) {
+                    final SignatureVerifier verifier = new SignatureVerifier(coreConfig.getAuthSchemeFactory().create(), config.getBuffer(), signatureVerdicts, i, coreConfig.getSignatureVerifiersNum());
+                    signatureVerifiers.add(verifier);
+
+                    final PipelinedFlowProcessor<PipelinedFlowSession> verifierProcessor = new PipelinedFlowProcessor<>(
+                            List.of(verifier),
+                            PipelinedFlowSession::new,
+                            inboundFence,
+                            config.getIndexMask(),
+                            config.getBuffer());
+                    processors.add(verifierProcessor);
+                    // processor fence can pass collected transfers, verified fence follows written verdicts
+                    verifierFences.add(verifier.getVerifiedFence());
+                }
+                shardsInboundFence = new AggregatingMinFence(verifierFences);
+            } else {
+                signatureVerdicts = null;
+                shardsInboundFence = inboundFence;
+            }
+
+            final ShardMessagesQueue[] shardQueues;
+            final IFence dispatcherFence;
+            if (coreConfig.isDispatcherEnabled()) {
+                shardQueues = new ShardMessagesQueue[maxShardsNum];
+                for (int i = 0; i < maxShardsNum; i++) {
+                    shardQueues[i] = new ShardMessagesQueue(SHARD_QUEUE_SIZE);
+                }
+
+                final ShardRoutingTable dispatcherRouting = new ShardRoutingTable(coreConfig.getShardRouterFactory(), threadsNum, maxShardsNum, coreConfig.getAccountsStoreFactory().issuesHandles());
+                if (recovery != null) {
+                    recovery.addRoutingTable(dispatcherRouting);
+                }
+
+                final SimpleFlowProcessor dispatcherProcessor = new SimpleFlowProcessor(
+                        new MessagesDispatcher(shardQueues, dispatcherRouting),
+                        shardsInboundFence,
+                        config);
+
+                processors.add(dispatcherProcessor);
+                outboundFences.add(dispatcherProcessor.getReleasingFence());
+                dispatcherFence = dispatcherProcessor.getReleasingFence();
+            } else {
+                shardQueues = null;
+                dispatcherFence = null;
+            }
+
+            for (int i = 0; i < maxShardsNum; i++) {
 
                 final LocalResultsLongBuffer resultsBuffer = LocalResultsLongBuffer.create(BUFFER_SIZE);
                 resultsBuffers[i] = resultsBuffer;
@@ -149,53 +358,117 @@ public final class PaymentsCore {
                 final SingleWriterFence fenceSt1 = new SingleWriterFence();
                 fencesSt1[i] = fenceSt1;
 
-                final LongHashSet lockedAccounts = new LongHashSet(20);
+                final IAccountsStore accountsStore = coreConfig.getAccountsStoreFactory().create(i);
+                resources.add(accountsStore);
+                final AccountsProcessor accountsProcessor = new AccountsProcessor(accountsStore);
 
-                final AccountsProcessor accountsProcessor = new AccountsProcessor();
+                final AccountReservations reservations = new AccountReservations(accountsProcessor);
+                final ParkedMessages parkedMessages = new ParkedMessages();
+                final CorrelationWindow correlationWindow = coreConfig.getCorrelationWindowSize() != 0
+                        ? new CorrelationWindow(coreConfig.getCorrelationWindowSize())
+                        : null;
 
                 CurrencyRateProcessor currencyRateProcessor = new CurrencyRateProcessor();
                 TransferFeesProcessor transferFeesProcessor = new TransferFeesProcessor(currencyRateProcessor, accountsProcessor);
 
-                final SignatureHandler signatureHandler = new SignatureHandler();
+                // every shard applies migrations and resharding on its own copy of routing table
+                final ShardRoutingTable shardRouting = new ShardRoutingTable(coreConfig.getShardRouterFactory(), threadsNum, maxShardsNum, coreConfig.getAccountsStoreFactory().issuesHandles());
+
+                final AccountLoadTracker loadTracker = new AccountLoadTracker();
+                loadTrackers[i] = loadTracker;
+
+                final ShardSnapshotWriter snapshotWriter = coreConfig.isSnapshotsEnabled()
+                        ? new ShardSnapshotWriter(
+                        coreConfig.getSnapshotsPath(),
+                        epoch,
+                        i,
+                        maxShardsNum,
+                        accountsProcessor,
+                        transferFeesProcessor,
+                        currencyRateProcessor,
+                        shardRouting,
+                        correlationWindow,
+                        snapshotsExecutor,
+                        coreConfig.getFullSnapshotInterval())
+                        : null;
+
+                if (snapshotWriters != null) {
+                    snapshotWriters[i] = snapshotWriter;
+                }
 
                 final PaymentsHandlerStage1 handlerSt1 = new PaymentsHandlerStage1(
                         accountsProcessor,
                         transferFeesProcessor,
-                        signatureHandler,
+                        coreConfig.getAuthSchemeFactory().create(),
+                        signatureVerdicts,
+                        snapshotWriter,
                         config.getBuffer(),
                         resultsBuffer,
                         fenceSt1,
-                        lockedAccounts,
+                        resultsBuffers,
+                        fencesSt1,
+                        mailboxes[i],
+                        reservations,
+                        parkedMessages,
+                        correlationWindow,
+                        coreConfig.isCommutativeCredits(),
                         i,
-                        handlersMask);
+                        shardRouting,
+                        loadTracker,
+                        reshardExchange,
+                        coreConfig.getSt1PublishBatchSize());
 
 
                 final PaymentsHandlerStage2 handlerSt2 = new PaymentsHandlerStage2(
                         accountsProcessor,
                         transferFeesProcessor,
                         resultsBuffers,
-                        lockedAccounts,
+                        reservations,
+                        handlerSt1,
                         fencesSt1,
-                        i,
-                        handlersMask);
-
-
-                final PipelinedFlowProcessor<TransferSession> transferProcessor = new PipelinedFlowProcessor<>(
-                        List.of(handlerSt1, handlerSt2),
-                        TransferSession::new,
-                        inboundFence,
-                        config.getIndexMask(),
-                        config.getBuffer());
-
-                processors.add(transferProcessor);
+                        inboundMailboxes(mailboxes, i),
+                        i);
+
+                shards[i] = new ShardState(accountsProcessor, transferFeesProcessor, handlerSt1, handlerSt2);
+
+                if (recovery != null) {
+                    recovery.addShard(i, accountsProcessor, transferFeesProcessor, currencyRateProcessor, shardRouting, correlationWindow, handlerSt1, handlerSt2);
+                }
+
+
+                if (shardQueues != null) {
+                    // shard only visits messages routed to it
+                    final DispatchedFlowProcessor<TransferSession> transferProcessor = new DispatchedFlowProcessor<>(
+                            List.of(handlerSt1, handlerSt2),
+                            TransferSession::new,
+                            shardQueues[i],
+                            dispatcherFence);
+
+                    processors.add(transferProcessor);
+                    outboundFences.add(transferProcessor.getReleasingFence());
+                } else {
+                    final PipelinedFlowProcessor<TransferSession> transferProcessor = new PipelinedFlowProcessor<>(
+                            List.of(handlerSt1, handlerSt2),
+                            TransferSession::new,
+                            shardsInboundFence,
+                            config.getIndexMask(),
+                            config.getBuffer());
+
+                    processors.add(transferProcessor);
+                    outboundFences.add(transferProcessor.getReleasingFence());
+                }
+            }
 
-                outboundFences.add(transferProcessor.getReleasingFence());
+            final ShardRoutingTable aggregatorRouting = new ShardRoutingTable(coreConfig.getShardRouterFactory(), threadsNum, maxShardsNum, coreConfig.getAccountsStoreFactory().issuesHandles());
+            if (recovery != null) {
+                recovery.addRoutingTable(aggregatorRouting);
             }
 
             final ResponsesSmartAggregator responsesAggregator = new ResponsesSmartAggregator(
                     resultsBuffers,
                     fencesSt1,
-                    handlersMask,
+                    journalFence,
+                    aggregatorRouting,
                     responseHandler,
                     config.getBuffer());
 
@@ -219,20 +492,81 @@ public final class PaymentsCore {
 
         final PaymentsApi paymentsApi = new PaymentsApi(revelator, revelator.getIndexMask());
 
-        return new PaymentsCore(revelator, paymentsApi);
+        return new PaymentsCore(revelator, paymentsApi, resources, snapshotWriters, recovery, loadTrackers, shards, signatureVerifiers);
 
     }
 
 
+    /**
+     * @return settlement mailboxes indexed by [source shard][target shard], diagonal is not used
+     */
+    private static SettlementMailbox[][] createMailboxes(final int shardsNum) {
+
+        final int capacity = Math.max(MIN_SETTLEMENT_MAILBOX_SIZE, SETTLEMENT_MAILBOXES_SIZE / (shardsNum * shardsNum));
+
+        final SettlementMailbox[][] mailboxes = new SettlementMailbox[shardsNum][shardsNum];
+        for (int from = 0; from < shardsNum; from++) {
+            for (int to = 0; to < shardsNum; to++) {
+                if (from != to) {
+                    mailboxes[from][to] = new SettlementMailbox(capacity);
+                }
+            }
+        }
+        return mailboxes;
+    }
+
+    private static SettlementMailbox[] inboundMailboxes(final SettlementMailbox[][] mailboxes, final int shardIndex) {
+        final SettlementMailbox[] inbound = new SettlementMailbox[mailboxes.length];
+        for (int from = 0; from < mailboxes.length; from++) {
+            inbound[from] = mailboxes[from][shardIndex];
+        }
+        return inbound;
+    }
+
     private PaymentsCore(Revelator revelator,
-                         PaymentsApi paymentsApi) {
+                         PaymentsApi paymentsApi,
+                         List<AutoCloseable> resources,
+                         ShardSnapshotWriter[] snapshotWriters,
+                         PaymentsRecovery recovery,
+                         AccountLoadTracker[] loadTrackers,
+                         ShardState[] shards,
+                         List<SignatureVerifier> signatureVerifiers) {
 
         this.revelator = revelator;
         this.paymentsApi = paymentsApi;
+        this.resources = resources;
+        this.snapshotWriters = snapshotWriters;
+        this.recovery = recovery;
+        this.loadTrackers = loadTrackers;
+        this.shards = shards;
+        this.signatureVerifiers = signatureVerifiers;
     }
 
+    /**
+     * Start processing. If recovery is enabled, returns after snapshot is loaded and journal is replayed.
+     */
     public void start() {
 
+        if (recovery != null) {
+            recovery.loadSnapshot();
+            try {
+                // directly into shards, processors are not started yet
+                recovery.replayJournal();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while replaying journal", ex);
+            }
+        }
+
+        if (shards != null) {
+            // secrets of restored accounts (opened accounts are seen by verifiers in the ring)
+            for (final SignatureVerifier verifier : signatureVerifiers) {
+                for (final ShardState shard : shards) {
+                    verifier.loadSecrets(shard.accountsProcessor());
+                }
+            }
+        }
+
         revelator.start();
     }
 
@@ -241,6 +575,106 @@ public final class PaymentsCore {
         log.info("Stopping revelator...");
         revelator.stopAsync().join();
         log.info("Revelator stopped");
+
+        for (final AutoCloseable resource : resources) {
+            try {
+                resource.close();
+            } catch (final Exception ex) {
+                log.error("Failed to close {}", resource, ex);
+            }
+        }
+    }
+
+    /**
+     * Snapshot response only confirms that state of all shards was captured, files are written in background.
+     * Poll this method to find out whether snapshot was persisted (pipelined core with snapshots enabled).
+     * Only the latest snapshot is tracked.
+     *
+     * @return WRITTEN if files of all shards are written, FAILED if any shard failed to write its file, otherwise PENDING
+     */
+    public ShardSnapshotWriter.WriteStatus getSnapshotStatus(final long snapshotId) {
+        if (snapshotWriters == null) {
+            throw new UnsupportedOperationException("Snapshots are supported by pipelined core only");
+        }
+
+        ShardSnapshotWriter.WriteStatus status = ShardSnapshotWriter.WriteStatus.WRITTEN;
+        for (final ShardSnapshotWriter snapshotWriter : snapshotWriters) {
+            final ShardSnapshotWriter.WriteStatus shardStatus = snapshotWriter.getWriteStatus(snapshotId);
+            if (shardStatus == ShardSnapshotWriter.WriteStatus.FAILED) {
+                return shardStatus;
+            } else if (shardStatus == ShardSnapshotWriter.WriteStatus.PENDING) {
+                status = shardStatus;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Most loaded accounts of the shard (pipelined core), candidates for {@link PaymentsApi#migrateAccount}.
+     *
+     * @return pairs of (account, estimated operations), most loaded first
+     */
+    public long[] getHotAccounts(final int shardIndex) {
+        if (loadTrackers == null) {
+            throw new UnsupportedOperationException("Load tracking is supported by pipelined core only");
+        }
+        return loadTrackers[shardIndex].getHotAccounts();
+    }
+
+    /**
+     * Sum of account balances and treasures per currency (pipelined core). Must be called after {@link #stop()}.
+     * <p>
+     * Transfers and fees only move money between accounts and treasures,
+     * so totals can only be changed by balance adjustments (conservation check).
+     */
+    public IntLongHashMap getCurrencyTotals() {
+        if (shards == null) {
+            throw new UnsupportedOperationException("Currency totals are supported by pipelined core only");
+        }
+
+        final IntLongHashMap totals = new IntLongHashMap();
+        for (final ShardState shard : shards) {
+            shard.accountsProcessor().forEachAccount((account, encodedBalance, secret, nonce) ->
+                    totals.addToValue(AccountsProcessor.extractCurrency(account), -1 - encodedBalance));
+            shard.transferFeesProcessor().exportTreasures(totals::addToValue);
+        }
+        return totals;
+    }
+
+    /**
+     * Total number of Stage1 fence releases of all shards (pipelined core), approximate while core is running.
+     */
+    public long getSt1FenceReleases() {
+        if (shards == null) {
+            throw new UnsupportedOperationException("Fence statistics is supported by pipelined core only");
+        }
+
+        long releases = 0L;
+        for (final ShardState shard : shards) {
+            releases += shard.handlerSt1().getFenceReleases();
+        }
+        return releases;
+    }
+
+    /**
+     * Measured per-message cost of the shard stages (pipelined core), it defines work weights reported to processor
+     * (used for scheduling with dispatcher only). Can be read while core is running.
+     *
+     * @return cost meters of Stage1 and Stage2
+     */
+    public StageCostMeter[] getStageCostMeters(final int shardIndex) {
+        if (shards == null) {
+            throw new UnsupportedOperationException("Stage cost metrics are supported by pipelined core only");
+        }
+
+        final ShardState shard = shards[shardIndex];
+        return new StageCostMeter[]{shard.handlerSt1().getCostMeter(), shard.handlerSt2().getCostMeter()};
+    }
+
+    private record ShardState(AccountsProcessor accountsProcessor,
+                              TransferFeesProcessor transferFeesProcessor,
+                              PaymentsHandlerStage1 handlerSt1,
+                              PaymentsHandlerStage2 handlerSt2) {
     }
 
     public PaymentsApi getPaymentsApi() {
@@ -0,0 +1,291 @@
+package exchange.core2.revelator.examples.payments;
+
+import java.nio.file.Path;
+
+/**
+ * Payments core configuration: accounts storage, persistence and routing options.
+ */
+public final class PaymentsCoreConfig {
+
+    public static final PaymentsCoreConfig DEFAULT = builder().build();
+
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 1 << 30;
+    public static final int DEFAULT_FULL_SNAPSHOT_INTERVAL = 10;
+    public static final int DEFAULT_ST1_PUBLISH_BATCH_SIZE = 16;
+
+    private final IAccountsStoreFactory accountsStoreFactory;
+
+    private final IShardRouterFactory shardRouterFactory;
+
+    // null - snapshots disabled
+    private final Path snapshotsPath;
+
+    // every N-th snapshot is full base image, others are deltas (1 - always full)
+    private final int fullSnapshotInterval;
+
+    // null - journaling disabled
+    private final Path journalPath;
+    private final int journalSegmentSize;
+
+    // load latest snapshot and replay journal on start
+    private final boolean recoveryEnabled;
+
+    // pre-route messages into per-shard queues, so shards do not read foreign messages
+    // (also the only mode where stages are interleaved by measured work weights, see StageCostMeter)
+    private final boolean dispatcherEnabled;
+
+    // shard pipelines started by pipelined core, allows resharding up to this number (0 - same as initial number of shards)
+    private final int maxShardsNum;
+
+    // credits from other shards are not parked behind conflicting messages of the destination account
+    private final boolean commutativeCredits;
+
+    // Stage1 fence is published at the end of every batch, or after this number of completed messages (1 - every message)
+    private final int st1PublishBatchSize;
+
+    // processors verifying transfer signatures ahead of shards (0 - signatures are checked by shards)
+    private final int signatureVerifiersNum;
+
+    // transfer signature scheme, every processor gets own instance (also defines transfer message size)
+    private final ITransferAuthSchemeFactory authSchemeFactory;
+
+    // recent transfers remembered per shard by correlation id, retries return original result (0 - disabled)
+    private final int correlationWindowSize;
+
+    private PaymentsCoreConfig(final Builder builder) {
+        this.accountsStoreFactory = builder.accountsStoreFactory;
+        this.shardRouterFactory = builder.shardRouterFactory;
+        this.snapshotsPath = builder.snapshotsPath;
+        this.fullSnapshotInterval = builder.fullSnapshotInterval;
+        this.journalPath = builder.journalPath;
+        this.journalSegmentSize = builder.journalSegmentSize;
+        this.recoveryEnabled = builder.recoveryEnabled;
+        this.dispatcherEnabled = builder.dispatcherEnabled;
+        this.maxShardsNum = builder.maxShardsNum;
+        this.commutativeCredits = builder.commutativeCredits;
+        this.st1PublishBatchSize = builder.st1PublishBatchSize;
+        this.signatureVerifiersNum = builder.signatureVerifiersNum;
+        this.authSchemeFactory = builder.authSchemeFactory;
+        this.correlationWindowSize = builder.correlationWindowSize;
+    }
+
+    public IAccountsStoreFactory getAccountsStoreFactory() {
+        return accountsStoreFactory;
+    }
+
+    public IShardRouterFactory getShardRouterFactory() {
+        return shardRouterFactory;
+    }
+
+    public Path getSnapshotsPath() {
+        return snapshotsPath;
+    }
+
+    public boolean isSnapshotsEnabled() {
+        return snapshotsPath != null;
+    }
+
+    public int getFullSnapshotInterval() {
+        return fullSnapshotInterval;
+    }
+
+    public Path getJournalPath() {
+        return journalPath;
+    }
+
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    public boolean isJournalingEnabled() {
+        return journalPath != null;
+    }
+
+    public boolean isRecoveryEnabled() {
+        return recoveryEnabled;
+    }
+
+    public boolean isDispatcherEnabled() {
+        return dispatcherEnabled;
+    }
+
+    public int getMaxShardsNum() {
+        return maxShardsNum;
+    }
+
+    public boolean isCommutativeCredits() {
+        return commutativeCredits;
+    }
+
+    public int getSt1PublishBatchSize() {
+        return st1PublishBatchSize;
+    }
+
+    public int getSignatureVerifiersNum() {
+        return signatureVerifiersNum;
+    }
+
+    public ITransferAuthSchemeFactory getAuthSchemeFactory() {
+        return authSchemeFactory;
+    }
+
+    public int getCorrelationWindowSize() {
+        return correlationWindowSize;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .accountsStoreFactory(accountsStoreFactory)
+                .shardRouterFactory(shardRouterFactory)
+                .snapshotsPath(snapshotsPath)
+                .fullSnapshotInterval(fullSnapshotInterval)
+                .journalPath(journalPath)
+                .journalSegmentSize(journalSegmentSize)
+                .recoveryEnabled(recoveryEnabled)
+                .dispatcherEnabled(dispatcherEnabled)
+                .maxShardsNum(maxShardsNum)
+                .commutativeCredits(commutativeCredits)
+                .st1PublishBatchSize(st1PublishBatchSize)
+                .signatureVerifiersNum(signatureVerifiersNum)
+                .authSchemeFactory(authSchemeFactory)
+                .correlationWindowSize(correlationWindowSize);
+    }
+
+    public static final class Builder {
+
+        private IAccountsStoreFactory accountsStoreFactory = IAccountsStoreFactory.HEAP;
+        private IShardRouterFactory shardRouterFactory = IShardRouterFactory.DEFAULT;
+        private Path snapshotsPath = null;
+        private int fullSnapshotInterval = DEFAULT_FULL_SNAPSHOT_INTERVAL;
+        private Path journalPath = null;
+        private int journalSegmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+        private boolean recoveryEnabled = false;
+        private boolean dispatcherEnabled = false;
+        private int maxShardsNum = 0;
+        private boolean commutativeCredits = false;
+        private int st1PublishBatchSize = DEFAULT_ST1_PUBLISH_BATCH_SIZE;
+        private int signatureVerifiersNum = 0;
+        private ITransferAuthSchemeFactory authSchemeFactory = ITransferAuthSchemeFactory.DEFAULT;
+        private int correlationWindowSize = 0;
+
+        private Builder() {
+        }
+
+        public Builder accountsStoreFactory(final IAccountsStoreFactory accountsStoreFactory) {
+            this.accountsStoreFactory = accountsStoreFactory;
+            return this;
+        }
+
+        public Builder shardRouterFactory(final IShardRouterFactory shardRouterFactory) {
+            this.shardRouterFactory = shardRouterFactory;
+            return this;
+        }
+
+        public Builder snapshotsPath(final Path snapshotsPath) {
+            this.snapshotsPath = snapshotsPath;
+            return this;
+        }
+
+        public Builder fullSnapshotInterval(final int fullSnapshotInterval) {
+            if (fullSnapshotInterval < 1) {
+                throw new IllegalArgumentException("Full snapshot interval must be positive");
+            }
+            this.fullSnapshotInterval = fullSnapshotInterval;
+            return this;
+        }
+
+        public Builder journalPath(final Path journalPath) {
+            this.journalPath = journalPath;
+            return this;
+        }
+
+        public Builder journalSegmentSize(final int journalSegmentSize) {
+            if (journalSegmentSize < JournalWriter.maxRecordSize(PaymentsCore.BUFFER_SIZE)) {
+                throw new IllegalArgumentException("Journal segment size must fit the largest message: "
+                        + JournalWriter.maxRecordSize(PaymentsCore.BUFFER_SIZE) + " bytes");
+            }
+            this.journalSegmentSize = journalSegmentSize;
+            return this;
+        }
+
+        public Builder recoveryEnabled(final boolean recoveryEnabled) {
+            this.recoveryEnabled = recoveryEnabled;
+            return this;
+        }
+
+        public Builder dispatcherEnabled(final boolean dispatcherEnabled) {
+            this.dispatcherEnabled = dispatcherEnabled;
+            return this;
+        }
+
+        public Builder maxShardsNum(final int maxShardsNum) {
+            if (maxShardsNum < 0) {
+                throw new IllegalArgumentException("Max number of shards can not be negative");
+            }
+            this.maxShardsNum = maxShardsNum;
+            return this;
+        }
+
+        public Builder commutativeCredits(final boolean commutativeCredits) {
+            this.commutativeCredits = commutativeCredits;
+            return this;
+        }
+
+        public Builder st1PublishBatchSize(final int st1PublishBatchSize) {
+            if (st1PublishBatchSize < 1) {
+                throw new IllegalArgumentException("Stage1 publish batch size must be positive");
+            }
+            this.st1PublishBatchSize = st1PublishBatchSize;
+            return this;
+        }
+
+        public Builder signatureVerifiersNum(final int signatureVerifiersNum) {
+            if (signatureVerifiersNum < 0) {
+                throw new IllegalArgumentException("Number of signature verifiers can not be negative");
+            }
+            this.signatureVerifiersNum = signatureVerifiersNum;
+            return this;
+        }
+
+        public Builder authSchemeFactory(final ITransferAuthSchemeFactory authSchemeFactory) {
+            this.authSchemeFactory = authSchemeFactory;
+            return this;
+        }
+
+        public Builder correlationWindowSize(final int correlationWindowSize) {
+            if (correlationWindowSize < 0) {
+                throw new IllegalArgumentException("Correlation window size can not be negative");
+            }
+            this.correlationWindowSize = correlationWindowSize;
+            return this;
+        }
+
+        public PaymentsCoreConfig build() {
+            return new PaymentsCoreConfig(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentsCoreConfig{" +
+                "accountsStoreFactory=" + accountsStoreFactory +
+                ", shardRouterFactory=" + shardRouterFactory +
+                ", snapshotsPath=" + snapshotsPath +
+                ", fullSnapshotInterval=" + fullSnapshotInterval +
+                ", journalPath=" + journalPath +
+                ", journalSegmentSize=" + journalSegmentSize +
+                ", recoveryEnabled=" + recoveryEnabled +
+                ", dispatcherEnabled=" + dispatcherEnabled +
+                ", maxShardsNum=" + maxShardsNum +
+                ", commutativeCredits=" + commutativeCredits +
+                ", st1PublishBatchSize=" + st1PublishBatchSize +
+                ", signatureVerifiersNum=" + signatureVerifiersNum +
+                ", authSchemeFactory=" + authSchemeFactory +
+                ", correlationWindowSize=" + correlationWindowSize +
+                '}';
+    }
+}
@@ -1,34 +1,85 @@
 package exchange.core2.revelator.examples.payments;
 
 import exchange.core2.revelator.Revelator;
-import exchange.core2.revelator.buffers.LocalResultsByteBuffer;
 import exchange.core2.revelator.buffers.LocalResultsLongBuffer;
+import exchange.core2.revelator.fences.IFence;
+import exchange.core2.revelator.fences.SingleWriterFence;
 import exchange.core2.revelator.processors.simple.SimpleMessageHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-// TODO implement second part (disruptor design)
+import java.util.ArrayDeque;
+
+/**
+ * Shard handler of parallel core, every shard runs own {@link exchange.core2.revelator.processors.simple.SimpleFlowProcessor}.
+ * <p>
+ * First phase is the same as pipelined Stage1: local transfers are completed immediately,
+ * cross-shard transfer withdraws source amount or checks destination account and registers pending transfer.
+ * Second phase (same as pipelined Stage2) is deferred: transfers are settled in offset order
+ * before following messages, as soon as other shard has published its part (refund, credit and treasures).
+ * Withdrawal that does not fit into conservative balance while account has pending transfers waits
+ * until preceding transfers are settled, so execution stays deterministic.
+ * <p>
+ * Ring space is released by settled fence, so results of other shards are not overwritten before settlement.
+ */
 public final class PaymentsHandlerParallel implements SimpleMessageHandler {
 
     private static final Logger log = LoggerFactory.getLogger(PaymentsHandlerParallel.class);
 
+    // settlement is forced before pending transfers can block ring publisher
+    private static final long MAX_SETTLEMENT_LAG = PaymentsCore.BUFFER_SIZE / 2;
+
+    // store maintenance once per this number of messages
+    private static final int HOUSEKEEPING_MASK = 63;
+    private int housekeepingCounter = 0;
+
     private final AccountsProcessor accountsProcessor;
+    private final TransferFeesProcessor transferFeesProcessor;
+    private final ITransferAuthScheme authScheme;
+    private final AccountReservations reservations;
+
     private final LocalResultsLongBuffer resultsBuffer;
 
+    // first phase progress, published after every message
+    private final SingleWriterFence st1Fence;
+
+    // all preceding messages are settled
+    private final SingleWriterFence settledFence;
+
+    // other shards results and first phase progress
+    private final LocalResultsLongBuffer[] resultsBuffers;
+    private final CachingFencesArray fencesSt1;
+
     private final int handlerIndex;
-    private final long handlersMask;
+    private final IShardRouter shardRouter;
 
-    private long useless = 0;
+    // cross-shard transfers waiting for other shard, in offset order
+    private final ArrayDeque<TransferSession> pendingSettlements = new ArrayDeque<>();
+    private final ArrayDeque<TransferSession> sessionsPool = new ArrayDeque<>();
 
     public PaymentsHandlerParallel(AccountsProcessor accountsProcessor,
+                                   TransferFeesProcessor transferFeesProcessor,
+                                   ITransferAuthScheme authScheme,
+                                   AccountReservations reservations,
                                    LocalResultsLongBuffer resultsBuffer,
+                                   SingleWriterFence st1Fence,
+                                   SingleWriterFence settledFence,
+                                   LocalResultsLongBuffer[] resultsBuffers,
+                                   IFence[] fencesSt1,
                                    int handlerIndex,
-                                   long handlersMask) {
+                                   IShardRouter shardRouter) {
 
         this.accountsProcessor = accountsProcessor;
+        this.transferFeesProcessor = transferFeesProcessor;
+        this.authScheme = authScheme;
+        this.reservations = reservations;
         this.resultsBuffer = resultsBuffer;
+        this.st1Fence = st1Fence;
+        this.settledFence = settledFence;
+        this.resultsBuffers = resultsBuffers;
+        this.fencesSt1 = new CachingFencesArray(fencesSt1);
         this.handlerIndex = handlerIndex;
-        this.handlersMask = handlersMask;
+        this.shardRouter = shardRouter;
     }
 
     @Override
@@ -40,122 +91,371 @@ public final class PaymentsHandlerParallel implements SimpleMessageHandler {
                               long correlationId,
                               byte msgType) {
 
+        if ((++housekeepingCounter & HOUSEKEEPING_MASK) == 0) {
+            // no slots are held between messages (settlements resolve accounts again)
+            accountsProcessor.housekeeping();
+        }
+
+        settleReady();
+
+        while (!pendingSettlements.isEmpty() && pendingSettlements.peekFirst().globalOffset < globalOffset - MAX_SETTLEMENT_LAG) {
+            // other shard is lagging too much
+            Thread.onSpinWait();
+            settleReady();
+        }
+
         switch (msgType) {
 
-            case PaymentsApi.CMD_TRANSFER -> {
-                final long accountFrom = buffer[addr];
-                final long accountTo = buffer[addr + 1];
-                final long amount = buffer[addr + 2];
-                final TransferType transferType = TransferType.fromByte((byte) buffer[addr + 3]);
-                processTransfer1(accountFrom, accountTo, amount, transferType, handlerIndex);
-            }
+            case PaymentsApi.CMD_TRANSFER -> processTransfer(buffer, addr, msgSize, globalOffset);
 
-            case PaymentsApi.CMD_OPEN_ACCOUNT -> {
-                final long account = buffer[addr];
-                final long secret = buffer[addr + 1];
-                processOpenAccount(account, secret, handlerIndex);
-            }
+            case PaymentsApi.CMD_OPEN_ACCOUNT -> processOpenAccount(buffer, addr);
 
-            case PaymentsApi.CMD_ADJUST_BALANCE -> {
-                final long account = buffer[addr];
-                final long amount = buffer[addr + 1];
-                processAdjustment(account, amount, handlerIndex);
-            }
+            case PaymentsApi.CMD_CLOSE_ACCOUNT -> processCloseAccount(buffer, addr);
+
+            case PaymentsApi.CMD_ADJUST_BALANCE -> processAdjustment(buffer, addr);
+
+            case PaymentsApi.CMD_CTRL_FEES -> processControlFeeConfig(buffer, addr, msgSize);
 
-            case Revelator.MSG_TYPE_TEST_CONTROL, Revelator.MSG_TYPE_POISON_PILL -> {
-                //
+            case PaymentsApi.CMD_CTRL_CUR_RATE -> processControlCurrencyRate(buffer, addr);
+
+            case Revelator.MSG_TYPE_TEST_CONTROL -> resultsBuffer.set(addr, (byte) 42);
+
+            case Revelator.MSG_TYPE_POISON_PILL -> {
+                resultsBuffer.set(addr, (byte) 42);
+                st1Fence.setRelease(globalOffset);
+                // leave consistent balances after stop
+                settleAll();
             }
 
             default -> throw new IllegalStateException("Unsupported message type " + msgType + " at offset " + globalOffset);
         }
+
+        st1Fence.setRelease(globalOffset);
+        settledFence.setRelease(pendingSettlements.isEmpty() ? globalOffset : pendingSettlements.peekFirst().globalOffset - 1);
     }
 
 
-    private void processOpenAccount(final long account,
-                                    final long secret,
-                                    final int index) {
+    private void processOpenAccount(final long[] buffer, final int addr) {
 
-        if ((account & handlersMask) != handlerIndex) {
+        final long account = buffer[addr];
+        final long secret = buffer[addr + 1];
+
+        if (shardRouter.shardOf(account) != handlerIndex) {
             return;
         }
 
-        if (!accountsProcessor.accountExists(account)) {
-//            log.debug("Opening account {}", account);
-            accountsProcessor.openNewAccount(account, secret);
-            resultsBuffer.set(index, (byte) 1);
+        final long result;
+
+        if (AccountsProcessor.isAccountHandle(account)) {
+            log.warn("Can not open account by handle {} !", account);
+            result = -3;
+        } else if (accountsProcessor.accountNotExists(account)) {
+            if (secret != 0L) {
+                final int slot = accountsProcessor.openNewAccount(account, secret);
+                result = AccountsProcessor.encodeOpenAccountSuccess(accountsProcessor.isDenseSlots() ? slot : -1);
+            } else {
+                log.warn("Can not use 0 as secret for account {} !", account);
+                result = -2;
+            }
         } else {
-
             log.warn("Account {} already exists!", account);
-            resultsBuffer.set(index, (byte) -1);
+            result = -1;
         }
+
+        resultsBuffer.set(addr, result);
     }
 
+    private void processCloseAccount(final long[] buffer, final int addr) {
 
-    private void processAdjustment(final long account,
-                                   final long amount,
-                                   final int index) {
+        final long account = buffer[addr];
 
-        if ((account & handlersMask) != handlerIndex) {
+        if (shardRouter.shardOf(account) != handlerIndex) {
             return;
         }
 
-        if (!accountsProcessor.accountExists(account)) {
+        int slot = accountsProcessor.findAccount(account);
+
+        if (slot != IAccountsStore.NOT_FOUND && reservations.hasPending(accountsProcessor.getAccountAt(slot))) {
+            // pending refund or credit would change balance check result
+            settleAll();
+            slot = accountsProcessor.findAccount(account);
+        }
+
+        if (slot == IAccountsStore.NOT_FOUND) {
+            // account already closed
+            resultsBuffer.set(addr, (byte) 2);
+        } else if (!accountsProcessor.accountHasZeroBalanceAt(slot)) {
+            resultsBuffer.set(addr, (byte) -1);
+        } else {
+            accountsProcessor.closeAccountAt(slot);
+            resultsBuffer.set(addr, (byte) 1);
+        }
+    }
+
+    private void processAdjustment(final long[] buffer, final int addr) {
+
+        final long account = buffer[addr];
+        final long amount = buffer[addr + 1];
+
+        if (shardRouter.shardOf(account) != handlerIndex) {
+            return;
+        }
+
+        final int slot = accountsProcessor.findAccount(account);
+
+        if (slot == IAccountsStore.NOT_FOUND) {
 
             log.warn("Account {} does not exists or closed!", account);
-            log.warn("Useless {} ", useless);
 
             // account does not exist or closed
-            resultsBuffer.set(index, (byte) -2);
+            resultsBuffer.set(addr, (byte) -2);
             return;
         }
 
-        boolean success = (amount > 0)
-                ? accountsProcessor.deposit(account, amount)
-                : accountsProcessor.withdrawal(account, -amount);
+        boolean success;
+        if (amount > 0) {
+            accountsProcessor.depositAt(slot, amount);
+            success = true;
+        } else {
+            success = accountsProcessor.withdrawalAt(slot, -amount);
+            if (!success && reservations.hasPending(accountsProcessor.getAccountAt(slot))) {
+                // pending refunds or credits can change the result
+                settleAll();
+                success = accountsProcessor.withdrawalAt(slot, -amount);
+            }
+        }
 
-        resultsBuffer.set(index, success ? (byte) 1 : -1);
+        resultsBuffer.set(addr, success ? (byte) 1 : -1);
     }
 
-    private void processTransfer1(final long accountSrc,
-                                  final long accountDst,
-                                  final long amount,
-                                  final TransferType transferType,
-                                  final int index) {
+    private void processTransfer(final long[] buffer,
+                                 final int addr,
+                                 final int msgSize,
+                                 final long globalOffset) {
+
+        final long accountSrc = buffer[addr];
+        final long accountDst = buffer[addr + 1];
 
-        final boolean processSrc = (accountSrc & handlersMask) == handlerIndex;
-        final boolean processDst = (accountDst & handlersMask) == handlerIndex;
+        final int shardSrc = shardRouter.shardOf(accountSrc);
+        final int shardDst = shardRouter.shardOf(accountDst);
+        final boolean processSrc = shardSrc == handlerIndex;
+        final boolean processDst = shardDst == handlerIndex;
 
         if (!processSrc && !processDst) {
             // message is not related to this handler - just skip it
             return;
         }
 
-//        int h = Hashing.hash(accountDst);
-//        for (int i = 0; i < 60; i++) {
-//            h = Hashing.hash(h);
-//        }
-//        useless += h;
-
-        final boolean success;
+        final TransferSession session = sessionsPool.isEmpty() ? new TransferSession() : sessionsPool.pollFirst();
+        session.globalOffset = globalOffset;
+        session.bufferIndex = addr;
+        session.payloadSize = msgSize;
+        session.shardSrc = shardSrc;
+        session.shardDst = shardDst;
+        session.processSrc = processSrc;
+        session.processDst = processDst;
+        session.accountSrc = accountSrc;
+        session.accountDst = accountDst;
+        session.amountSrc = 0L;
+        session.amountDst = 0L;
+        session.treasureAmountSrc = 0L;
+        session.treasureAmountDst = 0L;
+        session.localPartSucceeded = false;
+
+        final long orderAmount = buffer[addr + 2];
+        final long ttAndCurr = buffer[addr + 3];
+        final TransferType transferType = TransferType.fromByte((byte) ttAndCurr);
+        final short orderCurrency = (short) (ttAndCurr >> 8);
+
+        final long exchangeData;
 
         if (processSrc && processDst) {
-            // source and destination both handled by this processor
-            success = accountsProcessor.transferLocally(accountSrc, accountDst, amount, amount);
+            // source and destination both handled by this processor - completed immediately
+
+            session.slotSrc = accountsProcessor.findAccount(accountSrc);
+            session.slotDst = accountsProcessor.findAccount(accountDst);
+            session.accountSrc = canonicalAccount(session.slotSrc, accountSrc);
+            session.accountDst = canonicalAccount(session.slotDst, accountDst);
+
+            if (session.accountSrc == session.accountDst) {
+                log.warn("Can not transfer to the same account {}", session.accountSrc);
+                exchangeData = -1L;
+            } else if (session.slotSrc != IAccountsStore.NOT_FOUND
+                    && session.slotDst != IAccountsStore.NOT_FOUND
+                    && checkTransferSignature(session, buffer)
+                    && checkNonce(session, ttAndCurr)
+                    && performWithdrawal(session, transferType, accountSrc, accountDst, orderAmount, orderCurrency)) {
+
+                accountsProcessor.depositAt(session.slotDst, session.amountDst);
+                acceptNonce(session, ttAndCurr);
+                transferFeesProcessor.applyTreasures(
+                        AccountsProcessor.extractCurrency(session.accountSrc),
+                        AccountsProcessor.extractCurrency(session.accountDst),
+                        session);
+                exchangeData = 0L;
+            } else {
+                exchangeData = -1L;
+            }
 
         } else if (processSrc) {
+            // process only Source account, refund is possible after settlement
+
+            session.slotSrc = accountsProcessor.findAccount(accountSrc);
+            session.accountSrc = canonicalAccount(session.slotSrc, accountSrc);
+
+            session.localPartSucceeded = session.slotSrc != IAccountsStore.NOT_FOUND
+                    && checkTransferSignature(session, buffer)
+                    && checkNonce(session, ttAndCurr)
+                    && performWithdrawal(session, transferType, accountSrc, accountDst, orderAmount, orderCurrency);
+
+            exchangeData = session.localPartSucceeded ? session.amountDst : -1L;
+
+            if (session.localPartSucceeded) {
+                acceptNonce(session, ttAndCurr);
+                reservations.addPendingDebit(session.accountSrc);
+            }
+
+        } else {
+            // process only Destination account, credit amount is known after settlement
 
-            success = accountsProcessor.withdrawal(accountSrc, amount);
+            session.slotDst = accountsProcessor.findAccount(accountDst);
+            session.accountDst = canonicalAccount(session.slotDst, accountDst);
 
+            session.localPartSucceeded = session.slotDst != IAccountsStore.NOT_FOUND;
+            exchangeData = session.localPartSucceeded ? 0L : -1L;
+
+            if (session.localPartSucceeded) {
+                reservations.addPendingCredit(session.accountDst);
+            }
+        }
+
+        if (exchangeData == -1L) {
+            log.warn("Can not process transfer {}->{}! (process {}->{}) {}", accountSrc, accountDst, processSrc, processDst, transferType);
+        }
+
+        resultsBuffer.set(addr, exchangeData);
+
+        if (session.localPartSucceeded) {
+            pendingSettlements.addLast(session);
         } else {
+            sessionsPool.addLast(session);
+        }
+    }
+
+    private boolean performWithdrawal(final TransferSession session,
+                                      final TransferType transferType,
+                                      final long accountSrc,
+                                      final long accountDst,
+                                      final long orderAmount,
+                                      final short orderCurrency) {
 
-            success = accountsProcessor.deposit(accountDst, amount);
+        if (transferFeesProcessor.performWithdrawal(session, transferType, accountSrc, accountDst, orderAmount, orderCurrency)) {
+            return true;
         }
 
-        if (!success) {
-            log.warn("Can not process transfer {}->{}! (process {}->{})", accountSrc, accountDst, processSrc, processDst);
+        if (!session.insufficientFunds || !reservations.hasPending(session.accountSrc)) {
+            return false;
         }
 
-        resultsBuffer.set(index, success ? (byte) 1 : -1);
+        // balance does not include pending refunds and credits - settle preceding transfers and check again
+        settleAll();
+        return transferFeesProcessor.performWithdrawal(session, transferType, accountSrc, accountDst, orderAmount, orderCurrency);
+    }
+
+    private boolean checkTransferSignature(final TransferSession session, final long[] buffer) {
+
+        // signature covers accounts as they were sent (ids or handles)
+        final long secret = accountsProcessor.getSecretAt(session.slotSrc);
+        return authScheme.checkTransfer(buffer, session.bufferIndex, session.payloadSize, secret);
+    }
+
+    private boolean checkNonce(final TransferSession session, final long ttAndCurr) {
+        final long nonce = ITransferAuthScheme.extractNonce(ttAndCurr);
+        if (nonce != 0L && nonce <= accountsProcessor.getNonceAt(session.slotSrc)) {
+            log.warn("Nonce {} of account {} was already used", nonce, session.accountSrc);
+            return false;
+        }
+        return true;
+    }
+
+    private void acceptNonce(final TransferSession session, final long ttAndCurr) {
+        final long nonce = ITransferAuthScheme.extractNonce(ttAndCurr);
+        if (nonce != 0L) {
+            accountsProcessor.setNonceAt(session.slotSrc, nonce);
+        }
+    }
+
+    private long canonicalAccount(final int slot, final long account) {
+        return slot == IAccountsStore.NOT_FOUND ? account : accountsProcessor.getAccountAt(slot);
+    }
+
+    /**
+     * Settle pending transfers in offset order while other shards have published their parts.
+     */
+    private void settleReady() {
+
+        while (!pendingSettlements.isEmpty()) {
+
+            final TransferSession session = pendingSettlements.peekFirst();
+            final int otherIdx = session.processSrc ? session.shardDst : session.shardSrc;
+
+            if (!fencesSt1.isReached(otherIdx, session.globalOffset)) {
+                return;
+            }
+
+            settle(session, resultsBuffers[otherIdx].get(session.bufferIndex));
+            sessionsPool.addLast(pendingSettlements.pollFirst());
+        }
+    }
+
+    /**
+     * Settle all pending transfers. Other shards never wait for this one at offsets above its own position,
+     * so waiting here can not deadlock.
+     */
+    private void settleAll() {
+        settleReady();
+        while (!pendingSettlements.isEmpty()) {
+            Thread.onSpinWait();
+            settleReady();
+        }
+    }
+
+    private void settle(final TransferSession session, final long exchangeData) {
+
+        if (session.processDst) {
+            reservations.settleCredit(session.accountDst, Math.max(exchangeData, 0L));
+
+        } else if (exchangeData == 0L) {
+            transferFeesProcessor.applyTreasures(
+                    AccountsProcessor.extractCurrency(session.accountSrc),
+                    AccountsProcessor.extractCurrency(session.accountDst),
+                    session);
+            reservations.settleDebit(session.accountSrc, 0L);
+
+        } else {
+            // rollback transaction
+            reservations.settleDebit(session.accountSrc, session.amountSrc);
+        }
+    }
+
+    private void processControlCurrencyRate(final long[] buffer, final int addr) {
+
+        final long currencies = buffer[addr];
+        final short currencyFrom = (short) (currencies >> 32);
+        final short currencyTo = (short) (currencies & Integer.MAX_VALUE);
+
+        final double rate = Double.longBitsToDouble(buffer[addr + 1]);
+
+        transferFeesProcessor.updateCurrencyRate(currencyFrom, currencyTo, rate);
+    }
+
+    private void processControlFeeConfig(final long[] buffer, final int addr, final int msgSize) {
+
+        transferFeesProcessor.setFeeK(Double.longBitsToDouble(buffer[addr]));
+
+        for (int i = 1; i < msgSize; i += 3) {
+            transferFeesProcessor.putFeeConfig((short) buffer[addr + i], buffer[addr + i + 1], buffer[addr + i + 2]);
+        }
     }
 
     @Override
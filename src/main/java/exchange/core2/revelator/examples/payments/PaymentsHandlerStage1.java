@@ -2,9 +2,9 @@ package exchange.core2.revelator.examples.payments;
 
 import exchange.core2.revelator.Revelator;
 import exchange.core2.revelator.buffers.LocalResultsLongBuffer;
+import exchange.core2.revelator.fences.IFence;
 import exchange.core2.revelator.fences.SingleWriterFence;
 import exchange.core2.revelator.processors.pipelined.PipelinedStageHandler;
-import org.agrona.collections.LongHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,52 +12,149 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
 
     private static final Logger log = LoggerFactory.getLogger(PaymentsHandlerStage1.class);
 
+    // work weight until cost is measured
+    static final int DEFAULT_WORK_WEIGHT = 10;
+
+    // store maintenance once per this number of messages
+    private static final int HOUSEKEEPING_MASK = 63;
+
     private final AccountsProcessor accountsProcessor;
     private final TransferFeesProcessor transferFeesProcessor;
-    private final SignatureHandler signatureHandler;
+    private final ITransferAuthScheme authScheme;
+
+    // verdicts of signature verification stage, null if signatures are checked by shard
+    private final LocalResultsLongBuffer signatureVerdicts;
+    private final ShardSnapshotWriter snapshotWriter;
 
     private final LocalResultsLongBuffer resultsBuffer;
     private final SingleWriterFence st1Fence;
 
+    // other shards results and progress - migrated account state is taken from source shard
+    private final LocalResultsLongBuffer[] resultsBuffers;
+    private final IFence[] fencesSt1;
+
+    // cross-shard transfer results pushed to other shards, indexed by target shard
+    private final SettlementMailbox[] outboundMailboxes;
+
     private final long[] requestsBuffer;
     private final int handlerIndex;
-    private final long handlersMask;
+    private final ShardRoutingTable shardRouter;
+    private final AccountLoadTracker loadTracker;
+    private final ReshardExchange reshardExchange;
 
-    private final LongHashSet lockedAccounts;
+    private final AccountReservations reservations;
+    private final ParkedMessages parkedMessages;
 
-//    @Contended
-//    private boolean unpublishedSt1 = false;
+    // results of recent transfers by correlation id, null if retries are not detected
+    private final CorrelationWindow correlationWindow;
+
+    // credits to parked accounts are not parked (only closing blocks them)
+    private final boolean commutativeCredits;
+
+    // remaining parked messages and pending transfers of the accounts are newer than re-driven message
+    private boolean redriving = false;
+
+    // highest offset with completed result, published only up to the oldest parked message
+    private long completedOffset = -1L;
+
+    // fence is published at the end of every batch, or after this number of completed messages
+    private final int publishBatchSize;
+    private int unpublishedNum = 0;
+    private long publishedOffset = -1L;
+    private long fenceReleases = 0L;
+
+    // measured cost, reported as work weight
+    private final StageCostMeter costMeter = new StageCostMeter(DEFAULT_WORK_WEIGHT);
+
+    private int housekeepingCounter = 0;
+
+    // resharding in progress: accounts are exported at this offset, waiting for other shards
+    private long reshardOffset = -1L;
+    private IShardRouter reshardRouter;
+    private long lastReshardOffset = -1L;
+
+    // last migration from this shard that exported correlation window entries
+    private long lastMigrationOffset = -1L;
 
 //    @Contended
 //    private long useless = 0;
 
     public PaymentsHandlerStage1(AccountsProcessor accountsProcessor,
                                  TransferFeesProcessor transferFeesProcessor,
-                                 SignatureHandler signatureHandler,
+                                 ITransferAuthScheme authScheme,
+                                 LocalResultsLongBuffer signatureVerdicts,
+                                 ShardSnapshotWriter snapshotWriter,
                                  long[] requestsBuffer,
                                  LocalResultsLongBuffer resultsBuffer,
                                  SingleWriterFence st1Fence,
-                                 LongHashSet lockedAccounts,
+                                 LocalResultsLongBuffer[] resultsBuffers,
+                                 IFence[] fencesSt1,
+                                 SettlementMailbox[] outboundMailboxes,
+                                 AccountReservations reservations,
+                                 ParkedMessages parkedMessages,
+                                 CorrelationWindow correlationWindow,
+                                 boolean commutativeCredits,
                                  int handlerIndex,
-                                 long handlersMask) {
+                                 ShardRoutingTable shardRouter,
+                                 AccountLoadTracker loadTracker,
+                                 ReshardExchange reshardExchange,
+                                 int publishBatchSize) {
 
         this.accountsProcessor = accountsProcessor;
         this.transferFeesProcessor = transferFeesProcessor;
-        this.signatureHandler = signatureHandler;
+        this.authScheme = authScheme;
+        this.signatureVerdicts = signatureVerdicts;
+        this.snapshotWriter = snapshotWriter;
         this.requestsBuffer = requestsBuffer;
         this.resultsBuffer = resultsBuffer;
         this.st1Fence = st1Fence;
+        this.resultsBuffers = resultsBuffers;
+        this.fencesSt1 = fencesSt1;
+        this.outboundMailboxes = outboundMailboxes;
         this.handlerIndex = handlerIndex;
-        this.handlersMask = handlersMask;
-        this.lockedAccounts = lockedAccounts;
+        this.shardRouter = shardRouter;
+        this.loadTracker = loadTracker;
+        this.reshardExchange = reshardExchange;
+        this.reservations = reservations;
+        this.parkedMessages = parkedMessages;
+        this.correlationWindow = correlationWindow;
+        this.commutativeCredits = commutativeCredits;
+        this.publishBatchSize = publishBatchSize;
     }
 
 
     @Override
     public boolean process(final TransferSession session) {
 
+        if ((++housekeepingCounter & HOUSEKEEPING_MASK) == 0) {
+            // no slots are held between messages - store migration progresses without inserts and closures too
+            accountsProcessor.housekeeping();
+        }
+
+        costMeter.start();
+
+        final boolean processed = processMessage(session);
+
+        if (!processed || session.wordsLeftInBatch <= 0) {
+            // end of batch, or waiting (possibly for other shards that need results of this one)
+            publishSt1();
+        }
+
+        costMeter.stop(processed);
+
+        return processed;
+    }
+
+    private boolean processMessage(final TransferSession session) {
+
 //        log.debug("ST1 t={}", session.timestamp);
 
+        session.parked = false;
+
+        if (!parkedMessages.isEmpty() && !isAccountMessage(session.messageType)) {
+            // control messages can change fees, rates and routing - parked messages must be completed before
+            return false;
+        }
 
         try {
             switch (session.messageType) {
@@ -86,9 +183,22 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
                     return processControlCurrencyRate(session);
                 }
 
+                case PaymentsApi.CMD_CTRL_SNAPSHOT -> {
+                    return processSnapshot(session);
+                }
+
+                case PaymentsApi.CMD_MIGRATE_ACCOUNT -> {
+                    return processMigration(session);
+                }
+
+                case PaymentsApi.CMD_CTRL_RESHARD -> {
+                    return processReshard(session);
+                }
+
                 case Revelator.MSG_TYPE_TEST_CONTROL, Revelator.MSG_TYPE_POISON_PILL -> {
                     resultsBuffer.set(session.bufferIndex, (byte) 42);
-                    st1Fence.setRelease(session.globalOffset);
+                    releaseSt1(session.globalOffset);
+                    publishSt1();
                     return true;
                 }
 
@@ -100,36 +210,163 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
         throw new IllegalStateException("Unsupported message type " + session.messageType + " at offset " + session.globalOffset);
     }
 
+    /**
+     * Ring offsets start from 0 after journal was replayed directly into handlers:
+     * reset progress of this shard (fence, outbound mailboxes, resharding fences).
+     * Processors of all shards must be stopped, and all replayed messages completed.
+     */
+    void resetOffsets() {
+
+        if (!parkedMessages.isEmpty() || !reservations.isEmpty() || reshardRouter != null) {
+            throw new IllegalStateException("Shard " + handlerIndex + " has incomplete messages");
+        }
+
+        completedOffset = -1L;
+        publishedOffset = -1L;
+        unpublishedNum = 0;
+        reshardOffset = -1L;
+        lastReshardOffset = -1L;
+        lastMigrationOffset = -1L;
+        st1Fence.setRelease(-1L);
+
+        for (final SettlementMailbox mailbox : outboundMailboxes) {
+            if (mailbox != null) {
+                mailbox.reset();
+            }
+        }
+
+        reshardExchange.resetFences(handlerIndex);
+    }
+
+    /**
+     * Called by Stage2 when it reaches parked session: all preceding transfers of the parked accounts are settled,
+     * so the message is processed without waiting.
+     */
+    public void redrive(final TransferSession session) {
+
+        session.parked = false;
+        parkedMessages.unpark(session.globalOffset);
+
+        final boolean processed;
+        redriving = true;
+        try {
+            processed = switch (session.messageType) {
+                case PaymentsApi.CMD_TRANSFER -> processTransfer(session);
+                case PaymentsApi.CMD_ADJUST_BALANCE -> processAdjustment(session);
+                case PaymentsApi.CMD_CLOSE_ACCOUNT -> processCloseAccount(session);
+                default -> false;
+            };
+        } finally {
+            redriving = false;
+        }
+
+        if (!processed || session.parked) {
+            throw new IllegalStateException("Can not re-drive parked message " + session);
+        }
+
+        publishSt1();
+    }
+
+    /**
+     * Number of Stage1 fence releases (statistics, can be read by other threads approximately).
+     */
+    public long getFenceReleases() {
+        return fenceReleases;
+    }
+
+    public StageCostMeter getCostMeter() {
+        return costMeter;
+    }
+
+    private static boolean isAccountMessage(final byte messageType) {
+        return messageType == PaymentsApi.CMD_TRANSFER
+                || messageType == PaymentsApi.CMD_ADJUST_BALANCE
+                || messageType == PaymentsApi.CMD_CLOSE_ACCOUNT
+                || messageType == PaymentsApi.CMD_OPEN_ACCOUNT;
+    }
+
+    private boolean park(final TransferSession session, final long account1, final long account2) {
+        session.parked = true;
+        parkedMessages.park(session.globalOffset, account1, account2, session.messageType == PaymentsApi.CMD_CLOSE_ACCOUNT);
+        return true;
+    }
+
+    private boolean isParked(final long account) {
+        return !redriving && parkedMessages.isParked(account);
+    }
+
+    private boolean hasPrecedingPending(final long account) {
+        return !redriving && reservations.hasPending(account);
+    }
+
+    private void releaseSt1(final long offset) {
+        completedOffset = Math.max(completedOffset, offset);
+        if (++unpublishedNum >= publishBatchSize) {
+            publishSt1();
+        }
+    }
+
+    /**
+     * Message of other shards: fence is moved over it as over a completed message,
+     * so peers and aggregator are not held until the next message of this shard.
+     */
+    private boolean skipForeign(final TransferSession session) {
+        releaseSt1(session.globalOffset);
+        return true;
+    }
+
+    private void publishSt1() {
+        unpublishedNum = 0;
+        // results are complete up to the oldest parked message
+        final long publishOffset = parkedMessages.isEmpty()
+                ? completedOffset
+                : Math.min(completedOffset, parkedMessages.oldestOffset() - 1);
+        if (publishOffset > publishedOffset) {
+            st1Fence.setRelease(publishOffset);
+            publishedOffset = publishOffset;
+            fenceReleases++;
+        }
+    }
+
     private boolean processOpenAccount(final TransferSession session) {
 
         final long account = requestsBuffer[session.bufferIndex];
         final long secret = requestsBuffer[session.bufferIndex + 1];
 
-        if ((account & handlersMask) != handlerIndex) {
-            return true;
+        if (shardRouter.shardOf(account) != handlerIndex) {
+            return skipForeign(session);
         }
 
-        final byte resultCode;
+        if (parkedMessages.isParked(account)) {
+            // parked close of this account must be completed first
+            return false;
+        }
+
+        final long result;
 
-        // NOTE: lock is not needed because St2 can not change account state (opened/closed)
+        // NOTE: St2 can not change account state (opened/closed)
 
-        if (accountsProcessor.accountNotExists(account)) {
+        if (AccountsProcessor.isAccountHandle(account)) {
+            log.warn("Can not open account by handle {} !", account);
+            result = -3;
+        } else if (accountsProcessor.accountNotExists(account)) {
 //            log.debug("Opening account {}", account);
             if (secret != 0L) {
-                accountsProcessor.openNewAccount(account, secret);
-                resultCode = (byte) 1;
+                final int slot = accountsProcessor.openNewAccount(account, secret);
+                // dense slot is returned to the client, so it can address account by handle
+                result = AccountsProcessor.encodeOpenAccountSuccess(accountsProcessor.isDenseSlots() ? slot : -1);
             } else {
                 log.warn("Can not use 0 as secret for account {} !", account);
-                resultCode = (byte) -2;
+                result = -2;
             }
         } else {
 
             log.warn("Account {} already exists!", account);
-            resultCode = (byte) -1;
+            result = -1;
         }
 
-        resultsBuffer.set(session.bufferIndex, resultCode);
-        st1Fence.setRelease(session.globalOffset);
+        resultsBuffer.set(session.bufferIndex, result);
+        releaseSt1(session.globalOffset);
 
         return true;
     }
@@ -138,55 +375,216 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
 
         final long account = requestsBuffer[session.bufferIndex];
 
-        if ((account & handlersMask) != handlerIndex) {
-            return true;
+        if (shardRouter.shardOf(account) != handlerIndex) {
+            return skipForeign(session);
         }
 
-        if (lockedAccounts.contains(account)) {
-            // can not progress if possible rollback is expected for this account
-            // that can possibly cause non-deterministic execution because of balance check
-            return false;
+        final int slot = accountsProcessor.findAccount(account);
+        final long canonical = canonicalAccount(slot, account);
+
+        if (hasPrecedingPending(canonical) || isParked(canonical)) {
+            // possible rollback is expected for this account, that can cause non-deterministic execution because of balance check
+            // parking it, so following messages of other accounts are not blocked
+            return park(session, canonical, canonical);
         }
 
-        if (accountsProcessor.accountNotExists(account)) {
+        if (slot == IAccountsStore.NOT_FOUND) {
             // account already closed
             resultsBuffer.set(session.bufferIndex, (byte) 2);
-            st1Fence.setRelease(session.globalOffset);
+            releaseSt1(session.globalOffset);
             return true;
         }
 
-        if (!accountsProcessor.accountHasZeroBalance(account)) {
+        if (!accountsProcessor.accountHasZeroBalanceAt(slot)) {
             // account balance is not zero
             resultsBuffer.set(session.bufferIndex, (byte) -1);
-            st1Fence.setRelease(session.globalOffset);
+            releaseSt1(session.globalOffset);
             return true;
         }
 
         // can close account
-        accountsProcessor.closeAccount(account);
+        accountsProcessor.closeAccountAt(slot);
         resultsBuffer.set(session.bufferIndex, (byte) 1);
-        st1Fence.setRelease(session.globalOffset);
+        releaseSt1(session.globalOffset);
+
+        return true;
+    }
+
+
+    /**
+     * Source shard exports account state into its results buffer (result, encoded balance, secret at message indexes)
+     * and removes the account, target shard waits for source and imports the state.
+     * All shards switch routing at this message.
+     */
+    private boolean processMigration(final TransferSession session) {
+
+        final int index = session.bufferIndex;
+        final long account = requestsBuffer[index];
+        final int targetShard = (int) requestsBuffer[index + 1];
+        final int sourceShard = shardRouter.shardOf(account);
+
+        if (!shardRouter.canMigrate(account, targetShard)) {
+            if (sourceShard == handlerIndex) {
+                log.warn("Can not migrate account {} to shard {}", account, targetShard);
+                resultsBuffer.set(index, -2L);
+                releaseSt1(session.globalOffset);
+                return true;
+            }
+            return skipForeign(session);
+        }
+
+        if (sourceShard == handlerIndex) {
+
+            if (reservations.hasPending(account)) {
+                // wait until stage 2 settles in-flight transfers of the account
+                return false;
+            }
+
+            if (correlationWindow != null && !reshardExchange.canExportMigration(handlerIndex, lastMigrationOffset)) {
+                // target of previous migration has not taken window entries yet
+                return false;
+            }
 
+            final int slot = accountsProcessor.findAccount(account);
+            if (slot != IAccountsStore.NOT_FOUND) {
+                resultsBuffer.set(index + 1, accountsProcessor.getEncodedBalanceAt(slot));
+                resultsBuffer.set(index + 2, accountsProcessor.getSecretAt(slot));
+                if (session.payloadSize > 3) {
+                    // journals written before nonces were introduced have no slot for it
+                    resultsBuffer.set(index + 3, accountsProcessor.getNonceAt(slot));
+                }
+                accountsProcessor.closeAccountAt(slot);
+                resultsBuffer.set(index, 1L);
+            } else {
+                // nothing to move, but routing is changed anyway
+                resultsBuffer.set(index, -1L);
+            }
+
+            if (correlationWindow != null) {
+                // retry of a transfer executed here is recognized by the new shard
+                reshardExchange.exportMigratedEntries(handlerIndex, correlationWindow, account);
+                lastMigrationOffset = session.globalOffset;
+            }
+
+            releaseSt1(session.globalOffset);
+
+        } else if (targetShard == handlerIndex) {
+
+            if (fencesSt1[sourceShard].getAcquire(-1L) < session.globalOffset) {
+                // source shard has not exported account yet
+                return false;
+            }
+
+            final LocalResultsLongBuffer sourceResults = resultsBuffers[sourceShard];
+            final long result = sourceResults.get(index);
+            if (result == 1L) {
+                final long nonce = session.payloadSize > 3 ? sourceResults.get(index + 3) : 0L;
+                accountsProcessor.restoreAccount(account, sourceResults.get(index + 1), sourceResults.get(index + 2), nonce);
+            }
+
+            if (correlationWindow != null) {
+                reshardExchange.importMigratedEntries(sourceShard, correlationWindow, session.globalOffset);
+            }
+
+            resultsBuffer.set(index, result);
+            releaseSt1(session.globalOffset);
+
+        } else {
+            skipForeign(session);
+        }
+
+        shardRouter.migrate(account, targetShard);
         return true;
     }
 
+    /**
+     * Barrier for all shards (including idle ones). Each shard waits until its in-flight transfers are settled,
+     * exports accounts that belong to other shards under new routing (and all treasures if it becomes idle),
+     * then waits until every shard has exported and imports accounts addressed to it.
+     */
+    private boolean processReshard(final TransferSession session) {
+
+        final int index = session.bufferIndex;
+        final long offset = session.globalOffset;
+
+        if (reshardOffset != offset) {
+
+            if (!reservations.isEmpty() || !reshardExchange.canExport(lastReshardOffset)) {
+                // wait for St2 of this shard, and for all shards to import previous resharding
+                return false;
+            }
+
+            final IShardRouter router = shardRouter.prepareReshard((int) requestsBuffer[index]);
+            if (router == null) {
+                if (handlerIndex == 0) {
+                    log.warn("Can not reshard from {} to {} shards", shardRouter.getShardsNum(), requestsBuffer[index]);
+                }
+                resultsBuffer.set(index, -1L);
+                releaseSt1(offset);
+                return true;
+            }
+
+            exportForReshard(router);
+            reshardRouter = router;
+            reshardOffset = offset;
+            reshardExchange.publishExported(handlerIndex, offset);
+        }
+
+        if (!reshardExchange.canImport(offset)) {
+            return false;
+        }
+
+        reshardExchange.importAccounts(handlerIndex, accountsProcessor::restoreAccount);
+        reshardExchange.importTreasures(handlerIndex, transferFeesProcessor::addTreasure);
+        reshardExchange.publishImported(handlerIndex, offset);
+
+        // migration overrides are dropped - accounts are placed by new base router
+        shardRouter.reshard(reshardRouter);
+        reshardRouter = null;
+        lastReshardOffset = offset;
+
+        resultsBuffer.set(index, 1L);
+        releaseSt1(offset);
+        return true;
+    }
+
+    private void exportForReshard(final IShardRouter router) {
+
+        reshardExchange.clearPackages(handlerIndex);
+
+        accountsProcessor.forEachAccount((account, encodedBalance, secret, nonce) -> {
+            final int target = router.shardOf(account);
+            if (target != handlerIndex) {
+                reshardExchange.exportAccount(handlerIndex, target, account, encodedBalance, secret, nonce);
+            }
+        });
+
+        // store can not be modified while iterating
+        reshardExchange.forEachExported(handlerIndex, (account, encodedBalance, secret, nonce) ->
+                accountsProcessor.closeAccountAt(accountsProcessor.findAccount(account)));
+
+        if (handlerIndex >= router.getShardsNum()) {
+            // idle shard keeps no state
+            final int target = handlerIndex % router.getShardsNum();
+            transferFeesProcessor.exportTreasures((currency, amount) ->
+                    reshardExchange.exportTreasure(handlerIndex, target, currency, amount));
+            transferFeesProcessor.clearTreasures();
+        }
+    }
 
     private boolean processAdjustment(final TransferSession session) {
 
         final long account = requestsBuffer[session.bufferIndex];
 
-        if ((account & handlersMask) != handlerIndex) {
-            return true;
+        if (shardRouter.shardOf(account) != handlerIndex) {
+            return skipForeign(session);
         }
 
         final long amount = requestsBuffer[session.bufferIndex + 1];
 
-        if (lockedAccounts.contains(account)) {
-            // can not progress, because non-negative check can cause non-deterministic execution
-            return false;
-        }
+        final int slot = accountsProcessor.findAccount(account);
 
-        if (accountsProcessor.accountNotExists(account)) {
+        if (slot == IAccountsStore.NOT_FOUND) {
 
             log.warn("Account {} does not exists or closed!", account);
 //            log.warn("Useless {} ", useless);
@@ -194,17 +592,31 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
             // account does not exist or closed
             resultsBuffer.set(session.bufferIndex, (byte) -2);
 //            log.debug("st1Fence.setRelease({})", session.globalOffset);
-            st1Fence.setRelease(session.globalOffset);
+            releaseSt1(session.globalOffset);
             return true;
         }
 
-        boolean success = (amount > 0)
-                ? accountsProcessor.deposit(account, amount)
-                : accountsProcessor.withdrawal(account, -amount);
+        final long canonical = accountsProcessor.getAccountAt(slot);
+        if (isParked(canonical)) {
+            // keep order of operations of the account
+            return park(session, canonical, canonical);
+        }
+
+        final boolean success;
+        if (amount > 0) {
+            accountsProcessor.depositAt(slot, amount);
+            success = true;
+        } else {
+            success = accountsProcessor.withdrawalAt(slot, -amount);
+            if (!success && hasPrecedingPending(canonical)) {
+                // pending refunds or credits can change the result - park until they are settled
+                return park(session, canonical, canonical);
+            }
+        }
 
         resultsBuffer.set(session.bufferIndex, success ? (byte) 1 : -1);
 //        log.debug("st1Fence.setRelease({})", session.globalOffset);
-        st1Fence.setRelease(session.globalOffset);
+        releaseSt1(session.globalOffset);
         return true;
     }
 
@@ -213,18 +625,14 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
         final long accountSrc = requestsBuffer[session.bufferIndex];
         final long accountDst = requestsBuffer[session.bufferIndex + 1];
 
-        session.processSrc = (accountSrc & handlersMask) == handlerIndex;
-        session.processDst = (accountDst & handlersMask) == handlerIndex;
+        session.shardSrc = shardRouter.shardOf(accountSrc);
+        session.shardDst = shardRouter.shardOf(accountDst);
+        session.processSrc = session.shardSrc == handlerIndex;
+        session.processDst = session.shardDst == handlerIndex;
 
         if (!session.processSrc && !session.processDst) {
             // message is not related to this handler - just skip it
-
-//            if (unpublishedSt1) {
-//                unpublishedSt1 = false;
-//                st1Fence.setRelease(session.globalOffset);
-//            }
-
-            return true;
+            return skipForeign(session);
         }
 
         session.amountSrc = 0L;
@@ -234,6 +642,11 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
         session.accountSrc = accountSrc;
         session.accountDst = accountDst;
 
+        if (!redriving) {
+            session.windowSeq = -1L;
+            session.repeatSeq = -1L;
+        }
+
         final long orderAmount = requestsBuffer[session.bufferIndex + 2];
 
         final long ttAndCurr = requestsBuffer[session.bufferIndex + 3];
@@ -250,60 +663,91 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
 
         if (session.processSrc && session.processDst) {
             // source and destination both handled by this processor
-            // blocking both accounts
 
-            if (!lockedAccounts.add(accountSrc)) {
-                // source already locked
-                return false;
+            // single probe per account - slots are reused by withdrawal and deposit
+            session.slotSrc = accountsProcessor.findAccount(accountSrc);
+            session.slotDst = accountsProcessor.findAccount(accountDst);
+
+            // reservations are tracked by account ids, because accounts can also be addressed by handles
+            session.accountSrc = canonicalAccount(session.slotSrc, accountSrc);
+            session.accountDst = canonicalAccount(session.slotDst, accountDst);
+
+            if (session.accountSrc == session.accountDst) {
+                // balance check and deposit would apply to the same record
+                log.warn("Can not transfer to the same account {}", session.accountSrc);
+                session.processSrc = false;
+                session.processDst = false;
+                resultsBuffer.set(session.bufferIndex, -1L);
+                releaseSt1(session.globalOffset);
+                return true;
             }
 
-            if (!lockedAccounts.add(accountDst)) {
-                // destination already locked - unblock source
-                lockedAccounts.remove(accountSrc);
-                return false;
+            lookupWindow(session);
+
+            if (isParked(session.accountSrc) || isParked(session.accountDst)) {
+                // keep order of operations of both accounts
+                return park(session, session.accountSrc, session.accountDst);
             }
 
-            if (checkTransferSignature(session, orderAmount, transferType, orderCurrency)) {
+            // local transfer is completed here, St2 only applies treasures
 
-                // no St2-revert scenario possible for local transfer
+            if (session.slotSrc != IAccountsStore.NOT_FOUND
+                    && session.slotDst != IAccountsStore.NOT_FOUND
+                    && checkTransferSignature(session)) {
 
-                final boolean withdrawalSuccessful = transferFeesProcessor.performWithdrawal(
-                        session,
-                        transferType,
-                        accountSrc,
-                        accountDst,
-                        orderAmount,
-                        orderCurrency);
+                final long repeated = checkRepeated(session, ttAndCurr);
 
-                if (withdrawalSuccessful) {
+                if (repeated == CorrelationWindow.PENDING) {
+                    return park(session, session.accountSrc, session.accountDst);
 
-                    final boolean success = accountsProcessor.deposit(accountDst, session.amountDst);
+                } else if (repeated != CorrelationWindow.NOT_FOUND) {
+                    // retry (or reused nonce) - nothing is executed
+                    exchangeData = repeated;
+
+                } else {
 
-                    if (success) {
+                    // no St2-revert scenario possible for local transfer
 
+                    final boolean withdrawalSuccessful = transferFeesProcessor.performWithdrawal(
+                            session,
+                            transferType,
+                            accountSrc,
+                            accountDst,
+                            orderAmount,
+                            orderCurrency);
+
+                    if (withdrawalSuccessful) {
+
+                        // destination existence is already checked
+                        accountsProcessor.depositAt(session.slotDst, session.amountDst);
+                        acceptNonce(session, ttAndCurr);
                         exchangeData = 0L;
 
+                    } else if (session.insufficientFunds && hasPrecedingPending(session.accountSrc)) {
+                        // balance does not include pending refunds and credits - park until they are settled
+                        return park(session, session.accountSrc, session.accountDst);
                     } else {
-                        // revert all changes
-                        accountsProcessor.balanceCorrection(accountSrc, session.amountSrc);
                         exchangeData = -1L;
                     }
 
-                } else {
-                    exchangeData = -1L;
+                    rememberResult(session, exchangeData);
                 }
 
             } else {
+                rejectInWindow(session);
                 exchangeData = -1L;
             }
 
         } else if (session.processSrc) {
             // process only Source account
 
-            if (!lockedAccounts.add(accountSrc)) {
-                // already processing this account - can not proceed with stage1
-                // back-off and let stage to finalize processing
-                return false;
+            session.slotSrc = accountsProcessor.findAccount(accountSrc);
+            session.accountSrc = canonicalAccount(session.slotSrc, accountSrc);
+
+            lookupWindow(session);
+
+            if (isParked(session.accountSrc)) {
+                return park(session, session.accountSrc, session.accountSrc);
             }
 
             // no St2-revert scenario possible for local transfer
@@ -312,32 +756,66 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
             session.treasureAmountSrc = 0L;
             session.treasureAmountDst = 0L;
 
-            if (checkTransferSignature(session, orderAmount, transferType, orderCurrency)) {
+            if (session.slotSrc != IAccountsStore.NOT_FOUND
+                    && checkTransferSignature(session)) {
+
+                final long repeated = checkRepeated(session, ttAndCurr);
 
-                session.localPartSucceeded = transferFeesProcessor.performWithdrawal(
-                        session,
-                        transferType,
-                        accountSrc,
-                        accountDst,
-                        orderAmount,
-                        orderCurrency);
+                if (repeated == CorrelationWindow.PENDING) {
+                    return park(session, session.accountSrc, session.accountSrc);
 
-                exchangeData = session.localPartSucceeded ? session.amountDst : -1;
-            }else{
+                } else if (repeated != CorrelationWindow.NOT_FOUND) {
+                    // retry (or reused nonce) - nothing is reserved, destination does not credit anything
+                    session.localPartSucceeded = false;
+                    exchangeData = repeated == 0L ? CorrelationWindow.REPEATED_SUCCESS : repeated;
+
+                } else {
+
+                    session.localPartSucceeded = transferFeesProcessor.performWithdrawal(
+                            session,
+                            transferType,
+                            accountSrc,
+                            accountDst,
+                            orderAmount,
+                            orderCurrency);
+
+                    if (!session.localPartSucceeded && session.insufficientFunds && hasPrecedingPending(session.accountSrc)) {
+                        // balance does not include pending refunds and credits - park until they are settled
+                        return park(session, session.accountSrc, session.accountSrc);
+                    }
+
+                    if (session.localPartSucceeded) {
+                        acceptNonce(session, ttAndCurr);
+                    }
+
+                    exchangeData = session.localPartSucceeded ? session.amountDst : -1;
+
+                    // final result is known after St2 settles it
+                    rememberResult(session, session.localPartSucceeded ? CorrelationWindow.PENDING : -1L);
+                }
+
+            } else {
+                rejectInWindow(session);
+                session.localPartSucceeded = false;
                 exchangeData = -1L;
             }
 
         } else {
             // process only Destination account
 
-            if (!lockedAccounts.add(accountDst)) {
-                // already processing this account - can not proceed with stage1
-                // back-off and let stage to finalize processing
-                return false;
+            // ST1 should at least check if DST account exists or not
+            session.slotDst = accountsProcessor.findAccount(accountDst);
+            session.accountDst = canonicalAccount(session.slotDst, accountDst);
+
+            // credit only checks existence and commutes with other operations, except parked close
+            final boolean mustWait = commutativeCredits
+                    ? !redriving && parkedMessages.isClosing(session.accountDst)
+                    : isParked(session.accountDst);
+            if (mustWait) {
+                return park(session, session.accountDst, session.accountDst);
             }
 
-            // ST1 should at least check if DST account exists or not
-            session.localPartSucceeded = accountsProcessor.accountExists(accountDst);
+            session.localPartSucceeded = session.slotDst != IAccountsStore.NOT_FOUND;
             exchangeData = session.localPartSucceeded ? 0 : -1;
 
             session.amountSrc = 0L;
@@ -346,6 +824,22 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
             session.treasureAmountDst = 0L;
         }
 
+        if (session.processSrc != session.processDst && session.localPartSucceeded) {
+            // refund or credit is settled by St2 after other shard completes its part
+            if (session.processSrc) {
+                reservations.addPendingDebit(session.accountSrc);
+            } else {
+                reservations.addPendingCredit(session.accountDst);
+            }
+        }
+
+        if (session.processSrc) {
+            loadTracker.record(session.accountSrc);
+        }
+        if (session.processDst) {
+            loadTracker.record(session.accountDst);
+        }
+
         if (exchangeData == -1) {
             log.warn("Can not process transfer {}->{}! (process {}->{}) {}", accountSrc, accountDst, session.processSrc, session.processDst, transferType);
         }
@@ -353,37 +847,141 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
         // put destination amount int buffer index, or -1 if transaction failed on source side
         resultsBuffer.set(session.bufferIndex, exchangeData);
 
+        if (session.processSrc != session.processDst) {
+            // other shard St2 reads result sequentially from its inbound mailbox
+            final int otherIdx = session.processSrc ? session.shardDst : session.shardSrc;
+            outboundMailboxes[otherIdx].offer(session.globalOffset, exchangeData);
+        }
 
-//        log.debug("session.wordsLeftInBatch={}", session.wordsLeftInBatch);
-//        if (session.wordsLeftInBatch == 0) {
-        st1Fence.setRelease(session.globalOffset);
-//            unpublishedSt1 = false;
-//        } else {
-//            unpublishedSt1 = true;
-//        }
+        releaseSt1(session.globalOffset);
+        return true;
+    }
 
-//        if (session.wordsLeftInBatch < 0) {
-//            throw new RuntimeException();
-//        }
+    private boolean checkTransferSignature(final TransferSession session) {
 
-        return true;
+        final long secret = accountsProcessor.getSecretAt(session.slotSrc);
+
+        if (signatureVerdicts != null) {
+            final byte verdict = SignatureVerifier.getVerdict(signatureVerdicts, session.bufferIndex, secret);
+            if (verdict != SignatureVerifier.VERDICT_UNKNOWN) {
+                return verdict == SignatureVerifier.VERDICT_VALID;
+            }
+        }
+
+        // signature covers accounts as they were sent (ids or handles)
+        return authScheme.checkTransfer(requestsBuffer, session.bufferIndex, session.payloadSize, secret);
+    }
+
+    /**
+     * Reserve correlation window entry, or register retry, when transfer is first seen - in offset order,
+     * also if it is parked afterwards, so window contents do not depend on when parked messages are re-driven.
+     */
+    private void lookupWindow(final TransferSession session) {
+
+        if (correlationWindow == null || redriving) {
+            return;
+        }
+
+        final long result = correlationWindow.find(session.correlationId, session.accountSrc);
+        if (result == CorrelationWindow.NOT_FOUND || result == CorrelationWindow.VOID) {
+            session.windowSeq = correlationWindow.reserve(session.correlationId, session.accountSrc);
+        } else {
+            session.repeatSeq = correlationWindow.addWaiter(session.correlationId, session.accountSrc);
+        }
+    }
+
+    /**
+     * Check if authenticated transfer was already executed: same correlation id is in the window, or nonce was used.
+     *
+     * @return NOT_FOUND if transfer should be executed, PENDING if it must be parked, otherwise result to report (0 or -1)
+     */
+    private long checkRepeated(final TransferSession session, final long ttAndCurr) {
+
+        if (session.repeatSeq != -1L) {
+
+            // only a retry of parked or pending transfer waits - original is completed before retry is re-driven
+            final long result = correlationWindow.resolve(session.correlationId, session.accountSrc, session.repeatSeq);
+            if (result == CorrelationWindow.PENDING) {
+                return result;
+            }
+
+            correlationWindow.removeWaiter(session.correlationId, session.accountSrc, session.repeatSeq);
+
+            if (result == CorrelationWindow.VOID) {
+                // original was rejected before execution - retry takes over its entry
+                session.windowSeq = session.repeatSeq;
+                session.repeatSeq = -1L;
+                rememberResult(session, CorrelationWindow.PENDING);
+            } else {
+                log.debug("Repeated transfer correlationId={} account={} result={}", session.correlationId, session.accountSrc, result);
+                return result;
+            }
+        }
+
+        final long nonce = ITransferAuthScheme.extractNonce(ttAndCurr);
+        if (nonce != 0L && nonce <= accountsProcessor.getNonceAt(session.slotSrc)) {
+            log.warn("Nonce {} of account {} was already used", nonce, session.accountSrc);
+            rememberResult(session, CorrelationWindow.VOID);
+            return -1L;
+        }
+
+        return CorrelationWindow.NOT_FOUND;
     }
 
-    private boolean checkTransferSignature(TransferSession session,
-                                           long orderAmount,
-                                           TransferType transferType,
-                                           short orderCurrency) {
+    private void acceptNonce(final TransferSession session, final long ttAndCurr) {
+        final long nonce = ITransferAuthScheme.extractNonce(ttAndCurr);
+        if (nonce != 0L) {
+            accountsProcessor.setNonceAt(session.slotSrc, nonce);
+        }
+    }
 
-        final long secret = accountsProcessor.getSecret(session.accountSrc);
-        return signatureHandler.checkSignatureTransfer(
-                session.accountSrc,
-                session.accountDst,
-                orderAmount,
-                orderCurrency,
-                transferType,
-                secret,
-                requestsBuffer,
-                session.bufferIndex + 4);
+    private void rememberResult(final TransferSession session, final long result) {
+        if (session.windowSeq != -1L) {
+            correlationWindow.complete(session.correlationId, session.accountSrc, session.windowSeq, result);
+        }
+    }
+
+    // transfer is rejected before execution: own entry becomes VOID (so retry is executed), or retry stops waiting
+    private void rejectInWindow(final TransferSession session) {
+        if (session.repeatSeq != -1L) {
+            correlationWindow.removeWaiter(session.correlationId, session.accountSrc, session.repeatSeq);
+            session.repeatSeq = -1L;
+        }
+        rememberResult(session, CorrelationWindow.VOID);
+    }
+
+    /**
+     * Called by St2 when cross-shard transfer remembered as pending is settled.
+     */
+    public void completeResult(final TransferSession session, final long result) {
+        rememberResult(session, result);
+    }
+
+    private long canonicalAccount(final int slot, final long account) {
+        return slot == IAccountsStore.NOT_FOUND ? account : accountsProcessor.getAccountAt(slot);
+    }
+
+    private boolean processSnapshot(final TransferSession session) {
+
+        if (!reservations.isEmpty()) {
+            // wait until St2 finalizes all preceding transfers, so state is consistent at this offset
+            return false;
+        }
+
+        final long snapshotId = requestsBuffer[session.bufferIndex];
+
+        final boolean success;
+        if (snapshotWriter == null) {
+            log.warn("Snapshots are not enabled, ignoring snapshot {}", snapshotId);
+            success = false;
+        } else {
+            // only memory copy happens here, file is written in background
+            success = snapshotWriter.takeSnapshot(snapshotId, session.globalOffset);
+        }
+
+        resultsBuffer.set(session.bufferIndex, success ? 1L : -1L);
+        releaseSt1(session.globalOffset);
+        return true;
     }
 
     private boolean processControlCurrencyRate(final TransferSession session) {
@@ -421,7 +1019,7 @@ public final class PaymentsHandlerStage1 implements PipelinedStageHandler<Transf
 
     @Override
     public int getHitWorkWeight() {
-        return 10;
+        return costMeter.getWorkWeight();
     }
 
     @Override
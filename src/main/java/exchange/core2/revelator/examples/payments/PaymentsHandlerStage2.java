@@ -3,7 +3,6 @@ package exchange.core2.revelator.examples.payments;
 import exchange.core2.revelator.buffers.LocalResultsLongBuffer;
 import exchange.core2.revelator.fences.IFence;
 import exchange.core2.revelator.processors.pipelined.PipelinedStageHandler;
-import org.agrona.collections.LongHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,34 +10,46 @@ public final class PaymentsHandlerStage2 implements PipelinedStageHandler<Transf
 
     private static final Logger log = LoggerFactory.getLogger(PaymentsHandlerStage2.class);
 
+    // work weight until cost is measured
+    static final int DEFAULT_WORK_WEIGHT = 5;
+
     private final AccountsProcessor accountsProcessor;
     private final TransferFeesProcessor transferFeesProcessor;
 
     private final LocalResultsLongBuffer[] resultsBuffers;
 
-    private final LongHashSet lockedAccounts;
+    private final AccountReservations reservations;
+
+    private final PaymentsHandlerStage1 handlerSt1;
 
 
-    private final IFence[] fencesSt1;
+    private final CachingFencesArray fencesSt1;
+
+    // results pushed by other shards, indexed by source shard
+    private final SettlementMailbox[] inboundMailboxes;
 
     private final int handlerIndex;
-    private final long handlersMask;
+
+    // measured cost, reported as work weight
+    private final StageCostMeter costMeter = new StageCostMeter(DEFAULT_WORK_WEIGHT);
 
     public PaymentsHandlerStage2(AccountsProcessor accountsProcessor,
                                  TransferFeesProcessor transferFeesProcessor,
                                  LocalResultsLongBuffer[] resultsBuffers,
-                                 LongHashSet lockedAccounts,
+                                 AccountReservations reservations,
+                                 PaymentsHandlerStage1 handlerSt1,
                                  IFence[] fencesSt1,
-                                 int handlerIndex,
-                                 long handlersMask) {
+                                 SettlementMailbox[] inboundMailboxes,
+                                 int handlerIndex) {
 
         this.accountsProcessor = accountsProcessor;
         this.transferFeesProcessor = transferFeesProcessor;
         this.resultsBuffers = resultsBuffers;
-        this.lockedAccounts = lockedAccounts;
-        this.fencesSt1 = fencesSt1;
+        this.reservations = reservations;
+        this.handlerSt1 = handlerSt1;
+        this.fencesSt1 = new CachingFencesArray(fencesSt1);
+        this.inboundMailboxes = inboundMailboxes;
         this.handlerIndex = handlerIndex;
-        this.handlersMask = handlersMask;
     }
 
     @Override
@@ -46,12 +57,29 @@ public final class PaymentsHandlerStage2 implements PipelinedStageHandler<Transf
 
 //        log.debug("ST2 t={}", session.timestamp);
 
-        // only transfer command can possibly require post-processing
-        if (session.messageType == PaymentsApi.CMD_TRANSFER) {
-            return processTransfer(session);
-        } else {
-            return true;
+        if (session.parked) {
+            // all preceding transfers are settled by now (Stage1 work, not included into Stage2 cost)
+            handlerSt1.redrive(session);
         }
+
+        costMeter.start();
+
+        // only transfer command can possibly require post-processing
+        final boolean processed = session.messageType != PaymentsApi.CMD_TRANSFER || processTransfer(session);
+
+        costMeter.stop(processed);
+        return processed;
+    }
+
+    public StageCostMeter getCostMeter() {
+        return costMeter;
+    }
+
+    /**
+     * Forget observed progress of other shards (see {@link PaymentsHandlerStage1#resetOffsets()}).
+     */
+    void resetOffsets() {
+        fencesSt1.reset();
     }
 
     private boolean processTransfer(final TransferSession session) {
@@ -67,63 +95,64 @@ public final class PaymentsHandlerStage2 implements PipelinedStageHandler<Transf
         // source and destination both handled by this processor
         if (session.processSrc && session.processDst) {
 
-            // no need to revert, but need unlock accounts
-            lockedAccounts.remove(session.accountDst);
-            lockedAccounts.remove(session.accountSrc);
-
+            // balances are already updated by stage 1
             transferFeesProcessor.applyTreasures(currencySrc, currencyDst, session);
             return true;
         }
 
+        if (!session.localPartSucceeded) {
+            // nothing was reserved: source had no funds, or other party was only checking missing dst account
+            return true;
+        }
+
         // only one account is processed by this handler
         // get status of other account  processing
-        final long otherAccount = session.processSrc ? session.accountDst : session.accountSrc;
-        final int otherIdx = (int) (otherAccount & handlersMask);
+        final int otherIdx = session.processSrc ? session.shardDst : session.shardSrc;
 
-        // check Stage 1 progress for particular handler
-        final IFence fence = fencesSt1[otherIdx];
-        final long progress = fence.getAcquire(-1L);// ignore
-        if (progress < session.globalOffset) { // TODO introduce static method (to make it easy to understand)
+        // get result code for other half of transaction
+        final long exchangeData = otherShardResult(otherIdx, session);
+        if (exchangeData == SettlementMailbox.NOT_AVAILABLE) {
             // Stage 1 is not completed yet by other handler - can not progress
             return false;
         }
 
-        // get result code for other half of transaction
-        final LocalResultsLongBuffer buf = resultsBuffers[otherIdx];
-        final long exchangeData = buf.get(session.bufferIndex);
-
         if (session.processDst) {
-            // process destination only
-            if (exchangeData >= 0L && session.localPartSucceeded) {
-                // settle Destination
-                accountsProcessor.deposit(session.accountDst, exchangeData);
-            }
+            // settle Destination (credit is deposited right away)
+            reservations.settleCredit(session.accountDst, Math.max(exchangeData, 0L));
 
-            lockedAccounts.remove(session.accountDst);
+        } else if (exchangeData == 0L) {
+            // settle fees
+            transferFeesProcessor.applyTreasures(currencySrc, currencyDst, session);
+            reservations.settleDebit(session.accountSrc, 0L);
+            handlerSt1.completeResult(session, 0L);
 
         } else {
-            // process source only
-            if (session.localPartSucceeded) {
-                if (exchangeData == 0L) {
-                    // settle fees
-                    transferFeesProcessor.applyTreasures(currencySrc, currencyDst, session);
-                } else {
-                    // rollback transaction
-                    accountsProcessor.balanceCorrection(session.accountSrc, session.amountSrc);
-                }
-            } else {
-                // do nothing if local part not succeeded, because other party was only checking dst account existence
-            }
-
-            lockedAccounts.remove(session.accountSrc);
+            // rollback transaction - refund releases the pending debit and returns withdrawn amount to the balance
+            reservations.settleDebit(session.accountSrc, session.amountSrc);
+            handlerSt1.completeResult(session, -1L);
         }
 
         return true;
     }
 
+    private long otherShardResult(final int otherIdx, final TransferSession session) {
+
+        final long pushed = inboundMailboxes[otherIdx].poll(session.globalOffset);
+        if (pushed != SettlementMailbox.NOT_AVAILABLE) {
+            return pushed;
+        }
+
+        // record is not pushed yet, or was dropped (mailbox was full, or message was parked by other shard)
+        if (!fencesSt1.isReached(otherIdx, session.globalOffset)) {
+            return SettlementMailbox.NOT_AVAILABLE;
+        }
+
+        return resultsBuffers[otherIdx].get(session.bufferIndex);
+    }
+
     @Override
     public int getHitWorkWeight() {
-        return 5;
+        return costMeter.getWorkWeight();
     }
 
     @Override
@@ -0,0 +1,395 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.Revelator;
+import exchange.core2.revelator.fences.IFence;
+import exchange.core2.revelator.fences.SingleWriterFence;
+import org.agrona.IoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Restores pipelined core state on start.
+ * <p>
+ * Latest complete snapshot is loaded by all shards in parallel (one file per shard).
+ * Then journal records after snapshot offset are fed directly into shard handlers before the ring is started:
+ * records are copied into the ring buffer and dispatched into per-shard queues (same as {@link MessagesDispatcher} does),
+ * every Stage1/Stage2 pair runs in own thread and consumes only its own messages,
+ * so cross-shard transfers are coordinated exactly like live traffic, but nothing is journaled again or responded.
+ * Replay speed is bounded by journal reading and checksums, not by publishing into the ring.
+ */
+public final class PaymentsRecovery {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentsRecovery.class);
+
+    // replayed words in flight (not released by all shards)
+    private static final int REPLAY_QUEUE_SIZE = 64 * 1024;
+
+    private final Path snapshotsPath;
+    private final Path journalPath;
+    private final int epoch;
+    private final IShardRouterFactory routerFactory;
+    private final boolean handlesIssued;
+    private final ShardState[] shards;
+
+    // ring buffer shared by shard handlers, replayed messages are copied into it
+    private long[] requestsBuffer;
+
+    // first failure of any replay thread
+    private volatile Throwable replayError;
+
+    // routing tables of dispatcher and responses aggregator
+    private final List<ShardRoutingTable> routingTables = new ArrayList<>();
+
+    private final CRC32C crc32c = new CRC32C();
+
+    // journal records up to this offset (of snapshot epoch) are already included into loaded snapshot
+    private int snapshotEpoch = -1;
+    private long snapshotOffset = -1L;
+
+    public PaymentsRecovery(final PaymentsCoreConfig coreConfig,
+                            final int epoch,
+                            final int shardsNum) {
+
+        this.snapshotsPath = coreConfig.getSnapshotsPath();
+        this.journalPath = coreConfig.getJournalPath();
+        this.epoch = epoch;
+        this.routerFactory = coreConfig.getShardRouterFactory();
+        this.handlesIssued = coreConfig.getAccountsStoreFactory().issuesHandles();
+        this.shards = new ShardState[shardsNum];
+    }
+
+    /**
+     * Epochs separate runs of the core, because ring offsets start from 0 on every start.
+     */
+    public static int nextEpoch(final PaymentsCoreConfig coreConfig, final int shardsNum) {
+
+        int lastEpoch = -1;
+
+        if (coreConfig.isJournalingEnabled()) {
+            final int[] epochs = JournalWriter.listEpochs(coreConfig.getJournalPath());
+            if (epochs.length != 0) {
+                lastEpoch = epochs[epochs.length - 1];
+            }
+        }
+
+        if (coreConfig.isSnapshotsEnabled()) {
+            final List<List<ShardSnapshotLoader.SnapshotHeader>> snapshot = ShardSnapshotLoader.findLatestSnapshot(coreConfig.getSnapshotsPath(), shardsNum);
+            if (!snapshot.isEmpty()) {
+                lastEpoch = Math.max(lastEpoch, lastOf(snapshot.get(0)).epoch());
+            }
+        }
+
+        return lastEpoch + 1;
+    }
+
+    public void addShard(final int shardIndex,
+                         final AccountsProcessor accountsProcessor,
+                         final TransferFeesProcessor transferFeesProcessor,
+                         final CurrencyRateProcessor currencyRateProcessor,
+                         final ShardRoutingTable routingTable,
+                         final CorrelationWindow correlationWindow,
+                         final PaymentsHandlerStage1 handlerSt1,
+                         final PaymentsHandlerStage2 handlerSt2) {
+
+        shards[shardIndex] = new ShardState(accountsProcessor, transferFeesProcessor, currencyRateProcessor, routingTable, correlationWindow, handlerSt1, handlerSt2);
+    }
+
+    public void setRequestsBuffer(final long[] requestsBuffer) {
+        this.requestsBuffer = requestsBuffer;
+    }
+
+    /**
+     * Routing table that is not owned by any shard, routing is restored from the snapshot of the first shard.
+     */
+    public void addRoutingTable(final ShardRoutingTable routingTable) {
+        routingTables.add(routingTable);
+    }
+
+    /**
+     * Load latest complete snapshot into shards. Must be called before processors are started.
+     * Accounts stores are cleared first (persistent store can contain changes made after the snapshot),
+     * so state is rebuilt only from the snapshot and the journal.
+     */
+    public void loadSnapshot() {
+
+        for (int i = 0; i < shards.length; i++) {
+            final IAccountsStore store = shards[i].accountsProcessor.getStore();
+            if (store.size() != 0) {
+                log.warn("Accounts store of shard {} is not empty ({} slots), clearing it before recovery", i, store.size());
+                store.clear();
+            }
+        }
+
+        if (snapshotsPath == null) {
+            return;
+        }
+
+        final List<List<ShardSnapshotLoader.SnapshotHeader>> snapshot = ShardSnapshotLoader.findLatestSnapshot(snapshotsPath, shards.length);
+        if (snapshot.isEmpty()) {
+            log.info("No snapshot found in {}", snapshotsPath);
+            return;
+        }
+
+        final long t = System.currentTimeMillis();
+
+        // each shard has own files and own state - loading in parallel, full base first, then deltas
+        IntStream.range(0, shards.length).parallel().forEach(i -> {
+            final ShardState shard = shards[i];
+            snapshot.get(i).forEach(header ->
+                    ShardSnapshotLoader.load(
+                            header,
+                            shard.accountsProcessor,
+                            shard.transferFeesProcessor,
+                            shard.currencyRateProcessor,
+                            shard.routingTable,
+                            shard.correlationWindow));
+        });
+
+        routingTables.forEach(table -> table.restoreRouting(shards[0].routingTable));
+
+        final ShardSnapshotLoader.SnapshotHeader latest = lastOf(snapshot.get(0));
+        snapshotEpoch = latest.epoch();
+        snapshotOffset = latest.globalOffset();
+
+        log.info("Loaded snapshot {} (epoch={} offset={}) in {}ms",
+                latest.snapshotId(), snapshotEpoch, snapshotOffset, System.currentTimeMillis() - t);
+    }
+
+    /**
+     * Replay journaled commands directly into shard handlers and wait until all of them are processed.
+     * Must be called after snapshot is loaded and before processors are started.
+     */
+    public void replayJournal() throws InterruptedException {
+
+        final long t = System.currentTimeMillis();
+
+        final SingleWriterFence dispatchedFence = new SingleWriterFence();
+        final ShardMessagesQueue[] queues = new ShardMessagesQueue[shards.length];
+        final IFence[] releasingFences = new IFence[shards.length];
+        final Thread[] threads = new Thread[shards.length];
+
+        for (int i = 0; i < shards.length; i++) {
+            queues[i] = new ShardMessagesQueue(REPLAY_QUEUE_SIZE);
+
+            final DispatchedFlowProcessor<TransferSession> processor = new DispatchedFlowProcessor<>(
+                    List.of(shards[i].handlerSt1, shards[i].handlerSt2),
+                    TransferSession::new,
+                    queues[i],
+                    dispatchedFence);
+            releasingFences[i] = processor.getReleasingFence();
+
+            final int shard = i;
+            threads[i] = new Thread(() -> runReplay(shard, processor), "replay-" + i);
+            // shard waiting for failed one never stops
+            threads[i].setDaemon(true);
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        // replayed migrations and resharding are applied on top of routing of the loaded snapshot
+        final ShardRoutingTable dispatcherRouting = new ShardRoutingTable(
+                routerFactory,
+                shards[0].routingTable.getShardsNum(),
+                shards[0].routingTable.getMaxShards(),
+                handlesIssued);
+        dispatcherRouting.restoreRouting(shards[0].routingTable);
+
+        final ReplayFeed feed = new ReplayFeed(new MessagesDispatcher(queues, dispatcherRouting), dispatchedFence, releasingFences);
+
+        long replayed = 0;
+        if (journalPath != null) {
+            for (final int journalEpoch : JournalWriter.listEpochs(journalPath)) {
+
+                if (journalEpoch < snapshotEpoch || journalEpoch >= epoch) {
+                    continue;
+                }
+
+                final long minOffset = (journalEpoch == snapshotEpoch) ? snapshotOffset : -1L;
+                replayed += replayEpoch(feed, JournalWriter.epochPath(journalPath, journalEpoch), minOffset);
+            }
+        }
+
+        // stops replay threads after everything else is processed
+        final int index = feed.claim(1);
+        requestsBuffer[index] = 0L;
+        feed.dispatch(index, 1, 0L, 0L, Revelator.MSG_TYPE_POISON_PILL);
+
+        for (final Thread thread : threads) {
+            while (thread.isAlive()) {
+                checkReplayError();
+                thread.join(100);
+            }
+        }
+        checkReplayError();
+
+        // ring offsets start from 0
+        for (final ShardState shard : shards) {
+            shard.handlerSt1.resetOffsets();
+            shard.handlerSt2.resetOffsets();
+        }
+
+        // dispatcher and responses aggregator did not see replayed migrations and resharding
+        routingTables.forEach(table -> table.restoreRouting(shards[0].routingTable));
+
+        log.info("Replayed {} commands in {}ms", replayed, System.currentTimeMillis() - t);
+    }
+
+    private void runReplay(final int shard, final DispatchedFlowProcessor<TransferSession> processor) {
+        try {
+            processor.run();
+        } catch (final RuntimeException | Error ex) {
+            log.error("Shard {} failed to replay journal", shard, ex);
+            replayError = ex;
+        }
+    }
+
+    private void checkReplayError() {
+        final Throwable error = replayError;
+        if (error != null) {
+            throw new IllegalStateException("Journal replay failed", error);
+        }
+    }
+
+    private long replayEpoch(final ReplayFeed feed, final Path epochPath, final long minOffset) {
+
+        final long[] replayed = {0L};
+
+        for (final int segmentIndex : JournalWriter.listSegments(epochPath)) {
+
+            final Path file = JournalWriter.segmentFile(epochPath, segmentIndex);
+            final MappedByteBuffer buffer = IoUtil.mapExistingFile(file.toFile(), "journal segment");
+
+            try {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+                final boolean complete = JournalWriter.readSegment(buffer, crc32c, new JournalWriter.RecordConsumer() {
+
+                    @Override
+                    public void accept(final int payloadPos, final int msgSize, final long globalOffset, final long timestamp, final long correlationId, final byte msgType) {
+                        if (globalOffset > minOffset && msgType != PaymentsApi.CMD_CTRL_SNAPSHOT) {
+                            final int index = feed.claim(msgSize);
+                            for (int i = 0; i < msgSize; i++) {
+                                requestsBuffer[index + i] = buffer.getLong(payloadPos + (i << 3));
+                            }
+                            feed.dispatch(index, msgSize, timestamp, correlationId, msgType);
+                            replayed[0]++;
+                        }
+                    }
+
+                    @Override
+                    public void torn(final int pos) {
+                        log.warn("Journal {} is broken at position {}, skipping the rest of epoch", file, pos);
+                    }
+                });
+
+                if (!complete) {
+                    // torn write - commands after this point were never acknowledged
+                    return replayed[0];
+                }
+            } finally {
+                IoUtil.unmap(buffer);
+            }
+        }
+
+        return replayed[0];
+    }
+
+    private static ShardSnapshotLoader.SnapshotHeader lastOf(final List<ShardSnapshotLoader.SnapshotHeader> chain) {
+        return chain.get(chain.size() - 1);
+    }
+
+    /**
+     * Assigns sequential offsets to replayed messages, places them into the ring buffer and dispatches to shard queues.
+     * Position is reused only after all shards released it, and no more than queue capacity of words is in flight,
+     * so shard queues are never full (every message is at least one word).
+     */
+    private final class ReplayFeed {
+
+        private final MessagesDispatcher dispatcher;
+        private final SingleWriterFence dispatchedFence;
+        private final IFence[] releasingFences;
+        private final int mask;
+        private final int window;
+
+        private long position = 0L;
+        private long releasedCache = -1L;
+
+        private ReplayFeed(final MessagesDispatcher dispatcher,
+                           final SingleWriterFence dispatchedFence,
+                           final IFence[] releasingFences) {
+
+            this.dispatcher = dispatcher;
+            this.dispatchedFence = dispatchedFence;
+            this.releasingFences = releasingFences;
+            this.mask = requestsBuffer.length - 1;
+            this.window = Math.min(requestsBuffer.length, REPLAY_QUEUE_SIZE);
+        }
+
+        /**
+         * @return ring buffer index of the next message
+         */
+        private int claim(final int msgSize) {
+
+            long offset = position;
+            if ((int) (offset & mask) + msgSize > requestsBuffer.length) {
+                // message must be contiguous - skip the tail of the buffer
+                offset = (offset | mask) + 1;
+            }
+
+            awaitReleased(offset + msgSize - window - 1);
+            position = offset;
+            return (int) (offset & mask);
+        }
+
+        private void dispatch(final int index,
+                              final int msgSize,
+                              final long timestamp,
+                              final long correlationId,
+                              final byte msgType) {
+
+            dispatcher.handleMessage(requestsBuffer, index, msgSize, timestamp, position, correlationId, msgType);
+            dispatchedFence.setRelease(position);
+            position += Math.max(msgSize, 1);
+        }
+
+        private void awaitReleased(final long offset) {
+
+            while (releasedCache < offset) {
+                long released = Long.MAX_VALUE;
+                for (final IFence fence : releasingFences) {
+                    released = Math.min(released, fence.getAcquire(releasedCache));
+                }
+
+                if (released < offset) {
+                    checkReplayError();
+                    Thread.onSpinWait();
+                }
+                releasedCache = released;
+            }
+        }
+    }
+
+    private record ShardState(AccountsProcessor accountsProcessor,
+                              TransferFeesProcessor transferFeesProcessor,
+                              CurrencyRateProcessor currencyRateProcessor,
+                              ShardRoutingTable routingTable,
+                              CorrelationWindow correlationWindow,
+                              PaymentsHandlerStage1 handlerSt1,
+                              PaymentsHandlerStage2 handlerSt2) {
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentsRecovery{epoch=" + epoch + ", snapshotEpoch=" + snapshotEpoch + ", snapshotOffset=" + snapshotOffset + '}';
+    }
+}
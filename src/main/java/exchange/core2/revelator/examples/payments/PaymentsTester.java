@@ -18,6 +18,7 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,6 +36,15 @@ public final class PaymentsTester {
 
     private static final double FEE_K = 0.00375;
 
+    // transfers signed per call of authentication scheme
+    private static final int SIGN_BATCH_SIZE = 64;
+
+    // when set, snapshot is taken in the middle of every batch (to check latency impact)
+    private static final Path SNAPSHOTS_PATH = null; // Path.of("snapshots");
+
+    // when set, responses are sent only after commands are journaled
+    private static final Path JOURNAL_PATH = null; // Path.of("journal");
+
     public static void main(String[] args) throws InterruptedException {
         PaymentsTester paymentsTester = new PaymentsTester();
         paymentsTester.test();
@@ -95,7 +105,13 @@ public final class PaymentsTester {
 //        final PaymentsCore paymentsCore = PaymentsCore.createSimple(responseHandler, threadFactory);
 
         final int processingThreadsNum = 8;
-        final PaymentsCore paymentsCore = PaymentsCore.createPipelined(responseHandler, threadFactory, processingThreadsNum);
+        final PaymentsCoreConfig coreConfig = PaymentsCoreConfig.builder()
+                .accountsStoreFactory(HeapAccountsStore.factory(accounts.length / processingThreadsNum))
+                .snapshotsPath(SNAPSHOTS_PATH)
+                .journalPath(JOURNAL_PATH)
+                .commutativeCredits(true)
+                .build();
+        final PaymentsCore paymentsCore = PaymentsCore.createPipelined(responseHandler, threadFactory, processingThreadsNum, coreConfig);
 //        final PaymentsCore paymentsCore = PaymentsCore.createParallel(responseHandler, threadFactory, processingThreadsNum);
         log.info("Configuration {} threads {}", processingThreadsNum, affinityMode);
 
@@ -136,6 +152,7 @@ public final class PaymentsTester {
                             feeLimits,
                             currencyRateProcessor,
                             secrets,
+                            coreConfig.getAuthSchemeFactory(),
                             iterationSeed);
                     log.info("{}. Generated {} transfers (seed={})", i, transfers.size(), iterationSeed);
                     return transfers;
@@ -149,6 +166,9 @@ public final class PaymentsTester {
         log.info("Generated {} maxBalances", maxBalances.size());
 //        maxBalances.forEachKeyValue((acc, maxbal) -> log.debug("MAX-BAL: {}={}", acc, maxbal));
 
+        // recovered state is not included, so conservation check is only valid for a clean start
+        final LongLongHashMap deposits = new LongLongHashMap();
+
         try (AffinityLock lock = Affinity.acquireCore()) {
 
             log.info("Opening {} accounts with {} positive balances...", accounts.length, maxBalances.size());
@@ -163,6 +183,7 @@ public final class PaymentsTester {
                 if (amount != 0) {
                     final long amount1 = 9999999999999999L;
                     paymentsApi.adjustBalance(System.nanoTime(), correlationId.getAndIncrement(), account, amount1);
+                    deposits.put(account, amount1);
                 }
             }
 
@@ -175,6 +196,7 @@ public final class PaymentsTester {
             log.info("Accounts created in {}ms, starting benchmark...", System.currentTimeMillis() - openAccountStartMs);
 
             int transferSetIdx = 0;
+            long snapshotId = 0;
 
             for (int tps1 = 800_000; tps1 <= 7_000_000; tps1 += 100_000) {
 
@@ -196,10 +218,13 @@ public final class PaymentsTester {
                 int nanoTimeRequestsCounter = 0;
 
                 final long startTimeNs = System.nanoTime();
+                final long fenceReleasesStart = paymentsCore.getSt1FenceReleases();
                 // setting timer
                 flushAndWait(controlCorrelationCounter, syncQueue, paymentsApi, startTimeNs, SET_REFERENCE_TIME_CODE);
 
                 final List<TransferTestOrder> transfers = allTransfers.get(transferSetIdx);
+                final int snapshotAt = SNAPSHOTS_PATH != null ? transfers.size() / 2 : -1;
+                int orderIdx = 0;
                 for (final TransferTestOrder order : transfers) {
 
                     plannedTimestampPs += picosPerCmd;
@@ -231,7 +256,11 @@ public final class PaymentsTester {
                             order.amount,
                             order.currency,
                             order.transferType,
-                            order.sha256);
+                            order.signature);
+
+                    if (orderIdx++ == snapshotAt) {
+                        paymentsApi.makeSnapshot(plannedTimestampPs, correlationId.getAndIncrement(), ++snapshotId);
+                    }
                 }
 
                 flushAndWait(controlCorrelationCounter, syncQueue, paymentsApi, startTimeNs, END_BATCH_CODE);
@@ -239,14 +268,20 @@ public final class PaymentsTester {
                 final float processingTimeUs = (System.nanoTime() - startTimeNs) / 1000f;
                 final float perfMt = (float) transfers.size() / processingTimeUs;
                 final float targetMt = (float) tps / 1_000_000.0f;
-                final String tag = String.format("%.2fns %.3f -> %.3f MT/s %.0f%%",
-                        picosPerCmd / 1024.0, targetMt, perfMt, perfMt / targetMt * 100.0);
+                final float fenceReleasesPerMsg = (float) (paymentsCore.getSt1FenceReleases() - fenceReleasesStart) / transfers.size();
+                final String tag = String.format("%.2fns %.3f -> %.3f MT/s %.0f%% st1releases=%.3f/msg",
+                        picosPerCmd / 1024.0, targetMt, perfMt, perfMt / targetMt * 100.0, fenceReleasesPerMsg);
 
 
                 final Histogram histogram = responseHandler.hdrRecorder.getIntervalHistogram();
                 final Map<String, String> latencyReportFast = LatencyTools.createLatencyReportFast(histogram);
                 log.info("{} {} nanotimes={} tsidx={}", tag, latencyReportFast, nanoTimeRequestsCounter, transferSetIdx);
 
+                for (int i = 0; i < processingThreadsNum; i++) {
+                    final StageCostMeter[] costMeters = paymentsCore.getStageCostMeters(i);
+                    log.info("shard {}: st1 {} st2 {}", i, costMeters[0], costMeters[1]);
+                }
+
                 flushAndWait(controlCorrelationCounter, syncQueue, paymentsApi, startTimeNs, DUMP_STAT);
 
                 transferSetIdx++;
@@ -255,6 +290,10 @@ public final class PaymentsTester {
 
         paymentsCore.stop();
 
+        if (!coreConfig.isRecoveryEnabled()) {
+            checkConservation(createTreasures(deposits), paymentsCore.getCurrencyTotals());
+        }
+
         log.info("Done");
 
     }
@@ -288,9 +327,16 @@ public final class PaymentsTester {
                                                             final Map<Short, PaymentsApi.FeeConfig> feeLimits,
                                                             final CurrencyRateProcessor currencyRateProcessor,
                                                             final LongLongHashMap secrets,
+                                                            final ITransferAuthSchemeFactory authSchemeFactory,
                                                             final int seed) {
 
-        SignatureHandler signatureHandler = new SignatureHandler();
+        // signatures are calculated in batches (multi-lane where scheme supports it)
+        final ITransferAuthScheme authScheme = authSchemeFactory.create();
+        final int sigWords = authScheme.signatureWords();
+        final long[] batchFields = new long[SIGN_BATCH_SIZE * ITransferAuthScheme.TRANSFER_FIELDS];
+        final long[] batchSecrets = new long[SIGN_BATCH_SIZE];
+        final long[] batchSignatures = new long[SIGN_BATCH_SIZE * sigWords];
+        int batchSize = 0;
 
         final List<TransferTestOrder> transfersList = new ArrayList<>();
 
@@ -328,10 +374,23 @@ public final class PaymentsTester {
 
             final long orderAmount = minOrderAmount + random.nextInt(100_000) + 1L;
 
-            final long secret = secrets.get(srcAcc);
-            final long[] signature = signatureHandler.signTransfer(srcAcc, dstAcc, orderAmount, orderCurrency, transferType, secret);
+            final int f = batchSize * ITransferAuthScheme.TRANSFER_FIELDS;
+            batchFields[f] = srcAcc;
+            batchFields[f + 1] = dstAcc;
+            batchFields[f + 2] = orderAmount;
+            batchFields[f + 3] = ITransferAuthScheme.currencyAndType(orderCurrency, transferType);
+            batchSecrets[batchSize++] = secrets.get(srcAcc);
 
-            transfersList.add(new TransferTestOrder(srcAcc, dstAcc, orderAmount, orderCurrency, transferType, signature));
+            transfersList.add(new TransferTestOrder(srcAcc, dstAcc, orderAmount, orderCurrency, transferType, new long[sigWords]));
+
+            if (batchSize == SIGN_BATCH_SIZE || i == transfersNum - 1) {
+                authScheme.signTransfers(batchFields, batchSecrets, batchSize, batchSignatures);
+                final int first = transfersList.size() - batchSize;
+                for (int j = 0; j < batchSize; j++) {
+                    System.arraycopy(batchSignatures, j * sigWords, transfersList.get(first + j).signature(), 0, sigWords);
+                }
+                batchSize = 0;
+            }
         }
 
         return transfersList;
@@ -353,17 +412,50 @@ public final class PaymentsTester {
         return balances;
     }
 
+    /**
+     * @return total per currency
+     */
     public static IntLongHashMap createTreasures(LongLongHashMap balances) {
 
         final IntLongHashMap treasureBalances = new IntLongHashMap();
 
         balances.forEachKeyValue(
                 (account, amount) ->
-                        balances.addToValue(AccountsProcessor.extractCurrency(account), amount));
+                        treasureBalances.addToValue(AccountsProcessor.extractCurrency(account), amount));
 
         return treasureBalances;
     }
 
+    /**
+     * Money is only moved by transfers and fees, so totals per currency must be equal to deposited amounts
+     * (sums can overflow, but wrap the same way).
+     */
+    private static void checkConservation(final IntLongHashMap expectedTotals, final IntLongHashMap actualTotals) {
+
+        final MutableInt mismatches = new MutableInt();
+
+        expectedTotals.forEachKeyValue((currency, expected) -> {
+            final long actual = actualTotals.getIfAbsent(currency, 0L);
+            if (actual != expected) {
+                log.error("Balance is not conserved for currency {}: expected={} actual={}", currency, expected, actual);
+                mismatches.increment();
+            }
+        });
+
+        actualTotals.forEachKeyValue((currency, actual) -> {
+            if (actual != 0L && !expectedTotals.containsKey(currency)) {
+                log.error("Balance is not conserved for currency {}: expected=0 actual={}", currency, actual);
+                mismatches.increment();
+            }
+        });
+
+        if (mismatches.intValue() != 0) {
+            throw new IllegalStateException("Balance conservation check failed for " + mismatches + " currencies");
+        }
+
+        log.info("Balance conservation check passed for {} currencies", expectedTotals.size());
+    }
+
 
     private static class ResponseHandler implements IPaymentsResponseHandler {
 
@@ -436,6 +528,6 @@ public final class PaymentsTester {
             long amount,
             short currency,
             TransferType transferType,
-            long[] sha256) {
+            long[] signature) {
     }
 }
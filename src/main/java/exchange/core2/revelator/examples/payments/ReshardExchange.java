@@ -0,0 +1,202 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.fences.SingleWriterFence;
+
+import java.util.Arrays;
+
+/**
+ * Hand-over area for resharding (pipelined core).
+ * <p>
+ * Every shard writes accounts it does not own anymore into packages addressed to new owners, then publishes exported fence.
+ * Every shard waits until all shards exported, then reads packages addressed to it and publishes imported fence.
+ * Packages are reused by next resharding only after all shards imported previous one.
+ * <p>
+ * Single account migration hands over correlation window entries of the account the same way (one package per source shard,
+ * reused only after target of the previous migration from the same source imported it).
+ */
+public final class ReshardExchange {
+
+    private final int shardsNum;
+
+    // [source * shardsNum + target], records of (account, encoded balance, secret, nonce)
+    private final Package[] accounts;
+
+    // [source], pairs of (currency, amount), all treasures of source go to single target
+    private final Package[] treasures;
+    private final int[] treasuresTarget;
+
+    private final SingleWriterFence[] exportedFences;
+    private final SingleWriterFence[] importedFences;
+
+    // [source], correlation window records (correlationId, account, sequence, result) of the last migrated account
+    private final Package[] migratedEntries;
+    private final SingleWriterFence[] migrationImportedFences;
+
+    public ReshardExchange(final int shardsNum) {
+
+        this.shardsNum = shardsNum;
+        this.accounts = new Package[shardsNum * shardsNum];
+        this.treasures = new Package[shardsNum];
+        this.treasuresTarget = new int[shardsNum];
+        this.exportedFences = new SingleWriterFence[shardsNum];
+        this.importedFences = new SingleWriterFence[shardsNum];
+        this.migratedEntries = new Package[shardsNum];
+        this.migrationImportedFences = new SingleWriterFence[shardsNum];
+
+        Arrays.setAll(accounts, i -> new Package());
+        Arrays.setAll(treasures, i -> new Package());
+        Arrays.setAll(exportedFences, i -> new SingleWriterFence());
+        Arrays.setAll(importedFences, i -> new SingleWriterFence());
+        Arrays.setAll(migratedEntries, i -> new Package());
+        Arrays.setAll(migrationImportedFences, i -> new SingleWriterFence());
+    }
+
+    /**
+     * Must be called by source shard before writing packages.
+     *
+     * @return false if some shard has not imported previous resharding yet
+     */
+    public boolean canExport(final long prevReshardOffset) {
+        return allReached(importedFences, prevReshardOffset);
+    }
+
+    public void clearPackages(final int source) {
+        for (int target = 0; target < shardsNum; target++) {
+            accounts[source * shardsNum + target].size = 0;
+        }
+        treasures[source].size = 0;
+    }
+
+    public void exportAccount(final int source,
+                              final int target,
+                              final long account,
+                              final long encodedBalance,
+                              final long secret,
+                              final long nonce) {
+        accounts[source * shardsNum + target].add(account, encodedBalance, secret, nonce);
+    }
+
+    public void forEachExported(final int source, final IAccountsStore.AccountConsumer consumer) {
+        for (int target = 0; target < shardsNum; target++) {
+            final Package pkg = accounts[source * shardsNum + target];
+            for (int i = 0; i < pkg.size; i += 4) {
+                consumer.accept(pkg.data[i], pkg.data[i + 1], pkg.data[i + 2], pkg.data[i + 3]);
+            }
+        }
+    }
+
+    public void exportTreasure(final int source, final int target, final short currency, final long amount) {
+        treasuresTarget[source] = target;
+        treasures[source].add(currency, amount);
+    }
+
+    public void publishExported(final int source, final long offset) {
+        exportedFences[source].setRelease(offset);
+    }
+
+    public boolean canImport(final long offset) {
+        return allReached(exportedFences, offset);
+    }
+
+    public void importAccounts(final int target, final IAccountsStore.AccountConsumer consumer) {
+        for (int source = 0; source < shardsNum; source++) {
+            final Package pkg = accounts[source * shardsNum + target];
+            for (int i = 0; i < pkg.size; i += 4) {
+                consumer.accept(pkg.data[i], pkg.data[i + 1], pkg.data[i + 2], pkg.data[i + 3]);
+            }
+        }
+    }
+
+    public void importTreasures(final int target, final TransferFeesProcessor.TreasureConsumer consumer) {
+        for (int source = 0; source < shardsNum; source++) {
+            final Package pkg = treasures[source];
+            if (pkg.size != 0 && treasuresTarget[source] == target) {
+                for (int i = 0; i < pkg.size; i += 2) {
+                    consumer.accept((short) pkg.data[i], pkg.data[i + 1]);
+                }
+            }
+        }
+    }
+
+    public void publishImported(final int target, final long offset) {
+        importedFences[target].setRelease(offset);
+    }
+
+    /**
+     * Must be called by source shard of migration before exporting window entries.
+     *
+     * @return false if target of previous migration from this source has not imported its entries yet
+     */
+    public boolean canExportMigration(final int source, final long prevMigrationOffset) {
+        return migrationImportedFences[source].getAcquire(-1L) >= prevMigrationOffset;
+    }
+
+    /**
+     * Source shard: replace package with window entries of migrated account (visible to target after source Stage1 fence).
+     */
+    public void exportMigratedEntries(final int source, final CorrelationWindow window, final long account) {
+        final Package pkg = migratedEntries[source];
+        pkg.size = 0;
+        window.moveEntries(account, (correlationId, acc, seq, result) -> pkg.add(correlationId, acc, seq, result));
+    }
+
+    /**
+     * Target shard: restore entries exported by source and allow source to reuse the package.
+     */
+    public void importMigratedEntries(final int source, final CorrelationWindow window, final long offset) {
+        final Package pkg = migratedEntries[source];
+        for (int i = 0; i < pkg.size; i += 4) {
+            window.restore(pkg.data[i], pkg.data[i + 1], pkg.data[i + 2], pkg.data[i + 3]);
+        }
+        migrationImportedFences[source].setRelease(offset);
+    }
+
+    /**
+     * Reset progress of the shard (ring is restarted after journal replay).
+     */
+    public void resetFences(final int shard) {
+        exportedFences[shard].setRelease(-1L);
+        importedFences[shard].setRelease(-1L);
+        migrationImportedFences[shard].setRelease(-1L);
+    }
+
+    private static boolean allReached(final SingleWriterFence[] fences, final long offset) {
+        for (final SingleWriterFence fence : fences) {
+            if (fence.getAcquire(-1L) < offset) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Package {
+
+        private long[] data = new long[48];
+        private int size;
+
+        private void add(final long w1, final long w2) {
+            ensureCapacity(2);
+            data[size++] = w1;
+            data[size++] = w2;
+        }
+
+        private void add(final long w1, final long w2, final long w3, final long w4) {
+            ensureCapacity(4);
+            data[size++] = w1;
+            data[size++] = w2;
+            data[size++] = w3;
+            data[size++] = w4;
+        }
+
+        private void ensureCapacity(final int words) {
+            if (size + words > data.length) {
+                data = Arrays.copyOf(data, data.length << 1);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReshardExchange{shardsNum=" + shardsNum + '}';
+    }
+}
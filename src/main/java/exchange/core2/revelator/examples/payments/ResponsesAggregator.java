@@ -44,6 +44,7 @@ public final class ResponsesAggregator implements SimpleMessageHandler {
             case PaymentsApi.CMD_ADJUST_BALANCE -> accessor = adjustBalanceAccessor;
             case PaymentsApi.CMD_OPEN_ACCOUNT -> accessor = openAccountAccessor;
             case PaymentsApi.CMD_CLOSE_ACCOUNT -> accessor = closeAccountAccessor;
+            case PaymentsApi.CMD_CTRL_CUR_RATE, PaymentsApi.CMD_CTRL_FEES -> accessor = unsupportedAccessor;
             case Revelator.MSG_TYPE_TEST_CONTROL -> accessor = testControlCmdAccessor;
             default -> throw new IllegalArgumentException("Unexpected message type " + msgType);
         }
@@ -110,6 +111,11 @@ public final class ResponsesAggregator implements SimpleMessageHandler {
         public long getAccount() {
             return requestsBuffer[lastAddr];
         }
+
+        @Override
+        public long getAccountHandle() {
+            return 0L;
+        }
     };
 
     private final IPaymentsResponseHandler.ICloseAccountAccessor closeAccountAccessor = new IPaymentsResponseHandler.ICloseAccountAccessor() {
@@ -158,5 +164,8 @@ public final class ResponsesAggregator implements SimpleMessageHandler {
         }
     };
 
+    private final IPaymentsResponseHandler.IUnsupportedAccessor unsupportedAccessor = () -> {
+        throw new UnsupportedOperationException();
+    };
 
 }
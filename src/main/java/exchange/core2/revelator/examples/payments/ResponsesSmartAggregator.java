@@ -13,41 +13,33 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
     private static final Logger log = LoggerFactory.getLogger(ResponsesSmartAggregator.class);
 
     private final LocalResultsLongBuffer[] resultsBuffers;
-    private final IFence[] fencesSt1;
+    private final CachingFencesArray fencesSt1;
+    private final IFence journalFence;
     private final IPaymentsResponseHandler responseHandler;
     private final long[] requestsBuffer;
 
-    private final long handlersMask;
+    private final ShardRoutingTable shardRouter;
 
     @Contended
     private int lastAddr;
 
-    @Contended
-    private int spinsCounter1 = 0;
-
-    @Contended
-    private int spinsCounter2 = 0;
-
-    @Contended
-    private int hit1Counter = 0;
-    @Contended
-    private int hit2Counter = 0;
+    private long lastAccountHandle;
 
-    @Contended
-    private final long[] fencesCache;
+    private long journalFenceCache = -1L;
 
     public ResponsesSmartAggregator(final LocalResultsLongBuffer[] resultsBuffers,
                                     final IFence[] fencesSt1,
-                                    final long handlersMask,
+                                    final IFence journalFence,
+                                    final ShardRoutingTable shardRouter,
                                     final IPaymentsResponseHandler responseHandler,
                                     final long[] requestsBuffer) {
 
         this.resultsBuffers = resultsBuffers;
-        this.fencesSt1 = fencesSt1;
+        this.fencesSt1 = new CachingFencesArray(fencesSt1);
+        this.journalFence = journalFence;
         this.responseHandler = responseHandler;
-        this.handlersMask = handlersMask;
+        this.shardRouter = shardRouter;
         this.requestsBuffer = requestsBuffer;
-        this.fencesCache = new long[fencesSt1.length];
     }
 
     @Override
@@ -62,14 +54,45 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
         // TODO incorrect wait logic for MSG_TYPE_TEST_CONTROL
         final long resultsCode = waitAndMergeResult(index, globalOffset, msgType);
 
+        if (msgType == PaymentsApi.CMD_MIGRATE_ACCOUNT) {
+            applyMigration(index);
+        } else if (msgType == PaymentsApi.CMD_CTRL_RESHARD) {
+            applyReshard(index);
+        }
+
+        if (journalFence != null && journalFenceCache < globalOffset) {
+            // response can only be sent after command is durable
+            long journaledOffset;
+            while ((journaledOffset = journalFence.getAcquire(0)) < globalOffset) {
+                Thread.onSpinWait();
+            }
+            journalFenceCache = journaledOffset;
+        }
+
         this.lastAddr = index;
 
+        final int resultCode;
+        if (msgType == PaymentsApi.CMD_OPEN_ACCOUNT) {
+            // successful result can carry dense slot of the new account
+            resultCode = AccountsProcessor.extractOpenAccountResultCode(resultsCode);
+            final int slot = AccountsProcessor.extractOpenAccountSlot(resultsCode);
+            final long account = requestsBuffer[index];
+            lastAccountHandle = (slot >= 0)
+                    ? AccountsProcessor.toAccountHandle(account, slot, shardRouter.shardOf(account))
+                    : 0L;
+        } else {
+            resultCode = (int) resultsCode;
+        }
+
         final IPaymentsResponseHandler.IRequestAccessor accessor;
         switch (msgType) {
             case PaymentsApi.CMD_TRANSFER -> accessor = transferAccessor;
             case PaymentsApi.CMD_ADJUST_BALANCE -> accessor = adjustBalanceAccessor;
             case PaymentsApi.CMD_OPEN_ACCOUNT -> accessor = openAccountAccessor;
             case PaymentsApi.CMD_CLOSE_ACCOUNT -> accessor = closeAccountAccessor;
+            case PaymentsApi.CMD_CTRL_SNAPSHOT -> accessor = snapshotAccessor;
+            case PaymentsApi.CMD_MIGRATE_ACCOUNT -> accessor = migrateAccountAccessor;
+            case PaymentsApi.CMD_CTRL_RESHARD -> accessor = reshardAccessor;
             case PaymentsApi.CMD_CTRL_CUR_RATE, PaymentsApi.CMD_CTRL_FEES -> accessor = unsupportedAccessor;
             case Revelator.MSG_TYPE_TEST_CONTROL -> accessor = testControlCmdAccessor;
             default -> throw new IllegalArgumentException("Unexpected message type " + msgType);
@@ -78,18 +101,15 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
         if (msgType == Revelator.MSG_TYPE_TEST_CONTROL) {
             final long data = requestsBuffer[index];
             if (data == 1073923874826736264L) {
-                // log.debug("AGGREGATOR STAT: c1={} c2={} hit1={} hit2={}", spinsCounter1, spinsCounter2, hit1Counter, hit2Counter);
-                spinsCounter1 = 0;
-                spinsCounter2 = 0;
-                hit1Counter = 0;
-                hit2Counter = 0;
+                log.debug("AGGREGATOR STAT: {}", fencesSt1);
+                fencesSt1.resetStatistics();
             }
         }
 
         responseHandler.commandResult(
                 timestamp,
                 correlationId,
-                (int) resultsCode,
+                resultCode,
                 accessor);
     }
 
@@ -97,24 +117,25 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
                                     final long globalOffset,
                                     final byte msgType) {
 
-        final long account1 = requestsBuffer[index]; // account - always first field
-        final int handlerIdx1 = (int) (account1 & handlersMask);
-
-        // TODO introduce CachingFencesArray class
-        if (fencesCache[handlerIdx1] < globalOffset) {
-            // wait for first fence
-            final IFence fence1 = fencesSt1[handlerIdx1];
-            long availableOffset;
-            while ((availableOffset = fence1.getAcquire(0)) < globalOffset) {
-                Thread.onSpinWait();
-//            Thread.yield();
-                spinsCounter1++;
-            }
-            fencesCache[handlerIdx1] = availableOffset;
-        } else {
-            hit1Counter++;
+        if (msgType == PaymentsApi.CMD_CTRL_SNAPSHOT || msgType == PaymentsApi.CMD_CTRL_RESHARD) {
+            return waitAllAndMergeResult(index, globalOffset);
         }
 
+        if (msgType == PaymentsApi.CMD_MIGRATE_ACCOUNT) {
+            // target shard completes after source shard, invalid request is answered by source shard
+            final long account = requestsBuffer[index];
+            final int targetShard = (int) requestsBuffer[index + 1];
+            final int shard = shardRouter.canMigrate(account, targetShard) ? targetShard : shardRouter.shardOf(account);
+            fencesSt1.await(shard, globalOffset);
+            return resultsBuffers[shard].get(index);
+        }
+
+        final long account1 = requestsBuffer[index]; // account - always first field
+        final int handlerIdx1 = shardRouter.shardOf(account1);
+
+        // wait for first fence
+        fencesSt1.await(handlerIdx1, globalOffset);
+
         // result for first fence has received
         final long result1 = resultsBuffers[handlerIdx1].get(index);
         if (msgType != PaymentsApi.CMD_TRANSFER) {
@@ -122,35 +143,62 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
             return result1;
         }
 
+        if (result1 == CorrelationWindow.REPEATED_SUCCESS) {
+            // retry of already settled transfer - destination did not credit it again
+            return 0L;
+        }
+
         if (result1 < 0) {
             // can return error (skip waiting other part)
             return result1;
         }
 
         final long dstAccount = requestsBuffer[index + 1];
-        final int handlerIdx2 = (int) (dstAccount & handlersMask);
+        final int handlerIdx2 = shardRouter.shardOf(dstAccount);
         if (handlerIdx2 == handlerIdx1) {
             // can return anyway because processing was done by same thread
             return result1;
         }
 
-        if (fencesCache[handlerIdx2] < globalOffset) {
-            // wait for second account fence
-            final IFence fence2 = fencesSt1[handlerIdx2];
-            long availableOffset;
-            while ((availableOffset = fence2.getAcquire(0)) < globalOffset) {
-                Thread.onSpinWait();
-//            Thread.yield();
-                spinsCounter2++;
-            }
-            fencesCache[handlerIdx2] = availableOffset;
-        } else {
-            hit2Counter++;
-        }
+        // wait for second account fence
+        fencesSt1.await(handlerIdx2, globalOffset);
 
         return resultsBuffers[handlerIdx2].get(index);
     }
 
+    private void applyMigration(final int index) {
+        final long account = requestsBuffer[index];
+        final int targetShard = (int) requestsBuffer[index + 1];
+        if (shardRouter.canMigrate(account, targetShard)) {
+            shardRouter.migrate(account, targetShard);
+        }
+    }
+
+    private void applyReshard(final int index) {
+        final IShardRouter router = shardRouter.prepareReshard((int) requestsBuffer[index]);
+        if (router != null) {
+            shardRouter.reshard(router);
+        }
+    }
+
+    /**
+     * Wait for all handlers (broadcast commands), returns first error if any
+     */
+    private long waitAllAndMergeResult(final int index,
+                                       final long globalOffset) {
+
+        long result = 1L;
+
+        for (int handlerIdx = 0; handlerIdx < fencesSt1.size(); handlerIdx++) {
+
+            fencesSt1.await(handlerIdx, globalOffset);
+
+            result = Math.min(result, resultsBuffers[handlerIdx].get(index));
+        }
+
+        return result;
+    }
+
     private final IPaymentsResponseHandler.IAdjustBalanceAccessor adjustBalanceAccessor = new IPaymentsResponseHandler.IAdjustBalanceAccessor() {
         @Override
         public byte getCommandType() {
@@ -206,6 +254,11 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
         public long getAccount() {
             return requestsBuffer[lastAddr];
         }
+
+        @Override
+        public long getAccountHandle() {
+            return lastAccountHandle;
+        }
     };
 
     private final IPaymentsResponseHandler.ICloseAccountAccessor closeAccountAccessor = new IPaymentsResponseHandler.ICloseAccountAccessor() {
@@ -254,6 +307,47 @@ public final class ResponsesSmartAggregator implements SimpleMessageHandler {
         }
     };
 
+    private final IPaymentsResponseHandler.ISnapshotAccessor snapshotAccessor = new IPaymentsResponseHandler.ISnapshotAccessor() {
+        @Override
+        public byte getCommandType() {
+            return PaymentsApi.CMD_CTRL_SNAPSHOT;
+        }
+
+        @Override
+        public long getSnapshotId() {
+            return requestsBuffer[lastAddr];
+        }
+    };
+
+    private final IPaymentsResponseHandler.IMigrateAccountAccessor migrateAccountAccessor = new IPaymentsResponseHandler.IMigrateAccountAccessor() {
+        @Override
+        public byte getCommandType() {
+            return PaymentsApi.CMD_MIGRATE_ACCOUNT;
+        }
+
+        @Override
+        public long getAccount() {
+            return requestsBuffer[lastAddr];
+        }
+
+        @Override
+        public int getTargetShard() {
+            return (int) requestsBuffer[lastAddr + 1];
+        }
+    };
+
+    private final IPaymentsResponseHandler.IReshardAccessor reshardAccessor = new IPaymentsResponseHandler.IReshardAccessor() {
+        @Override
+        public byte getCommandType() {
+            return PaymentsApi.CMD_CTRL_RESHARD;
+        }
+
+        @Override
+        public int getShardsNum() {
+            return (int) requestsBuffer[lastAddr];
+        }
+    };
+
     private final IPaymentsResponseHandler.IUnsupportedAccessor unsupportedAccessor = () -> {
         throw new UnsupportedOperationException();
     };
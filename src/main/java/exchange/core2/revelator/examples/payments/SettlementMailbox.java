@@ -0,0 +1,141 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.fences.SingleWriterFence;
+import jdk.internal.vm.annotation.Contended;
+import org.agrona.BitUtil;
+
+/**
+ * Single producer single consumer queue of cross-shard transfer results for one pair of shards.
+ * <p>
+ * Stage1 of the producing shard pushes its half-result (amountDst or -1 for source, 0 or -1 for destination)
+ * together with globalOffset. Stage2 of the consuming shard visits transfers in offset order,
+ * so records are read sequentially instead of polling other shard fence and sparse results buffer slots.
+ * <p>
+ * Mailbox is only a fast path: producer never waits (record is dropped if mailbox is full, or if it is older than
+ * previous record - re-driven parked message), consumer falls back to results buffer of the other shard.
+ * Each entry takes 2 words: globalOffset, result.
+ */
+public final class SettlementMailbox {
+
+    public static final long NOT_AVAILABLE = Long.MIN_VALUE;
+
+    private static final int ENTRY_WORDS_BITS = 1;
+
+    private final long[] entries;
+    private final int mask;
+
+    // number of published entries (written by producer)
+    private final SingleWriterFence tail = new SingleWriterFence();
+
+    // number of consumed entries (written by consumer)
+    private final SingleWriterFence head = new SingleWriterFence();
+
+    // producer side
+    private long producerSeq = 0L;
+    private long headCache = 0L;
+    private long lastOffset = -1L;
+
+    // consumer side
+    @Contended
+    private long consumerSeq = 0L;
+    @Contended
+    private long tailCache = 0L;
+
+    public SettlementMailbox(final int capacity) {
+        final int entriesNum = BitUtil.findNextPositivePowerOfTwo(capacity);
+        this.entries = new long[entriesNum << ENTRY_WORDS_BITS];
+        this.mask = entriesNum - 1;
+        this.head.setRelease(0L);
+        this.tail.setRelease(0L);
+    }
+
+    /**
+     * Producer: push result of transfer, never waits.
+     *
+     * @return false if record was dropped
+     */
+    boolean offer(final long globalOffset, final long result) {
+
+        if (globalOffset <= lastOffset) {
+            // consumer relies on offsets order
+            return false;
+        }
+
+        if (producerSeq - headCache > mask) {
+            headCache = head.getAcquire(headCache);
+            if (producerSeq - headCache > mask) {
+                // consumer is lagging or does not need these results
+                return false;
+            }
+        }
+
+        final int base = ((int) producerSeq & mask) << ENTRY_WORDS_BITS;
+        entries[base] = globalOffset;
+        entries[base + 1] = result;
+
+        lastOffset = globalOffset;
+        tail.setRelease(++producerSeq);
+        return true;
+    }
+
+    /**
+     * Consumer: take result for given offset, older records are skipped (consumer did not need them).
+     *
+     * @return result or NOT_AVAILABLE if record is not published yet, or was dropped by producer
+     */
+    long poll(final long globalOffset) {
+
+        final long startSeq = consumerSeq;
+        long result = NOT_AVAILABLE;
+
+        while (true) {
+
+            if (consumerSeq == tailCache) {
+                tailCache = tail.getAcquire(tailCache);
+                if (consumerSeq == tailCache) {
+                    break;
+                }
+            }
+
+            final int base = ((int) consumerSeq & mask) << ENTRY_WORDS_BITS;
+            final long offset = entries[base];
+
+            if (offset > globalOffset) {
+                // record was dropped, next one belongs to further transfer
+                break;
+            }
+
+            consumerSeq++;
+
+            if (offset == globalOffset) {
+                result = entries[base + 1];
+                break;
+            }
+        }
+
+        if (consumerSeq != startSeq) {
+            head.setRelease(consumerSeq);
+        }
+
+        return result;
+    }
+
+    /**
+     * Drop all records and start offsets from the beginning (ring is restarted after journal replay).
+     * Producer and consumer must be stopped.
+     */
+    void reset() {
+        producerSeq = 0L;
+        headCache = 0L;
+        lastOffset = -1L;
+        consumerSeq = 0L;
+        tailCache = 0L;
+        head.setRelease(0L);
+        tail.setRelease(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "SettlementMailbox{capacity=" + (mask + 1) + ", lastOffset=" + lastOffset + '}';
+    }
+}
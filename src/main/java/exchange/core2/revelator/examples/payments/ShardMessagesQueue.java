@@ -0,0 +1,92 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.fences.SingleWriterFence;
+import exchange.core2.revelator.processors.pipelined.PipelinedFlowSession;
+import org.agrona.BitUtil;
+
+/**
+ * Single producer single consumer queue of messages relevant to one shard, filled by {@link MessagesDispatcher}.
+ * <p>
+ * Only message position is copied (payload stays in the ring), each entry takes 4 words:
+ * globalOffset, (bufferIndex << 32 | payloadSize << 8 | msgType), timestamp, correlationId.
+ */
+public final class ShardMessagesQueue {
+
+    private static final int ENTRY_WORDS_BITS = 2;
+
+    private final long[] entries;
+    private final int mask;
+
+    // number of published entries (written by dispatcher)
+    private final SingleWriterFence tail = new SingleWriterFence();
+
+    // number of consumed entries (written by shard processor)
+    private final SingleWriterFence head = new SingleWriterFence();
+
+    // producer-side cache of consumer position
+    private long headCache = 0L;
+
+    public ShardMessagesQueue(final int capacity) {
+        final int entriesNum = BitUtil.findNextPositivePowerOfTwo(capacity);
+        this.entries = new long[entriesNum << ENTRY_WORDS_BITS];
+        this.mask = entriesNum - 1;
+        this.head.setRelease(0L);
+        this.tail.setRelease(0L);
+    }
+
+    /**
+     * Producer: write entry at given sequence (not visible until published), waits while queue is full.
+     */
+    void write(final long seq,
+               final long globalOffset,
+               final int bufferIndex,
+               final int payloadSize,
+               final byte msgType,
+               final long timestamp,
+               final long correlationId) {
+
+        while (seq - headCache > mask) {
+            // shard is lagging - wait until it frees some space
+            headCache = head.getAcquire(headCache);
+            Thread.onSpinWait();
+        }
+
+        final int base = ((int) seq & mask) << ENTRY_WORDS_BITS;
+        entries[base] = globalOffset;
+        entries[base + 1] = ((long) bufferIndex << 32) | ((long) (payloadSize & 0xFF_FFFF) << 8) | (msgType & 0xFF);
+        entries[base + 2] = timestamp;
+        entries[base + 3] = correlationId;
+    }
+
+    /**
+     * Producer: make entries up to (excluding) given sequence visible.
+     */
+    void publish(final long seq) {
+        tail.setRelease(seq);
+    }
+
+    /**
+     * Consumer: number of published entries.
+     */
+    long getPublished(final long lastKnown) {
+        return tail.getAcquire(lastKnown);
+    }
+
+    /**
+     * Consumer: copy entry into session and release its place in the queue.
+     */
+    void read(final long seq, final PipelinedFlowSession session) {
+
+        final int base = ((int) seq & mask) << ENTRY_WORDS_BITS;
+        final long position = entries[base + 1];
+
+        session.globalOffset = entries[base];
+        session.bufferIndex = (int) (position >>> 32);
+        session.payloadSize = (int) (position >>> 8) & 0xFF_FFFF;
+        session.messageType = (byte) position;
+        session.timestamp = entries[base + 2];
+        session.correlationId = entries[base + 3];
+
+        head.setRelease(seq + 1);
+    }
+}
@@ -0,0 +1,135 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.eclipse.collections.api.block.procedure.primitive.LongIntProcedure;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+/**
+ * Shard router with per-account overrides for migrated accounts and switchable number of active shards.
+ * <p>
+ * Every thread that routes messages (shard Stage1, dispatcher, responses aggregator) owns a separate instance
+ * and applies migration or resharding when it reaches corresponding command, so all of them switch routing at the same offset.
+ */
+public final class ShardRoutingTable implements IShardRouter {
+
+    private final IShardRouterFactory routerFactory;
+
+    // shard processors available (active and idle)
+    private final int maxShards;
+
+    // handles route to the shard they were issued by, so accounts can not be moved
+    private final boolean handlesIssued;
+
+    private IShardRouter baseRouter;
+
+    // account -> shard, only for accounts moved away from their base shard
+    private final LongIntHashMap overrides = new LongIntHashMap();
+
+    public ShardRoutingTable(final IShardRouterFactory routerFactory,
+                             final int shardsNum,
+                             final int maxShards,
+                             final boolean handlesIssued) {
+
+        this.routerFactory = routerFactory;
+        this.maxShards = maxShards;
+        this.handlesIssued = handlesIssued;
+        this.baseRouter = routerFactory.create(shardsNum);
+    }
+
+    @Override
+    public int shardOf(final long account) {
+        return overrides.isEmpty()
+                ? baseRouter.shardOf(account)
+                : overrides.getIfAbsent(account, baseRouter.shardOf(account));
+    }
+
+    /**
+     * @return number of active shards
+     */
+    @Override
+    public int getShardsNum() {
+        return baseRouter.getShardsNum();
+    }
+
+    public int getMaxShards() {
+        return maxShards;
+    }
+
+    /**
+     * Account handles address dense slot of particular shard, so accounts of stores issuing handles can not be migrated
+     * (handle given to client would keep routing to the old shard). Decision only depends on configuration and routing,
+     * so all routing threads make the same one.
+     */
+    public boolean canMigrate(final long account, final int targetShard) {
+        return !handlesIssued
+                && !AccountsProcessor.isAccountHandle(account)
+                && targetShard >= 0
+                && targetShard < getShardsNum()
+                && targetShard != shardOf(account);
+    }
+
+    public void migrate(final long account, final int targetShard) {
+        if (baseRouter.shardOf(account) == targetShard) {
+            // moved back home
+            overrides.remove(account);
+        } else {
+            overrides.put(account, targetShard);
+        }
+    }
+
+    /**
+     * @return router for new number of active shards, or null if it is not possible (out of range, same, not supported by strategy)
+     */
+    public IShardRouter prepareReshard(final int shardsNum) {
+
+        if (shardsNum < 1 || shardsNum > maxShards || shardsNum == getShardsNum()) {
+            return null;
+        }
+
+        try {
+            return routerFactory.create(shardsNum);
+        } catch (final IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Switch to new router, accounts are repartitioned, so all overrides are dropped.
+     */
+    public void reshard(final IShardRouter router) {
+        baseRouter = router;
+        overrides.clear();
+    }
+
+    public int getOverridesNum() {
+        return overrides.size();
+    }
+
+    public void exportOverrides(final LongIntProcedure consumer) {
+        overrides.forEachKeyValue(consumer);
+    }
+
+    public void restoreRouting(final ShardRoutingTable source) {
+        baseRouter = source.baseRouter;
+        overrides.clear();
+        source.overrides.forEachKeyValue(overrides::put);
+    }
+
+    /**
+     * Restore number of active shards, overrides are cleared.
+     */
+    public void restoreShardsNum(final int shardsNum) {
+        if (shardsNum != getShardsNum()) {
+            baseRouter = routerFactory.create(shardsNum);
+        }
+        overrides.clear();
+    }
+
+    public void putOverride(final long account, final int shard) {
+        overrides.put(account, shard);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardRoutingTable{base=" + baseRouter + ", maxShards=" + maxShards + ", overrides=" + overrides.size() + '}';
+    }
+}
@@ -0,0 +1,278 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads snapshot files written by {@link ShardSnapshotWriter}.
+ */
+public final class ShardSnapshotLoader {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardSnapshotLoader.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    public record SnapshotHeader(Path file,
+                                 long snapshotId,
+                                 int epoch,
+                                 long globalOffset,
+                                 int shardIndex,
+                                 int shardsNum,
+                                 int type,
+                                 int prevEpoch,
+                                 long prevOffset,
+                                 int version) {
+
+        public boolean isDelta() {
+            return type == ShardSnapshotWriter.TYPE_DELTA;
+        }
+    }
+
+    /**
+     * Find latest snapshot (by epoch and offset) that has files for all shards,
+     * including all files of delta chains back to full base images.
+     *
+     * @return chains ordered by shard index (each chain starts from full base and ends with latest delta),
+     * or empty list if there is no complete snapshot
+     */
+    public static List<List<SnapshotHeader>> findLatestSnapshot(final Path snapshotsPath, final int shardsNum) {
+
+        if (!Files.isDirectory(snapshotsPath)) {
+            return List.of();
+        }
+
+        final List<SnapshotHeader> headers;
+        try (final Stream<Path> files = Files.list(snapshotsPath)) {
+            headers = files
+                    .filter(p -> p.getFileName().toString().startsWith("snapshot-") && p.getFileName().toString().endsWith(".dat"))
+                    .map(ShardSnapshotLoader::readHeader)
+                    .filter(h -> h != null && h.shardsNum == shardsNum)
+                    .collect(Collectors.toList());
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Can not list snapshots directory " + snapshotsPath, ex);
+        }
+
+        // snapshot id is chosen by client, so consistent set is identified by epoch and offset
+        final Map<String, List<SnapshotHeader>> byOffset = headers.stream()
+                .collect(Collectors.groupingBy(h -> h.epoch + "/" + h.globalOffset));
+
+        final Map<String, SnapshotHeader> byShardAndOffset = headers.stream()
+                .collect(Collectors.toMap(h -> key(h.shardIndex, h.epoch, h.globalOffset), h -> h, (h1, h2) -> h1));
+
+        final List<List<SnapshotHeader>> candidates = byOffset.values().stream()
+                .filter(shards -> shards.size() == shardsNum)
+                .sorted(Comparator.<List<SnapshotHeader>>comparingInt(shards -> shards.get(0).epoch)
+                        .thenComparingLong(shards -> shards.get(0).globalOffset)
+                        .reversed())
+                .collect(Collectors.toList());
+
+        for (final List<SnapshotHeader> candidate : candidates) {
+
+            final List<List<SnapshotHeader>> chains = candidate.stream()
+                    .sorted(Comparator.comparingInt(SnapshotHeader::shardIndex))
+                    .map(h -> resolveChain(h, byShardAndOffset))
+                    .collect(Collectors.toList());
+
+            if (chains.stream().allMatch(chain -> !chain.isEmpty())) {
+                return chains;
+            }
+
+            log.warn("Snapshot at epoch={} offset={} has incomplete delta chain, trying previous one",
+                    candidate.get(0).epoch, candidate.get(0).globalOffset);
+        }
+
+        return List.of();
+    }
+
+    /**
+     * @return files from full base to the given snapshot, or empty list if any file is missing
+     */
+    private static List<SnapshotHeader> resolveChain(final SnapshotHeader last, final Map<String, SnapshotHeader> byShardAndOffset) {
+
+        final List<SnapshotHeader> chain = new ArrayList<>();
+        SnapshotHeader header = last;
+        chain.add(header);
+
+        while (header.isDelta()) {
+            header = byShardAndOffset.get(key(header.shardIndex, header.prevEpoch, header.prevOffset));
+            if (header == null) {
+                return List.of();
+            }
+            chain.add(header);
+        }
+
+        Collections.reverse(chain);
+        return chain;
+    }
+
+    private static String key(final int shardIndex, final int epoch, final long globalOffset) {
+        return shardIndex + "/" + epoch + "/" + globalOffset;
+    }
+
+    /**
+     * @return header or null if file is not a valid snapshot
+     */
+    public static SnapshotHeader readHeader(final Path file) {
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            final SnapshotReader reader = new SnapshotReader(channel, 64);
+            return reader.readHeader(file);
+
+        } catch (final IOException | IllegalStateException ex) {
+            log.warn("Skipping invalid snapshot file {}: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load shard state from snapshot file. Processors must be empty for full snapshot,
+     * delta snapshot is applied on top of previously loaded state.
+     *
+     * @param correlationWindow window to restore (replaced completely by every file), null if disabled
+     */
+    public static void load(final SnapshotHeader header,
+                            final AccountsProcessor accountsProcessor,
+                            final TransferFeesProcessor transferFeesProcessor,
+                            final CurrencyRateProcessor currencyRateProcessor,
+                            final ShardRoutingTable routingTable,
+                            final CorrelationWindow correlationWindow) {
+
+        final long t = System.currentTimeMillis();
+
+        try (final FileChannel channel = FileChannel.open(header.file, StandardOpenOption.READ)) {
+
+            final SnapshotReader reader = new SnapshotReader(channel, READ_BUFFER_SIZE);
+            reader.readHeader(header.file);
+            reader.ensure(4);
+            final int settingsSize = reader.buf.getInt();
+
+            reader.ensure(settingsSize);
+            transferFeesProcessor.setFeeK(reader.buf.getDouble());
+
+            final int feesNum = reader.buf.getInt();
+            for (int i = 0; i < feesNum; i++) {
+                transferFeesProcessor.putFeeConfig(reader.buf.getShort(), reader.buf.getLong(), reader.buf.getLong());
+            }
+
+            final int treasuresNum = reader.buf.getInt();
+            for (int i = 0; i < treasuresNum; i++) {
+                transferFeesProcessor.restoreTreasure(reader.buf.getShort(), reader.buf.getLong());
+            }
+
+            final int ratesNum = reader.buf.getInt();
+            for (int i = 0; i < ratesNum; i++) {
+                currencyRateProcessor.updateRate(reader.buf.getShort(), reader.buf.getShort(), reader.buf.getDouble());
+            }
+
+            // every file has complete routing state
+            routingTable.restoreShardsNum(reader.buf.getInt());
+            final int overridesNum = reader.buf.getInt();
+            for (int i = 0; i < overridesNum; i++) {
+                routingTable.putOverride(reader.buf.getLong(), reader.buf.getInt());
+            }
+
+            reader.ensure(4);
+            final int recordsNum = reader.buf.getInt();
+            final boolean v1 = header.version == 1;
+            for (int i = 0; i < recordsNum; i++) {
+                reader.ensure(v1 ? 24 : 32);
+                accountsProcessor.restoreAccount(
+                        reader.buf.getLong(),
+                        reader.buf.getLong(),
+                        reader.buf.getLong(),
+                        v1 ? 0L : reader.buf.getLong());
+            }
+
+            if (correlationWindow != null) {
+                correlationWindow.clear();
+            }
+
+            if (!v1) {
+                reader.ensure(4);
+                final int windowEntries = reader.buf.getInt();
+                for (int i = 0; i < windowEntries; i++) {
+                    reader.ensure(32);
+                    final long correlationId = reader.buf.getLong();
+                    final long account = reader.buf.getLong();
+                    final long seq = reader.buf.getLong();
+                    final long result = reader.buf.getLong();
+                    if (correlationWindow != null) {
+                        correlationWindow.restore(correlationId, account, seq, result);
+                    }
+                }
+            }
+
+            log.info("Loaded snapshot {} ({}) for shard {} in {}ms: epoch={} offset={} accounts={}",
+                    header.snapshotId, header.isDelta() ? "delta" : "full", header.shardIndex,
+                    System.currentTimeMillis() - t, header.epoch, header.globalOffset, recordsNum);
+
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Can not load snapshot " + header.file, ex);
+        }
+    }
+
+    private static final class SnapshotReader {
+
+        private final FileChannel channel;
+        private final ByteBuffer buf;
+
+        private SnapshotReader(final FileChannel channel, final int bufferSize) {
+            this.channel = channel;
+            this.buf = ByteBuffer.allocateDirect(bufferSize);
+            this.buf.flip();
+        }
+
+        private SnapshotHeader readHeader(final Path file) throws IOException {
+            ensure(52);
+            final long magic = buf.getLong();
+            final int version;
+            if (magic == ShardSnapshotWriter.MAGIC) {
+                version = 2;
+            } else if (magic == ShardSnapshotWriter.MAGIC_V1) {
+                version = 1;
+            } else {
+                throw new IllegalStateException("Unexpected snapshot file format");
+            }
+            final long snapshotId = buf.getLong();
+            final int epoch = buf.getInt();
+            final long globalOffset = buf.getLong();
+            final int shardIndex = buf.getInt();
+            final int shardsNum = buf.getInt();
+            final int type = buf.getInt();
+            final int prevEpoch = buf.getInt();
+            final long prevOffset = buf.getLong();
+            return new SnapshotHeader(file, snapshotId, epoch, globalOffset, shardIndex, shardsNum, type, prevEpoch, prevOffset, version);
+        }
+
+        private void ensure(final int bytes) throws IOException {
+            if (buf.remaining() >= bytes) {
+                return;
+            }
+            if (bytes > buf.capacity()) {
+                throw new IllegalStateException("Block of " + bytes + " bytes does not fit read buffer");
+            }
+            buf.compact();
+            while (buf.position() < bytes) {
+                if (channel.read(buf) < 0) {
+                    throw new IllegalStateException("Unexpected end of snapshot file");
+                }
+            }
+            buf.flip();
+        }
+    }
+}
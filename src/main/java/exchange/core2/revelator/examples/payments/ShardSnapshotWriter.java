@@ -0,0 +1,360 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+
+/**
+ * Takes snapshots of a single pipelined shard.
+ * <p>
+ * Shard thread only copies its state into memory when snapshot message is reached:
+ * raw store slots (single array copy) plus small serialized fees, treasures and rates.
+ * File is written by background executor, so shard continues processing right after the copy.
+ * Successful snapshot response only means state was captured, result of writing is reported by {@link #getWriteStatus(long)}.
+ * <p>
+ * Every N-th snapshot is a full base image, others are deltas containing only slot pages modified since
+ * previous snapshot of the shard, so snapshot size is proportional to activity rather than to total accounts.
+ * Delta refers to the previous snapshot (epoch and offset), forming a chain back to the full base.
+ * <p>
+ * File format (big endian): header (magic, snapshotId, epoch, globalOffset, shardIndex, shardsNum, type, prevEpoch, prevOffset),
+ * settings block (feeK, fee configs, treasures, currency rates, active shards, routing overrides),
+ * accounts records (account, encoded balance, secret, nonce), correlation window entries (correlationId, account, sequence, result).
+ * Correlation window is small and always written completely. Version 1 files have no nonces and no correlation window.
+ */
+public final class ShardSnapshotWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardSnapshotWriter.class);
+
+    static final long MAGIC_V1 = 0x5245_5653_4E41_5031L; // "REVSNAP1"
+    static final long MAGIC = 0x5245_5653_4E41_5032L; // "REVSNAP2"
+
+    static final int TYPE_FULL = 0;
+    static final int TYPE_DELTA = 1;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    // exported slot layout
+    private static final int SLOT_ACCOUNT = 0;
+    private static final int SLOT_BALANCE = 1;
+    private static final int SLOT_SECRET = 2;
+    private static final int SLOT_FLAGS = 3;
+
+    private final Path snapshotsPath;
+    private final int epoch;
+    private final int shardIndex;
+    private final int shardsNum;
+
+    private final AccountsProcessor accountsProcessor;
+    private final TransferFeesProcessor transferFeesProcessor;
+    private final CurrencyRateProcessor currencyRateProcessor;
+    private final ShardRoutingTable routingTable;
+
+    // null - correlation window disabled
+    private final CorrelationWindow correlationWindow;
+
+    private final Executor writerExecutor;
+
+    private final int fullSnapshotInterval;
+    private int deltasSinceFull = 0;
+
+    // previous snapshot of this shard (delta base), -1 if not taken yet
+    private int prevEpoch = -1;
+    private long prevOffset = -1L;
+
+    // set by writer thread if file was not written - next snapshot must be full
+    private volatile boolean chainBroken = false;
+
+    // reused between snapshots, owned by writer thread while write is in progress
+    private long[] slotsCopy = new long[0];
+    private long[] windowCopy = new long[0];
+
+    private volatile boolean writeInProgress = false;
+
+    // result of the last finished write, null if nothing was written yet
+    private volatile WriteResult lastWrite = null;
+
+    public ShardSnapshotWriter(final Path snapshotsPath,
+                               final int epoch,
+                               final int shardIndex,
+                               final int shardsNum,
+                               final AccountsProcessor accountsProcessor,
+                               final TransferFeesProcessor transferFeesProcessor,
+                               final CurrencyRateProcessor currencyRateProcessor,
+                               final ShardRoutingTable routingTable,
+                               final CorrelationWindow correlationWindow,
+                               final Executor writerExecutor,
+                               final int fullSnapshotInterval) {
+
+        this.snapshotsPath = snapshotsPath;
+        this.epoch = epoch;
+        this.shardIndex = shardIndex;
+        this.shardsNum = shardsNum;
+        this.accountsProcessor = accountsProcessor;
+        this.transferFeesProcessor = transferFeesProcessor;
+        this.currencyRateProcessor = currencyRateProcessor;
+        this.routingTable = routingTable;
+        this.correlationWindow = correlationWindow;
+        this.writerExecutor = writerExecutor;
+        this.fullSnapshotInterval = fullSnapshotInterval;
+    }
+
+    /**
+     * Copy shard state and schedule writing it into file.
+     * Must be called from shard thread when there are no transfers in progress.
+     *
+     * @return false if previous snapshot is still being written
+     */
+    public boolean takeSnapshot(final long snapshotId, final long globalOffset) {
+
+        if (writeInProgress) {
+            log.warn("Can not take snapshot {} for shard {}: previous snapshot is still being written", snapshotId, shardIndex);
+            return false;
+        }
+
+        final IAccountsStore store = accountsProcessor.getStore();
+        final int capacityWords = store.slotsDataSize();
+        if (slotsCopy.length < capacityWords) {
+            slotsCopy = new long[capacityWords];
+        }
+
+        final boolean full = prevEpoch == -1 || chainBroken || deltasSinceFull + 1 >= fullSnapshotInterval;
+
+        final int slotsWords;
+        if (full) {
+            // copied data can be smaller than capacity (migrated part of old table is skipped)
+            slotsWords = store.copySlots(slotsCopy);
+            deltasSinceFull = 0;
+            chainBroken = false;
+        } else {
+            slotsWords = store.copyDirtySlots(slotsCopy);
+            deltasSinceFull++;
+        }
+
+        final byte[] settings = serializeSettings();
+
+        final int windowEntries;
+        if (correlationWindow != null) {
+            if (windowCopy.length < correlationWindow.dataSize()) {
+                windowCopy = new long[correlationWindow.dataSize()];
+            }
+            windowEntries = correlationWindow.copyEntries(windowCopy);
+        } else {
+            windowEntries = 0;
+        }
+
+        final int type = full ? TYPE_FULL : TYPE_DELTA;
+        final int baseEpoch = prevEpoch;
+        final long baseOffset = prevOffset;
+        prevEpoch = epoch;
+        prevOffset = globalOffset;
+
+        writeInProgress = true;
+        writerExecutor.execute(() -> writeSnapshot(snapshotId, globalOffset, type, baseEpoch, baseOffset, slotsWords, settings, windowEntries));
+
+        return true;
+    }
+
+    private byte[] serializeSettings() {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeDouble(transferFeesProcessor.getFeeK());
+
+            out.writeInt(transferFeesProcessor.getFeeConfigsNum());
+            transferFeesProcessor.exportFeeConfigs((currency, minFee, maxFee) -> {
+                try {
+                    out.writeShort(currency);
+                    out.writeLong(minFee);
+                    out.writeLong(maxFee);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            out.writeInt(transferFeesProcessor.getTreasuresNum());
+            transferFeesProcessor.exportTreasures((currency, amount) -> {
+                try {
+                    out.writeShort(currency);
+                    out.writeLong(amount);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            out.writeInt(currencyRateProcessor.getRatesNum());
+            currencyRateProcessor.exportAllRates((currencyFrom, currencyTo, rate) -> {
+                try {
+                    out.writeShort(currencyFrom);
+                    out.writeShort(currencyTo);
+                    out.writeDouble(rate);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            // same for all shards, but kept in every file (small, only migrated accounts)
+            out.writeInt(routingTable.getShardsNum());
+            out.writeInt(routingTable.getOverridesNum());
+            routingTable.exportOverrides((account, shard) -> {
+                try {
+                    out.writeLong(account);
+                    out.writeInt(shard);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void writeSnapshot(final long snapshotId,
+                               final long globalOffset,
+                               final int type,
+                               final int baseEpoch,
+                               final long baseOffset,
+                               final int slotsWords,
+                               final byte[] settings,
+                               final int windowEntries) {
+
+        final long t = System.currentTimeMillis();
+
+        final Path file = snapshotFile(snapshotsPath, snapshotId, shardIndex);
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (final FileChannel channel = FileChannel.open(
+                tmpFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            final ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+            int recordsNum = 0;
+            for (int i = 0; i < slotsWords; i += IAccountsStore.SLOT_WORDS) {
+                if (slotsCopy[i + SLOT_FLAGS] != 0L) {
+                    recordsNum++;
+                }
+            }
+
+            buf.putLong(MAGIC);
+            buf.putLong(snapshotId);
+            buf.putInt(epoch);
+            buf.putLong(globalOffset);
+            buf.putInt(shardIndex);
+            buf.putInt(shardsNum);
+            buf.putInt(type);
+            buf.putInt(baseEpoch);
+            buf.putLong(baseOffset);
+            buf.putInt(settings.length);
+            writeBytes(channel, buf, settings);
+            if (buf.remaining() < 4) {
+                flush(channel, buf);
+            }
+            buf.putInt(recordsNum);
+
+            // closed accounts are kept as well, so dense slots numbering is restored exactly
+            for (int i = 0; i < slotsWords; i += IAccountsStore.SLOT_WORDS) {
+                if (slotsCopy[i + SLOT_FLAGS] != 0L) {
+                    if (buf.remaining() < 32) {
+                        flush(channel, buf);
+                    }
+                    buf.putLong(slotsCopy[i + SLOT_ACCOUNT]);
+                    buf.putLong(slotsCopy[i + SLOT_BALANCE]);
+                    buf.putLong(slotsCopy[i + SLOT_SECRET]);
+                    buf.putLong(IAccountsStore.extractNonce(slotsCopy[i + SLOT_FLAGS]));
+                }
+            }
+
+            if (buf.remaining() < 4) {
+                flush(channel, buf);
+            }
+            buf.putInt(windowEntries);
+            for (int i = 0; i < windowEntries * 4; i++) {
+                if (buf.remaining() < 8) {
+                    flush(channel, buf);
+                }
+                buf.putLong(windowCopy[i]);
+            }
+
+            flush(channel, buf);
+            channel.force(true);
+
+            Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            log.info("Snapshot {} ({}) for shard {} written in {}ms: offset={} accounts={}",
+                    snapshotId, type == TYPE_FULL ? "full" : "delta", shardIndex, System.currentTimeMillis() - t, globalOffset, recordsNum);
+
+            lastWrite = new WriteResult(snapshotId, WriteStatus.WRITTEN);
+
+        } catch (final IOException | RuntimeException ex) {
+            log.error("Failed to write snapshot {} for shard {}", snapshotId, shardIndex, ex);
+            chainBroken = true;
+            lastWrite = new WriteResult(snapshotId, WriteStatus.FAILED);
+        } finally {
+            writeInProgress = false;
+        }
+    }
+
+    /**
+     * Only the last written snapshot is tracked: PENDING is also returned for older snapshots and for unknown ids.
+     */
+    public WriteStatus getWriteStatus(final long snapshotId) {
+        final WriteResult result = lastWrite;
+        return (result != null && result.snapshotId() == snapshotId) ? result.status() : WriteStatus.PENDING;
+    }
+
+    public enum WriteStatus {
+        PENDING,
+        WRITTEN,
+        FAILED
+    }
+
+    private record WriteResult(long snapshotId, WriteStatus status) {
+    }
+
+    private static void writeBytes(final FileChannel channel, final ByteBuffer buf, final byte[] bytes) throws IOException {
+        int pos = 0;
+        while (pos < bytes.length) {
+            if (!buf.hasRemaining()) {
+                flush(channel, buf);
+            }
+            final int len = Math.min(buf.remaining(), bytes.length - pos);
+            buf.put(bytes, pos, len);
+            pos += len;
+        }
+    }
+
+    private static void flush(final FileChannel channel, final ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    public static Path snapshotFile(final Path snapshotsPath, final long snapshotId, final int shardIndex) {
+        return snapshotsPath.resolve("snapshot-" + snapshotId + "-" + shardIndex + ".dat");
+    }
+
+    @Override
+    public String toString() {
+        return "ShardSnapshotWriter{shardIndex=" + shardIndex + ", path=" + snapshotsPath + '}';
+    }
+}
@@ -1,101 +1,118 @@
 package exchange.core2.revelator.examples.payments;
 
-import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
-import java.security.DigestException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+/**
+ * SHA-256 transfer authentication: digest of source, destination, amount, (currency << 8 | type), secret (40 bytes).
+ * <p>
+ * Signed message always fits single block, so words are put into message schedule directly from ring buffer.
+ * Not thread safe !
+ */
+public class SignatureHandler implements ITransferAuthScheme {
 
-public class SignatureHandler {
+    // signed message: source, destination, amount, (currency << 8 | type), secret
+    private final static int SIGNED_MSG_BITS = 40 * 8;
 
-    private final MessageDigest digest;
+    private final BatchSignatureHandler batchHandler = new BatchSignatureHandler();
 
-    private final static int MAX_MSG_SIZE = 256;
+    private final int[] w = new int[64];
+    private final int[] state = new int[8];
 
-    final byte[] message = new byte[MAX_MSG_SIZE];
-    final byte[] hash = new byte[32];
-
-    final long[] localHashLong = new long[4];
-
-    final ByteBuffer inputByteBuffer = ByteBuffer.wrap(message);
-    final LongBuffer inputLongBuffer = inputByteBuffer.asLongBuffer();
+    @Override
+    public int signatureWords() {
+        return 4;
+    }
 
-    final ByteBuffer hashByteBuffer = ByteBuffer.wrap(hash);
-    final LongBuffer hashLongBuffer = hashByteBuffer.asLongBuffer();
+    @Override
+    public void signTransfer(final long sourceAccount,
+                             final long destinationAccount,
+                             final long amount,
+                             final long currencyAndType,
+                             final long secret,
+                             final long[] target,
+                             final int offset) {
 
+        digest(sourceAccount, destinationAccount, amount, currencyAndType, secret);
 
-    public SignatureHandler() {
-        try {
-            this.digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
+        for (int i = 0; i < 4; i++) {
+            target[offset + i] = Sha256Block.getLong(state, i);
         }
     }
 
-    /**
-     * Not thread safe !
-     */
-    public long[] signTransfer(final long sourceAccount,
-                               final long destinationAccount,
-                               final long amount,
-                               final short currency,
-                               final TransferType transferType,
-                               final long secret) {
-
-        final long[] result = new long[4];
-        signTransfer(sourceAccount, destinationAccount, amount, currency, transferType, secret, result);
-        return result;
-    }
+    @Override
+    public boolean verifyTransfer(final long[] buffer, final int addr, final long secret) {
 
-    /**
-     * Not thread safe !
-     */
-    public boolean checkSignatureTransfer(final long sourceAccount,
-                                          final long destinationAccount,
-                                          final long amount,
-                                          final short currency,
-                                          final TransferType transferType,
-                                          final long secret,
-                                          final long[] buffer,
-                                          final int offset) {
-
-        signTransfer(sourceAccount, destinationAccount, amount, currency, transferType, secret, localHashLong);
-        return Arrays.equals(localHashLong, 0, 4, buffer, offset, offset + 4);
+        digest(buffer[addr], buffer[addr + 1], buffer[addr + 2], buffer[addr + 3], secret);
+
+        final int sig = addr + TRANSFER_FIELDS;
+        return Sha256Block.getLong(state, 0) == buffer[sig]
+                && Sha256Block.getLong(state, 1) == buffer[sig + 1]
+                && Sha256Block.getLong(state, 2) == buffer[sig + 2]
+                && Sha256Block.getLong(state, 3) == buffer[sig + 3];
     }
 
+    @Override
+    public void signTransfers(final long[] fields, final long[] secrets, final int count, final long[] signatures) {
 
-    /**
-     * Not thread safe !
-     */
-    private void signTransfer(final long sourceAccount,
-                              final long destinationAccount,
-                              final long amount,
-                              final short currency,
-                              final TransferType transferType,
-                              final long secret,
-                              final long[] sha256buffer) {
+        for (int from = 0; from < count; from += BatchSignatureHandler.LANES) {
 
-        try {
-            final int msgSize = 5;
+            final int lanes = Math.min(BatchSignatureHandler.LANES, count - from);
 
-            inputLongBuffer.put(sourceAccount);
-            inputLongBuffer.put(destinationAccount);
-            inputLongBuffer.put(amount);
-            inputLongBuffer.put(((long) currency << 8) | transferType.getCode());
-            inputLongBuffer.put(secret);
-            inputLongBuffer.flip();
+            for (int l = 0; l < lanes; l++) {
+                final int f = (from + l) * TRANSFER_FIELDS;
+                batchHandler.setMessage(l, fields[f], fields[f + 1], fields[f + 2], fields[f + 3], secrets[from + l]);
+            }
 
-            digest.update(message, 0, msgSize);
-            digest.digest(hash, 0, 32);
+            batchHandler.digest();
 
+            for (int l = 0; l < lanes; l++) {
+                batchHandler.getHash(l, signatures, (from + l) * 4);
+            }
+        }
+    }
 
-            hashLongBuffer.get(sha256buffer);
-            hashLongBuffer.flip();
+    @Override
+    public void verifyTransfers(final long[] buffer, final int[] addrs, final long[] secrets, final int count, final boolean[] valid) {
 
-        } catch (DigestException ex) {
-            throw new RuntimeException(ex);
+        for (int from = 0; from < count; from += BatchSignatureHandler.LANES) {
+
+            final int lanes = Math.min(BatchSignatureHandler.LANES, count - from);
+
+            for (int l = 0; l < lanes; l++) {
+                final int addr = addrs[from + l];
+                batchHandler.setMessage(l, buffer[addr], buffer[addr + 1], buffer[addr + 2], buffer[addr + 3], secrets[from + l]);
+            }
+
+            batchHandler.digest();
+
+            for (int l = 0; l < lanes; l++) {
+                final int sig = addrs[from + l] + TRANSFER_FIELDS;
+                valid[from + l] = batchHandler.getHashWord(l, 0) == buffer[sig]
+                        && batchHandler.getHashWord(l, 1) == buffer[sig + 1]
+                        && batchHandler.getHashWord(l, 2) == buffer[sig + 2]
+                        && batchHandler.getHashWord(l, 3) == buffer[sig + 3];
+            }
         }
     }
 
+    private void digest(final long sourceAccount,
+                        final long destinationAccount,
+                        final long amount,
+                        final long currencyAndType,
+                        final long secret) {
+
+        Sha256Block.putLong(w, 0, sourceAccount);
+        Sha256Block.putLong(w, 2, destinationAccount);
+        Sha256Block.putLong(w, 4, amount);
+        Sha256Block.putLong(w, 6, currencyAndType);
+        Sha256Block.putLong(w, 8, secret);
+        w[10] = Sha256Block.PADDING_WORD;
+        w[11] = 0;
+        w[12] = 0;
+        w[13] = 0;
+        w[14] = 0;
+        w[15] = SIGNED_MSG_BITS;
+
+        Sha256Block.init(state);
+        Sha256Block.compress(state, w);
+    }
+
 }
@@ -0,0 +1,155 @@
+package exchange.core2.revelator.examples.payments;
+
+import exchange.core2.revelator.buffers.LocalResultsLongBuffer;
+import exchange.core2.revelator.fences.IFence;
+import exchange.core2.revelator.fences.SingleWriterFence;
+import exchange.core2.revelator.processors.pipelined.PipelinedFlowSession;
+import exchange.core2.revelator.processors.pipelined.PipelinedStageHandler;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+
+/**
+ * Signature verification stage (pipelined core, optional) running ahead of shard processors.
+ * <p>
+ * Every verifier reads all messages, but only verifies every N-th transfer (split by sequence, not by account),
+ * so SHA-256 cost is spread across separate cores and does not extend shard processing.
+ * Verifier keeps own replica of secrets, filled from open account messages (and from loaded snapshot).
+ * Replica can be stale (account was closed and reopened, duplicate open was rejected),
+ * so verdict contains the secret it was computed for, and shard falls back to own check if secret is different.
+ * <p>
+ * Verdict takes 2 words at transfer message position: secret (0 - unknown account), result (1 - valid, -1 - invalid).
+ * <p>
+ * Transfers are collected up to {@link #MAX_BATCH} and verified together (multi-lane SHA-256, see {@link SignatureHandler}),
+ * batch is also verified at the end of processor batch. Processor fence can pass collected transfers,
+ * so shards wait for {@link #getVerifiedFence()}, published after verdicts are written.
+ */
+public final class SignatureVerifier implements PipelinedStageHandler<PipelinedFlowSession> {
+
+    public static final int MAX_BATCH = BatchSignatureHandler.LANES;
+
+    static final int DEFAULT_WORK_WEIGHT = 10;
+
+    public static final byte VERDICT_VALID = 1;
+    public static final byte VERDICT_INVALID = -1;
+    public static final byte VERDICT_UNKNOWN = 0;
+
+    private final ITransferAuthScheme authScheme;
+
+    // account -> secret
+    private final LongLongHashMap secrets = new LongLongHashMap();
+
+    private final long[] buffer;
+    private final LocalResultsLongBuffer verdicts;
+    private final int verifierIndex;
+    private final int verifiersNum;
+
+    private final SingleWriterFence verifiedFence = new SingleWriterFence();
+
+    // collected transfers
+    private final int[] batchAddrs = new int[MAX_BATCH];
+    private final long[] batchSecrets = new long[MAX_BATCH];
+    private final boolean[] batchValid = new boolean[MAX_BATCH];
+    private int batchSize = 0;
+
+    private long transfersCounter = 0L;
+
+    public SignatureVerifier(final ITransferAuthScheme authScheme,
+                             final long[] buffer,
+                             final LocalResultsLongBuffer verdicts,
+                             final int verifierIndex,
+                             final int verifiersNum) {
+
+        this.authScheme = authScheme;
+        this.buffer = buffer;
+        this.verdicts = verdicts;
+        this.verifierIndex = verifierIndex;
+        this.verifiersNum = verifiersNum;
+    }
+
+    /**
+     * Published after verdicts of all preceding transfers are written.
+     */
+    public IFence getVerifiedFence() {
+        return verifiedFence;
+    }
+
+    /**
+     * Read verdict of a transfer. Must be called after verifiers fence has passed the message.
+     *
+     * @return VERDICT_VALID/VERDICT_INVALID, or VERDICT_UNKNOWN if verifier did not know the secret
+     */
+    public static byte getVerdict(final LocalResultsLongBuffer verdicts, final int index, final long secret) {
+        return verdicts.get(index) == secret ? (byte) verdicts.get(index + 1) : VERDICT_UNKNOWN;
+    }
+
+    /**
+     * Fill replica from restored accounts. Must be called before processors are started.
+     */
+    public void loadSecrets(final AccountsProcessor accountsProcessor) {
+        accountsProcessor.forEachAccount((account, encodedBalance, secret, nonce) -> secrets.put(account, secret));
+    }
+
+    @Override
+    public boolean process(final PipelinedFlowSession session) {
+
+        final int addr = session.bufferIndex;
+
+        if (session.messageType == PaymentsApi.CMD_OPEN_ACCOUNT) {
+
+            final long account = buffer[addr];
+            final long secret = buffer[addr + 1];
+            if (secret != 0L && !AccountsProcessor.isAccountHandle(account)) {
+                secrets.put(account, secret);
+            }
+
+        } else if (session.messageType == PaymentsApi.CMD_TRANSFER && transfersCounter++ % verifiersNum == verifierIndex) {
+
+            final long accountSrc = buffer[addr];
+            final long secret = secrets.get(accountSrc);
+
+            if (secret == 0L) {
+                // handles are not known by replica - shard checks signature itself
+                verdicts.set(addr, 0L);
+            } else if (session.payloadSize != ITransferAuthScheme.TRANSFER_FIELDS + authScheme.signatureWords()) {
+                verdicts.set(addr, secret);
+                verdicts.set(addr + 1, VERDICT_INVALID);
+            } else {
+                batchAddrs[batchSize] = addr;
+                batchSecrets[batchSize] = secret;
+                batchSize++;
+            }
+        }
+
+        if (batchSize == MAX_BATCH || session.wordsLeftInBatch <= 0) {
+            verifyBatch();
+            verifiedFence.setRelease(session.globalOffset);
+        }
+
+        return true;
+    }
+
+    private void verifyBatch() {
+
+        if (batchSize == 0) {
+            return;
+        }
+
+        authScheme.verifyTransfers(buffer, batchAddrs, batchSecrets, batchSize, batchValid);
+
+        for (int i = 0; i < batchSize; i++) {
+            verdicts.set(batchAddrs[i], batchSecrets[i]);
+            verdicts.set(batchAddrs[i] + 1, batchValid[i] ? VERDICT_VALID : VERDICT_INVALID);
+        }
+
+        batchSize = 0;
+    }
+
+    @Override
+    public int getHitWorkWeight() {
+        return DEFAULT_WORK_WEIGHT;
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureVerifier(" + verifierIndex + '/' + verifiersNum + ')';
+    }
+}
@@ -1,21 +1,44 @@
 package exchange.core2.revelator.examples.payments;
 
+import exchange.core2.revelator.Revelator;
 import exchange.core2.revelator.buffers.LocalResultsByteBuffer;
 import exchange.core2.revelator.processors.simple.SimpleMessageHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Single-thread handler with the same semantics as pipelined Stage1 for local transfers:
+ * fees, currency conversion, signature checks, closing accounts, handles.
+ * All accounts are in one shard, so there is nothing to settle and no reservations.
+ * <p>
+ * Result codes are the same as in pipelined core (transfer: 0 - success, -1 - failure),
+ * open account success is reported as 1 (slot does not fit byte results buffer).
+ */
 public final class SimplePaymentsHandler implements SimpleMessageHandler {
 
     private static final Logger log = LoggerFactory.getLogger(SimplePaymentsHandler.class);
 
+    // store maintenance once per this number of messages
+    private static final int HOUSEKEEPING_MASK = 63;
+
 
     private final AccountsProcessor accountsProcessor;
+    private final TransferFeesProcessor transferFeesProcessor;
+    private final ITransferAuthScheme authScheme;
     private final LocalResultsByteBuffer resultsBuffer;
 
+    // reused for every transfer
+    private final TransferSession session = new TransferSession();
+
+    private int housekeepingCounter = 0;
+
     public SimplePaymentsHandler(AccountsProcessor accountsProcessor,
+                                 TransferFeesProcessor transferFeesProcessor,
+                                 ITransferAuthScheme authScheme,
                                  LocalResultsByteBuffer resultsBuffer) {
         this.accountsProcessor = accountsProcessor;
+        this.transferFeesProcessor = transferFeesProcessor;
+        this.authScheme = authScheme;
         this.resultsBuffer = resultsBuffer;
     }
 
@@ -30,55 +53,168 @@ public final class SimplePaymentsHandler implements SimpleMessageHandler {
 
         //log.debug("Handle message correlationId={}", correlationId);
 
+        if ((++housekeepingCounter & HOUSEKEEPING_MASK) == 0) {
+            // no slots are held between messages
+            accountsProcessor.housekeeping();
+        }
+
         switch (msgType) {
 
-            case PaymentsApi.CMD_OPEN_ACCOUNT -> {
+            case PaymentsApi.CMD_TRANSFER -> resultsBuffer.set(addr, processTransfer(buffer, addr, msgSize));
+
+            case PaymentsApi.CMD_OPEN_ACCOUNT -> resultsBuffer.set(addr, processOpenAccount(buffer, addr));
 
-                final long account = buffer[addr];
-                final long secret = buffer[addr + 1];
+            case PaymentsApi.CMD_CLOSE_ACCOUNT -> resultsBuffer.set(addr, processCloseAccount(buffer, addr));
 
-                if (!accountsProcessor.accountExists(account)) {
-//            log.debug("Opening account {}", account);
-                    accountsProcessor.openNewAccount(account, secret);
-                    resultsBuffer.set(addr, (byte) 1);
-                } else {
+            case PaymentsApi.CMD_ADJUST_BALANCE -> resultsBuffer.set(addr, processAdjustment(buffer, addr));
 
-                    log.warn("Account {} already exists!", account);
-                    resultsBuffer.set(addr, (byte) -1);
+            case PaymentsApi.CMD_CTRL_FEES -> {
+                transferFeesProcessor.setFeeK(Double.longBitsToDouble(buffer[addr]));
+                for (int i = 1; i < msgSize; i += 3) {
+                    transferFeesProcessor.putFeeConfig((short) buffer[addr + i], buffer[addr + i + 1], buffer[addr + i + 2]);
                 }
             }
 
-            case PaymentsApi.CMD_TRANSFER -> {
-                final long accountFrom = buffer[addr];
-                final long accountTo = buffer[addr + 1];
-                final long amount = buffer[addr + 2];
-
-                final boolean success = accountsProcessor.transferLocally(accountFrom, accountTo, amount, amount);
-                resultsBuffer.set(addr, success ? (byte) 1 : -1);
+            case PaymentsApi.CMD_CTRL_CUR_RATE -> {
+                final long currencies = buffer[addr];
+                transferFeesProcessor.updateCurrencyRate(
+                        (short) (currencies >> 32),
+                        (short) (currencies & Integer.MAX_VALUE),
+                        Double.longBitsToDouble(buffer[addr + 1]));
             }
 
-            case PaymentsApi.CMD_ADJUST_BALANCE -> {
-                final long account = buffer[addr];
-                final long amount = buffer[addr + 1];
+            case Revelator.MSG_TYPE_TEST_CONTROL, Revelator.MSG_TYPE_POISON_PILL -> resultsBuffer.set(addr, (byte) 42);
 
-                if (!accountsProcessor.accountExists(account)) {
+            default -> throw new IllegalStateException("Unsupported message type " + msgType + " at offset " + globalOffset);
+        }
+    }
 
-                    log.warn("Account {} does not exists or closed!", account);
+    private byte processOpenAccount(final long[] buffer, final int addr) {
 
-                    // account does not exist or closed
-                    resultsBuffer.set(addr, (byte) -2);
+        final long account = buffer[addr];
+        final long secret = buffer[addr + 1];
 
-                } else {
-                    boolean success = (amount > 0)
-                            ? accountsProcessor.deposit(account, amount)
-                            : accountsProcessor.withdrawal(account, -amount);
+        if (AccountsProcessor.isAccountHandle(account)) {
+            log.warn("Can not open account by handle {} !", account);
+            return -3;
+        }
 
-                    resultsBuffer.set(addr, success ? (byte) 1 : -1);
-                }
-            }
+        if (!accountsProcessor.accountNotExists(account)) {
+            log.warn("Account {} already exists!", account);
+            return -1;
         }
 
+        if (secret == 0L) {
+            log.warn("Can not use 0 as secret for account {} !", account);
+            return -2;
+        }
 
+        accountsProcessor.openNewAccount(account, secret);
+        return 1;
     }
 
+    private byte processCloseAccount(final long[] buffer, final int addr) {
+
+        final int slot = accountsProcessor.findAccount(buffer[addr]);
+
+        if (slot == IAccountsStore.NOT_FOUND) {
+            // account already closed
+            return 2;
+        }
+
+        if (!accountsProcessor.accountHasZeroBalanceAt(slot)) {
+            return -1;
+        }
+
+        accountsProcessor.closeAccountAt(slot);
+        return 1;
+    }
+
+    private byte processAdjustment(final long[] buffer, final int addr) {
+
+        final long account = buffer[addr];
+        final long amount = buffer[addr + 1];
+
+        final int slot = accountsProcessor.findAccount(account);
+
+        if (slot == IAccountsStore.NOT_FOUND) {
+            log.warn("Account {} does not exists or closed!", account);
+            return -2;
+        }
+
+        if (amount > 0) {
+            accountsProcessor.depositAt(slot, amount);
+            return 1;
+        }
+
+        return accountsProcessor.withdrawalAt(slot, -amount) ? (byte) 1 : -1;
+    }
+
+    private byte processTransfer(final long[] buffer, final int addr, final int msgSize) {
+
+        final long accountSrc = buffer[addr];
+        final long accountDst = buffer[addr + 1];
+        final long orderAmount = buffer[addr + 2];
+
+        final long ttAndCurr = buffer[addr + 3];
+        final TransferType transferType = TransferType.fromByte((byte) ttAndCurr);
+        final short orderCurrency = (short) (ttAndCurr >> 8);
+
+        session.amountSrc = 0L;
+        session.amountDst = 0L;
+        session.treasureAmountSrc = 0L;
+        session.treasureAmountDst = 0L;
+
+        // single probe per account - slots are reused by withdrawal and deposit
+        session.slotSrc = accountsProcessor.findAccount(accountSrc);
+        session.slotDst = accountsProcessor.findAccount(accountDst);
+
+        if (session.slotSrc == IAccountsStore.NOT_FOUND || session.slotDst == IAccountsStore.NOT_FOUND) {
+            log.warn("Can not process transfer {}->{}! (account not found)", accountSrc, accountDst);
+            return -1;
+        }
+
+        final long canonicalSrc = accountsProcessor.getAccountAt(session.slotSrc);
+        final long canonicalDst = accountsProcessor.getAccountAt(session.slotDst);
+
+        if (canonicalSrc == canonicalDst) {
+            // balance check and deposit would apply to the same record
+            log.warn("Can not transfer to the same account {}", canonicalSrc);
+            return -1;
+        }
+
+        // signature covers accounts as they were sent (ids or handles)
+        if (!authScheme.checkTransfer(buffer, addr, msgSize, accountsProcessor.getSecretAt(session.slotSrc))) {
+            return -1;
+        }
+
+        // replayed transfer can not reuse nonce (0 - not used)
+        final long nonce = ITransferAuthScheme.extractNonce(ttAndCurr);
+        if (nonce != 0L && nonce <= accountsProcessor.getNonceAt(session.slotSrc)) {
+            log.warn("Nonce {} of account {} was already used", nonce, canonicalSrc);
+            return -1;
+        }
+
+        if (!transferFeesProcessor.performWithdrawal(session, transferType, accountSrc, accountDst, orderAmount, orderCurrency)) {
+            log.warn("Can not process transfer {}->{}! {}", accountSrc, accountDst, transferType);
+            return -1;
+        }
+
+        if (nonce != 0L) {
+            accountsProcessor.setNonceAt(session.slotSrc, nonce);
+        }
+
+        accountsProcessor.depositAt(session.slotDst, session.amountDst);
+        transferFeesProcessor.applyTreasures(
+                AccountsProcessor.extractCurrency(canonicalSrc),
+                AccountsProcessor.extractCurrency(canonicalDst),
+                session);
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SimplePaymentsHandler";
+    }
 }
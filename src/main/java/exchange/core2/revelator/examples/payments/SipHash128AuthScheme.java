@@ -0,0 +1,108 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * SipHash-2-4 with 128-bit output as transfer MAC, 2 signature words instead of 4.
+ * <p>
+ * Key: k0 = secret, k1 = 0 (secrets are 64-bit). Message: source, destination, amount, (currency << 8 | type),
+ * every long is a little-endian message word, so no byte conversion is needed.
+ * Not thread safe !
+ */
+public final class SipHash128AuthScheme implements ITransferAuthScheme {
+
+    // 4 words, length in the last byte of final block
+    private static final long FINAL_BLOCK = 32L << 56;
+
+    private long v0;
+    private long v1;
+    private long v2;
+    private long v3;
+
+    private long hash0;
+    private long hash1;
+
+    @Override
+    public int signatureWords() {
+        return 2;
+    }
+
+    @Override
+    public void signTransfer(final long sourceAccount,
+                             final long destinationAccount,
+                             final long amount,
+                             final long currencyAndType,
+                             final long secret,
+                             final long[] target,
+                             final int offset) {
+
+        mac(sourceAccount, destinationAccount, amount, currencyAndType, secret);
+        target[offset] = hash0;
+        target[offset + 1] = hash1;
+    }
+
+    @Override
+    public boolean verifyTransfer(final long[] buffer, final int addr, final long secret) {
+
+        mac(buffer[addr], buffer[addr + 1], buffer[addr + 2], buffer[addr + 3], secret);
+        return hash0 == buffer[addr + TRANSFER_FIELDS] && hash1 == buffer[addr + TRANSFER_FIELDS + 1];
+    }
+
+    private void mac(final long m0, final long m1, final long m2, final long m3, final long secret) {
+        mac(m0, m1, m2, m3, secret, 0L);
+    }
+
+    /**
+     * SipHash-2-4-128 of 32 bytes with full 128-bit key (k0, k1 - little-endian halves), used by tests with reference vectors.
+     */
+    void mac(final long m0, final long m1, final long m2, final long m3, final long k0, final long k1, final long[] target) {
+        mac(m0, m1, m2, m3, k0, k1);
+        target[0] = hash0;
+        target[1] = hash1;
+    }
+
+    private void mac(final long m0, final long m1, final long m2, final long m3, final long k0, final long k1) {
+
+        v0 = k0 ^ 0x736f6d6570736575L;
+        v1 = k1 ^ 0x646f72616e646f6dL ^ 0xeeL;
+        v2 = k0 ^ 0x6c7967656e657261L;
+        v3 = k1 ^ 0x7465646279746573L;
+
+        compress(m0);
+        compress(m1);
+        compress(m2);
+        compress(m3);
+        compress(FINAL_BLOCK);
+
+        v2 ^= 0xeeL;
+        rounds(4);
+        hash0 = v0 ^ v1 ^ v2 ^ v3;
+
+        v1 ^= 0xddL;
+        rounds(4);
+        hash1 = v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private void compress(final long m) {
+        v3 ^= m;
+        rounds(2);
+        v0 ^= m;
+    }
+
+    private void rounds(final int n) {
+        for (int i = 0; i < n; i++) {
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+    }
+}
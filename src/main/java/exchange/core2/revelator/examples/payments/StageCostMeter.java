@@ -0,0 +1,99 @@
+package exchange.core2.revelator.examples.payments;
+
+/**
+ * Measured per-message cost of a pipeline stage, converted into work weight reported by stage handler.
+ * <p>
+ * Only 1 of 64 messages is timed (two nanoTime calls), average is exponentially weighted, so weight follows traffic mix
+ * (signature scheme, currency conversion, cross-shard ratio) within a few thousands of messages.
+ * Messages that were not processed (stage has to wait) are not sampled.
+ * <p>
+ * Updated by shard thread only, weight and average cost can be read from any thread.
+ * <p>
+ * Weights drive stage interleaving only in {@link DispatchedFlowProcessor} (dispatcher enabled),
+ * otherwise they are reported for monitoring.
+ *
+ * @see exchange.core2.revelator.processors.pipelined.PipelinedStageHandler#getHitWorkWeight()
+ */
+public final class StageCostMeter {
+
+    // time 1 of 64 messages
+    private static final int SAMPLE_MASK = 63;
+
+    // new sample contributes 1/16 of the average
+    private static final double ALPHA = 1.0 / 16;
+
+    // initial weight is reported until enough samples are collected
+    private static final int WARMUP_SAMPLES = 16;
+
+    // one unit of work weight
+    public static final int NS_PER_WEIGHT = 25;
+
+    public static final int MAX_WEIGHT = 1000;
+
+    // samples interrupted by thread preemption or GC should not distort the average
+    private static final long MAX_SAMPLE_NS = (long) NS_PER_WEIGHT * MAX_WEIGHT;
+
+    private int messages = 0;
+    private int samples = 0;
+
+    // current message is timed (any nanoTime value is valid, so no marker value is used)
+    private boolean sampling = false;
+    private long sampleStartNs;
+
+    private volatile double avgCostNs;
+    private volatile int workWeight;
+
+    public StageCostMeter(final int initialWeight) {
+        this.workWeight = initialWeight;
+        this.avgCostNs = (double) initialWeight * NS_PER_WEIGHT;
+    }
+
+    /**
+     * Must be followed by {@link #stop(boolean)} for the same message.
+     */
+    public void start() {
+        if ((++messages & SAMPLE_MASK) == 0) {
+            sampling = true;
+            sampleStartNs = System.nanoTime();
+        }
+    }
+
+    public void stop(final boolean processed) {
+
+        if (!sampling) {
+            return;
+        }
+
+        sampling = false;
+        if (!processed) {
+            return;
+        }
+
+        final long costNs = Math.min(System.nanoTime() - sampleStartNs, MAX_SAMPLE_NS);
+        final double avg = avgCostNs + (costNs - avgCostNs) * ALPHA;
+        avgCostNs = avg;
+
+        if (samples < WARMUP_SAMPLES) {
+            samples++;
+            return;
+        }
+
+        final int weight = (int) Math.max(1L, Math.min(MAX_WEIGHT, Math.round(avg / NS_PER_WEIGHT)));
+        if (weight != workWeight) {
+            workWeight = weight;
+        }
+    }
+
+    public int getWorkWeight() {
+        return workWeight;
+    }
+
+    public double getAvgCostNs() {
+        return avgCostNs;
+    }
+
+    @Override
+    public String toString() {
+        return "StageCostMeter{weight=" + workWeight + ", avgCostNs=" + String.format("%.1f", avgCostNs) + '}';
+    }
+}
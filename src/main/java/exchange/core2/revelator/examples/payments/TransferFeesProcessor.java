@@ -25,6 +25,9 @@ public final class TransferFeesProcessor {
     }
 
 
+    /**
+     * Source account slot must be resolved in session.slotSrc, session.insufficientFunds is set if balance is not enough
+     */
     public boolean performWithdrawal(final TransferSession session,
                                      final TransferType transferType,
                                      final long accountSrc,
@@ -32,6 +35,8 @@ public final class TransferFeesProcessor {
                                      final long orderAmount,
                                      final short orderCurrency) {
 
+        session.insufficientFunds = false;
+
         return switch (transferType) {
 
             case DESTINATION_EXACT -> processDstExactInit(
@@ -100,11 +105,11 @@ public final class TransferFeesProcessor {
 
         final long amountSrcWithFee = amountSrc + srcFee;
 
-        final boolean withdrawalSucceeded = accountsProcessor.withdrawal(accountSrc, amountSrcWithFee);
+        final boolean withdrawalSucceeded = accountsProcessor.withdrawalAt(session.slotSrc, amountSrcWithFee);
 
-        // Check for NSF
+        // Check for NSF (stage 1 logs final result, because it can retry while account has pending transfers)
         if (!withdrawalSucceeded) {
-            log.warn("NSF");
+            session.insufficientFunds = true;
             return false;
         }
 
@@ -117,7 +122,8 @@ public final class TransferFeesProcessor {
             session.treasureAmountDst = -amountDst;
         }
 
-        session.amountSrc = amountSrc;
+        // withdrawn amount is refunded if destination fails
+        session.amountSrc = amountSrcWithFee;
         session.amountDst = amountDst;
 
         return true;
@@ -175,11 +181,11 @@ public final class TransferFeesProcessor {
         }
 
 
-        final boolean withdrawalSucceeded = accountsProcessor.withdrawal(accountSrc, amountSrc);
+        final boolean withdrawalSucceeded = accountsProcessor.withdrawalAt(session.slotSrc, amountSrc);
 
-        // Check for NSF
+        // Check for NSF (stage 1 logs final result, because it can retry while account has pending transfers)
         if (!withdrawalSucceeded) {
-            log.warn("NSF");
+            session.insufficientFunds = true;
             return false;
         }
 
@@ -193,7 +199,8 @@ public final class TransferFeesProcessor {
         }
 
         session.amountSrc = amountSrc;
-        session.amountDst = amountDst;
+        // destination receives amount after fee, fee stays in treasure
+        session.amountDst = amountDstAfterFee;
 
         return true;
     }
@@ -248,6 +255,48 @@ public final class TransferFeesProcessor {
         currencyRateProcessor.updateRate(currencyFrom, currencyTo, rate);
     }
 
+    public double getFeeK() {
+        return feeK;
+    }
+
+    public int getFeeConfigsNum() {
+        return currencyFees.size();
+    }
+
+    public void exportFeeConfigs(final FeeConfigConsumer consumer) {
+        currencyFees.forEachKeyValue((currency, feeConfig) -> consumer.accept(currency, feeConfig.minFee, feeConfig.maxFee));
+    }
+
+    public void restoreTreasure(final short currency, final long amount) {
+        treasures.put(currency, amount);
+    }
+
+    public void addTreasure(final short currency, final long amount) {
+        treasures.addToValue(currency, amount);
+    }
+
+    public void clearTreasures() {
+        treasures.clear();
+    }
+
+    public int getTreasuresNum() {
+        return treasures.size();
+    }
+
+    public void exportTreasures(final TreasureConsumer consumer) {
+        treasures.forEachKeyValue(consumer::accept);
+    }
+
+    @FunctionalInterface
+    public interface FeeConfigConsumer {
+        void accept(short currency, long minFee, long maxFee);
+    }
+
+    @FunctionalInterface
+    public interface TreasureConsumer {
+        void accept(short currency, long amount);
+    }
+
 
     public record FeeConfig(long minFee, long maxFee) {
     }
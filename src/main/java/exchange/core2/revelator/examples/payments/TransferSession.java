@@ -10,6 +10,14 @@ public final class TransferSession extends PipelinedFlowSession {
     public boolean processSrc;
     public boolean processDst;
 
+    // shards of accounts at the moment of stage 1 (routing can change later by migration)
+    public int shardSrc;
+    public int shardDst;
+
+    // accounts slots found by stage 1 (only used within stage 1, stage 2 settles by account id)
+    public int slotSrc;
+    public int slotDst;
+
     public long amountSrc;
     public long amountDst;
 
@@ -18,6 +26,18 @@ public final class TransferSession extends PipelinedFlowSession {
 
     public boolean localPartSucceeded;
 
+    // stage 1 is postponed until stage 2 reaches this session (see ParkedMessages)
+    public boolean parked;
+
+    // withdrawal failed because of balance check (not because of currency conversion or amount)
+    public boolean insufficientFunds;
+
+    // correlation window entry reserved by this transfer, -1 if none
+    public long windowSeq;
+
+    // correlation window entry of the original transfer this retry waits for, -1 if none
+    public long repeatSeq;
+
 
     //    public short currency;
 
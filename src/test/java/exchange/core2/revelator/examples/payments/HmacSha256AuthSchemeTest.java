@@ -0,0 +1,67 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HmacSha256AuthSchemeTest {
+
+    private final HmacSha256AuthScheme scheme = new HmacSha256AuthScheme();
+
+    @Test
+    public void shouldMatchJdkHmac() throws Exception {
+
+        final Random random = new Random(1L);
+        final long[] secrets = {random.nextLong(), random.nextLong(), random.nextLong()};
+
+        for (int i = 0; i < 100; i++) {
+            // same secret in a row uses cached key pads, switching secret recomputes them
+            final long secret = secrets[(i / 3) % secrets.length];
+            final long[] fields = {random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()};
+
+            final long[] signature = new long[4];
+            scheme.signTransfer(fields[0], fields[1], fields[2], fields[3], secret, signature, 0);
+
+            assertArrayEquals(jdkHmac(fields, secret), signature);
+        }
+    }
+
+    @Test
+    public void shouldVerifyOwnSignature() {
+
+        final long secret = 0x5eed5eed12345678L;
+        final long[] msg = new long[8];
+        msg[0] = 11L;
+        msg[1] = 22L;
+        msg[2] = 333L;
+        msg[3] = ITransferAuthScheme.currencyAndType((short) 978, TransferType.SOURCE_EXACT, 5L);
+        scheme.signTransfer(msg[0], msg[1], msg[2], msg[3], secret, msg, ITransferAuthScheme.TRANSFER_FIELDS);
+
+        assertTrue(scheme.checkTransfer(msg, 0, msg.length, secret));
+        assertFalse(scheme.checkTransfer(msg, 0, msg.length, secret + 1));
+
+        msg[7] ^= 1L;
+        assertFalse(scheme.checkTransfer(msg, 0, msg.length, secret));
+    }
+
+    private static long[] jdkHmac(final long[] fields, final long secret) throws Exception {
+
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(ByteBuffer.allocate(8).putLong(secret).array(), "HmacSHA256"));
+
+        final ByteBuffer message = ByteBuffer.allocate(32);
+        for (final long field : fields) {
+            message.putLong(field);
+        }
+
+        final ByteBuffer digest = ByteBuffer.wrap(mac.doFinal(message.array()));
+        return new long[]{digest.getLong(), digest.getLong(), digest.getLong(), digest.getLong()};
+    }
+}
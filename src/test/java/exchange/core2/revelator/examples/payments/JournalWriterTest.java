@@ -0,0 +1,170 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalWriterTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int RING_MASK = 63;
+
+    private final CRC32C crc32c = new CRC32C();
+
+    @Test
+    public void shouldReadAllRecords() {
+
+        final ByteBuffer segment = newSegment();
+        writeRecords(segment, 3);
+
+        final List<long[]> records = new ArrayList<>();
+        assertTrue(JournalWriter.readSegment(segment, crc32c, collector(segment, records)));
+
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expectedRecord(i), records.get(i));
+        }
+    }
+
+    @Test
+    public void shouldStopAtChecksumFailure() {
+
+        final ByteBuffer segment = newSegment();
+        final int[] positions = writeRecords(segment, 3);
+
+        // corrupted payload of the last record
+        final int last = positions[2] + JournalWriter.RECORD_HEADER_SIZE;
+        segment.putLong(last, segment.getLong(last) ^ 1L);
+
+        final List<long[]> records = new ArrayList<>();
+        final int[] tornAt = {-1};
+        assertFalse(JournalWriter.readSegment(segment, crc32c, collector(segment, records, tornAt)));
+
+        assertEquals(2, records.size());
+        assertEquals(positions[2], tornAt[0]);
+    }
+
+    @Test
+    public void shouldStopAtTornTail() {
+
+        final ByteBuffer segment = newSegment();
+        final int[] positions = writeRecords(segment, 3);
+
+        // header of the last record reached the disk, payload did not
+        final int last = positions[2];
+        for (int pos = last + JournalWriter.RECORD_HEADER_SIZE; pos < SEGMENT_SIZE; pos += 8) {
+            segment.putLong(pos, 0L);
+        }
+
+        final List<long[]> records = new ArrayList<>();
+        final int[] tornAt = {-1};
+        assertFalse(JournalWriter.readSegment(segment, crc32c, collector(segment, records, tornAt)));
+
+        assertEquals(2, records.size());
+        assertEquals(last, tornAt[0]);
+    }
+
+    @Test
+    public void shouldStopAtRecordExceedingSegment() {
+
+        final ByteBuffer segment = newSegment();
+        final int[] positions = writeRecords(segment, 1);
+
+        // garbage size at the end of data
+        final int next = positions[0] + JournalWriter.RECORD_HEADER_SIZE + 3 * 8;
+        segment.putInt(next + 24, (SEGMENT_SIZE << 8) | PaymentsApi.CMD_TRANSFER);
+
+        final List<long[]> records = new ArrayList<>();
+        final int[] tornAt = {-1};
+        assertFalse(JournalWriter.readSegment(segment, crc32c, collector(segment, records, tornAt)));
+
+        assertEquals(1, records.size());
+        assertEquals(next, tornAt[0]);
+    }
+
+    @Test
+    public void shouldRejectSegmentNotFittingLargestMessage() {
+
+        final long minSize = JournalWriter.maxRecordSize(RING_MASK + 1);
+        try {
+            new JournalWriter(Path.of("journal-test-never-created"), (int) minSize - 8, RING_MASK);
+            fail("segment size must be validated");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+
+        try {
+            PaymentsCoreConfig.builder().journalSegmentSize(1 << 20);
+            fail("segment size must be validated");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    private static ByteBuffer newSegment() {
+        return ByteBuffer.allocate(SEGMENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // record i: 3 payload words (i, i + 1, i + 2), offset 100 + i, timestamp 200 + i, correlation id 300 + i
+    private int[] writeRecords(final ByteBuffer segment, final int num) {
+
+        final long[] ring = new long[RING_MASK + 1];
+        final ByteBuffer crcView = segment.duplicate();
+        final int[] positions = new int[num];
+
+        int pos = 0;
+        for (int i = 0; i < num; i++) {
+            // message wraps around the ring
+            final int index = RING_MASK - 1;
+            for (int w = 0; w < 3; w++) {
+                ring[(index + w) & RING_MASK] = i + w;
+            }
+            JournalWriter.writeRecord(segment, crcView, crc32c, pos, ring, index, RING_MASK, 3, 200 + i, 100 + i, 300 + i, PaymentsApi.CMD_TRANSFER);
+            positions[i] = pos;
+            pos += JournalWriter.RECORD_HEADER_SIZE + 3 * 8;
+        }
+        return positions;
+    }
+
+    private static long[] expectedRecord(final int i) {
+        return new long[]{100 + i, 200 + i, 300 + i, PaymentsApi.CMD_TRANSFER, i, i + 1, i + 2};
+    }
+
+    private static JournalWriter.RecordConsumer collector(final ByteBuffer segment, final List<long[]> records) {
+        return collector(segment, records, new int[1]);
+    }
+
+    private static JournalWriter.RecordConsumer collector(final ByteBuffer segment, final List<long[]> records, final int[] tornAt) {
+        return new JournalWriter.RecordConsumer() {
+
+            @Override
+            public void accept(final int payloadPos, final int msgSize, final long globalOffset, final long timestamp, final long correlationId, final byte msgType) {
+                final long[] record = new long[4 + msgSize];
+                record[0] = globalOffset;
+                record[1] = timestamp;
+                record[2] = correlationId;
+                record[3] = msgType;
+                for (int i = 0; i < msgSize; i++) {
+                    record[4 + i] = segment.getLong(payloadPos + (i << 3));
+                }
+                records.add(record);
+            }
+
+            @Override
+            public void torn(final int pos) {
+                tornAt[0] = pos;
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-message signature check with multi-lane digest of the same messages ({@link BatchSignatureHandler}).
+ * <p>
+ * Messages are laid out like transfers in ring buffer (4 words of transfer + 4 words of signature),
+ * every 16th signature is corrupted. Verdict of every message must be the same for both paths (checked on setup).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+
+    private static final int MSG_SIZE = 8;
+    private static final int MESSAGES_NUM = 1 << 16;
+
+    // messages per multi-lane call
+    private static final int BATCH = 64;
+
+    private final SignatureHandler signatureHandler = new SignatureHandler();
+
+    private final long[] buffer = new long[MESSAGES_NUM * MSG_SIZE];
+    private final long[] secrets = new long[MESSAGES_NUM];
+
+    private final long[] batchFields = new long[BATCH * ITransferAuthScheme.TRANSFER_FIELDS];
+    private final long[] batchSecrets = new long[BATCH];
+    private final long[] batchSignatures = new long[BATCH * 4];
+
+    private final boolean[] verdicts = new boolean[MESSAGES_NUM];
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        final Random random = new Random(1L);
+
+        for (int i = 0; i < MESSAGES_NUM; i++) {
+            final int addr = i * MSG_SIZE;
+            final TransferType transferType = random.nextBoolean() ? TransferType.SOURCE_EXACT : TransferType.DESTINATION_EXACT;
+            final short currency = (short) random.nextInt(1000);
+
+            buffer[addr] = random.nextLong();
+            buffer[addr + 1] = random.nextLong();
+            buffer[addr + 2] = random.nextInt(1_000_000);
+            buffer[addr + 3] = ITransferAuthScheme.currencyAndType(currency, transferType);
+            secrets[i] = random.nextLong();
+
+            final long[] signature = signatureHandler.signTransfer(
+                    buffer[addr], buffer[addr + 1], buffer[addr + 2], currency, transferType, secrets[i]);
+            System.arraycopy(signature, 0, buffer, addr + 4, 4);
+
+            if (i % 16 == 5) {
+                buffer[addr + 4 + random.nextInt(4)] ^= 1L << random.nextInt(64);
+            }
+        }
+
+        verifySingle();
+        final boolean[] single = verdicts.clone();
+        verifyBatched();
+
+        for (int i = 0; i < MESSAGES_NUM; i++) {
+            if (single[i] != verdicts[i] || single[i] == (i % 16 == 5)) {
+                throw new IllegalStateException("Verdicts mismatch at message " + i + ": single=" + single[i] + " batched=" + verdicts[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_NUM)
+    public boolean[] verifySingle() {
+        for (int i = 0; i < MESSAGES_NUM; i++) {
+            verdicts[i] = signatureHandler.verifyTransfer(buffer, i * MSG_SIZE, secrets[i]);
+        }
+        return verdicts;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_NUM)
+    public boolean[] verifyBatched() {
+
+        for (int from = 0; from < MESSAGES_NUM; from += BATCH) {
+
+            for (int j = 0; j < BATCH; j++) {
+                System.arraycopy(buffer, (from + j) * MSG_SIZE, batchFields, j * ITransferAuthScheme.TRANSFER_FIELDS, ITransferAuthScheme.TRANSFER_FIELDS);
+            }
+            System.arraycopy(secrets, from, batchSecrets, 0, BATCH);
+
+            signatureHandler.signTransfers(batchFields, batchSecrets, BATCH, batchSignatures);
+
+            for (int j = 0; j < BATCH; j++) {
+                final int sig = (from + j) * MSG_SIZE + ITransferAuthScheme.TRANSFER_FIELDS;
+                final int s = j * 4;
+                verdicts[from + j] = batchSignatures[s] == buffer[sig]
+                        && batchSignatures[s + 1] == buffer[sig + 1]
+                        && batchSignatures[s + 2] == buffer[sig + 2]
+                        && batchSignatures[s + 3] == buffer[sig + 3];
+            }
+        }
+        return verdicts;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SignatureBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,108 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SignatureHandlerTest {
+
+    private static final int MSG_SIZE = ITransferAuthScheme.TRANSFER_FIELDS + 4;
+
+    private final SignatureHandler handler = new SignatureHandler();
+
+    @Test
+    public void shouldMatchJdkSha256() throws Exception {
+
+        final Random random = new Random(1L);
+
+        for (int i = 0; i < 100; i++) {
+            final long[] fields = {random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()};
+            final long secret = random.nextLong();
+
+            final long[] signature = new long[4];
+            handler.signTransfer(fields[0], fields[1], fields[2], fields[3], secret, signature, 0);
+
+            final ByteBuffer message = ByteBuffer.allocate(40);
+            for (final long field : fields) {
+                message.putLong(field);
+            }
+            message.putLong(secret);
+
+            final ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(message.array()));
+            assertArrayEquals(new long[]{digest.getLong(), digest.getLong(), digest.getLong(), digest.getLong()}, signature);
+        }
+    }
+
+    @Test
+    public void batchSigningShouldMatchSingleSigning() {
+
+        final Random random = new Random(2L);
+
+        // not a multiple of lanes - last batch is partial
+        final int count = BatchSignatureHandler.LANES * 3 + 5;
+        final long[] fields = new long[count * ITransferAuthScheme.TRANSFER_FIELDS];
+        final long[] secrets = new long[count];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = random.nextLong();
+        }
+        for (int i = 0; i < count; i++) {
+            secrets[i] = random.nextLong();
+        }
+
+        final long[] signatures = new long[count * 4];
+        handler.signTransfers(fields, secrets, count, signatures);
+
+        final long[] expected = new long[4];
+        final long[] actual = new long[4];
+        for (int i = 0; i < count; i++) {
+            final int f = i * ITransferAuthScheme.TRANSFER_FIELDS;
+            handler.signTransfer(fields[f], fields[f + 1], fields[f + 2], fields[f + 3], secrets[i], expected, 0);
+            System.arraycopy(signatures, i * 4, actual, 0, 4);
+            assertArrayEquals("transfer " + i, expected, actual);
+        }
+    }
+
+    @Test
+    public void batchVerificationShouldMatchSingleVerification() {
+
+        final Random random = new Random(3L);
+
+        final int count = BatchSignatureHandler.LANES * 2 + 3;
+        final long[] buffer = new long[count * MSG_SIZE];
+        final int[] addrs = new int[count];
+        final long[] secrets = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            final int addr = i * MSG_SIZE;
+            addrs[i] = addr;
+            secrets[i] = random.nextLong();
+            for (int j = 0; j < ITransferAuthScheme.TRANSFER_FIELDS; j++) {
+                buffer[addr + j] = random.nextLong();
+            }
+            handler.signTransfer(buffer[addr], buffer[addr + 1], buffer[addr + 2], buffer[addr + 3], secrets[i],
+                    buffer, addr + ITransferAuthScheme.TRANSFER_FIELDS);
+
+            // corrupt every third message: signature, field or secret
+            switch (i % 9) {
+                case 0 -> buffer[addr + ITransferAuthScheme.TRANSFER_FIELDS + 3] ^= 1L;
+                case 3 -> buffer[addr + 2]++;
+                case 6 -> secrets[i]++;
+                default -> {
+                }
+            }
+        }
+
+        final boolean[] valid = new boolean[count];
+        handler.verifyTransfers(buffer, addrs, secrets, count, valid);
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("transfer " + i, handler.verifyTransfer(buffer, addrs[i], secrets[i]), valid[i]);
+            assertEquals("transfer " + i, i % 3 != 0, valid[i]);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package exchange.core2.revelator.examples.payments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SipHash128AuthSchemeTest {
+
+    private final SipHash128AuthScheme scheme = new SipHash128AuthScheme();
+
+    @Test
+    public void shouldMatchReferenceVector() {
+
+        // reference implementation vectors_sip128[32]: key 00..0f, message 00..1f
+        final long[] hash = new long[2];
+        scheme.mac(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, 0x1716151413121110L, 0x1f1e1d1c1b1a1918L,
+                0x0706050403020100L, 0x0f0e0d0c0b0a0908L, hash);
+
+        assertArrayEquals(new long[]{0x3efcea5eca56397cL, 0x68eb4665559d3e36L}, hash);
+    }
+
+    @Test
+    public void shouldSignWithSecretAsKey() {
+
+        // key: secret (little-endian) followed by 8 zero bytes, checked with OpenSSL SIPHASH (size 16)
+        final long[] signature = new long[2];
+        scheme.signTransfer(1001L, 2002L, 30000L, (7L << 24) | (840L << 8) | 1, 0x0123456789abcdefL, signature, 0);
+
+        assertArrayEquals(new long[]{0xd917c6f046f8a8d4L, 0x64b4b71645bb5b38L}, signature);
+    }
+
+    @Test
+    public void shouldVerifyOwnSignature() {
+
+        final long secret = 0x5eed5eed12345678L;
+        final long[] msg = {11L, 22L, 333L, ITransferAuthScheme.currencyAndType((short) 978, TransferType.SOURCE_EXACT), 0L, 0L};
+        scheme.signTransfer(msg[0], msg[1], msg[2], msg[3], secret, msg, ITransferAuthScheme.TRANSFER_FIELDS);
+
+        assertTrue(scheme.checkTransfer(msg, 0, msg.length, secret));
+        assertFalse(scheme.checkTransfer(msg, 0, msg.length, secret + 1));
+        assertFalse(scheme.checkTransfer(msg, 0, msg.length - 1, secret));
+
+        msg[2]++;
+        assertFalse(scheme.checkTransfer(msg, 0, msg.length, secret));
+    }
+}